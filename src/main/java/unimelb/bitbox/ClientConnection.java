@@ -13,6 +13,7 @@ import java.net.Socket;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Connection between a client and a server peer. This handles both ends of the connection.
@@ -23,6 +24,8 @@ public class ClientConnection extends Connection {
     private Socket clientSocket;
     private BufferedWriter outStream;
     private BufferedReader inStream;
+    private final ReentrantLock outLock = new ReentrantLock();
+    private final ReentrantLock inLock = new ReentrantLock();
     private CmdLineArgs clientArgs;
     private ClientCommandProcessor clientCommandProcessor;
     private byte[] secretKey; // Used for AES encryption of the connection
@@ -256,9 +259,12 @@ public class ClientConnection extends Connection {
         } else {
             content = message.toJson() + "\n";
         }
-        synchronized (outStream) {
+        outLock.lock();
+        try {
             outStream.write(content);
             outStream.flush();
+        } finally {
+            outLock.unlock();
         }
         // log.info("Sent message to peer: " + message);
     }
@@ -278,8 +284,11 @@ public class ClientConnection extends Connection {
 
     protected Document receiveMessageFromPeer() throws BadMessageException, IOException {
         String input;
-        synchronized (inStream) {
+        inLock.lock();
+        try {
             input = inStream.readLine();
+        } finally {
+            inLock.unlock();
         }
         if (input == null) {
             throw new IOException();
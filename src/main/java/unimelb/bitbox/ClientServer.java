@@ -85,7 +85,7 @@ public class ClientServer extends Server {
             if (Peer.udpMode) {
                 connection = new UDPConnection((UDPServer) mainServer, remoteAddress, false);
             } else {
-                connection = new TCPConnection((TCPServer) mainServer, remoteAddress);
+                connection = ((TCPServer) mainServer).connect(remoteAddress);
             }
             while (connection.connectionState == Connection.ConnectionState.CONNECTING) {
                 // Connection is asynchronous but we want an answer... so we wait for one
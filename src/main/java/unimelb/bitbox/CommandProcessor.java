@@ -1,31 +1,119 @@
 package unimelb.bitbox;
 
 import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Delta;
 import unimelb.bitbox.util.Document;
 import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.TreeEntry;
+import unimelb.bitbox.util.HashAlgorithm;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * Logic for acting on commands received from a peer.
  * <p>
  * Handles generating responses and driving the file system manager to read/write data.
+ * Files received from the peer only start loading once the server's {@link TransferScheduler}
+ * admits them, so the processor is also driven from the scheduler's thread; its public methods
+ * are synchronized for this reason.
  *
  * @author TransfictionRailways
  */
 public class CommandProcessor {
     private FileSystemManager fileSystemManager;
+    private Connection connection;
     private ArrayList<Document> responses;
+    private HashSet<String> transfers = new HashSet<>(); // files being loaded from this peer
+    private TransferScheduler scheduler; // null if transfers are not scheduled
+    private ArrayDeque<PendingTransfer> admittedTransfers = new ArrayDeque<>(); // transfers to start now
     private static Logger log = Logger.getLogger(Server.class.getName());
 
 
     public CommandProcessor(FileSystemManager fileSystemManager) {
+        this(fileSystemManager, null);
+    }
+
+    /**
+     * @param fileSystemManager The share directory to act on
+     * @param connection        The connection the commands arrive on, whose negotiated capabilities are used
+     */
+    public CommandProcessor(FileSystemManager fileSystemManager, Connection connection) {
         this.fileSystemManager = fileSystemManager;
+        this.connection = connection;
+        if (connection != null && connection.server != null) {
+            this.scheduler = connection.server.transferScheduler;
+        }
+    }
+
+    /**
+     * A file the peer is sending us, with what is needed to start loading it once it is admitted.
+     */
+    private static class PendingTransfer extends TransferScheduler.Transfer {
+        final Document fileDescriptor;
+        final boolean modify;
+
+        PendingTransfer(CommandProcessor owner, Document fileDescriptor, String pathName, long fileSize,
+                        boolean modify) {
+            super(owner, pathName, fileSize);
+            this.fileDescriptor = fileDescriptor;
+            this.modify = modify;
+        }
+    }
+
+    /**
+     * Stop loading every file this peer was sending, keeping what has been received so far so
+     * that the transfers can be resumed. Called once the connection has closed.
+     * <p>
+     * Catching up from the peer's change journal would not announce these files again, so the next
+     * connection to the peer syncs in full instead.
+     */
+    public synchronized void suspendTransfers() {
+        if (!transfers.isEmpty() && connection != null) {
+            connection.forgetJournal();
+        }
+        for (String pathName : transfers) {
+            try {
+                fileSystemManager.suspendFileLoader(pathName);
+            } catch (IOException e) {
+                log.warning("Could not save progress of " + pathName + ": " + e.getMessage());
+            }
+        }
+        transfers.clear();
+        admittedTransfers.clear();
+        if (scheduler != null) {
+            scheduler.cancelAll(this);
+        }
+    }
+
+    /**
+     * Start loading a file that the transfer scheduler queued and has admitted since, sending the
+     * first requests for it straight to the peer.
+     *
+     * @param transfer The admitted transfer
+     */
+    public synchronized void startQueuedTransfer(TransferScheduler.Transfer transfer) {
+        // the peer may have gone away in the meantime
+        if (connection == null || !transfers.contains(transfer.pathName)) return;
+        this.responses = new ArrayList<>();
+        admittedTransfers.add((PendingTransfer) transfer);
+        startAdmittedTransfers();
+        try {
+            for (Document msg : responses) {
+                connection.sendMessageToPeer(msg);
+            }
+        } catch (IOException e) {
+            log.warning("Could not start transfer of " + transfer.pathName + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -35,9 +123,12 @@ public class CommandProcessor {
      * @return A (possibly empty) list of replies to be sent to the client
      * @throws BadMessageException If the client's message is malformed
      */
-    public ArrayList<Document> handleMessage(Document msgIn) throws BadMessageException {
+    public synchronized ArrayList<Document> handleMessage(Document msgIn) throws BadMessageException {
         this.responses = new ArrayList<>();
         String msgInCommand = msgIn.getString(Commands.COMMAND); // request received
+        if (connection != null && msgIn.containsKey(Commands.SEQUENCE)) {
+            connection.journalSeen(msgIn.getLong(Commands.SEQUENCE));
+        }
         switch (msgInCommand) {
             case Commands.FILE_CREATE_REQUEST:
                 fileCreateRequest(msgIn);
@@ -67,6 +158,43 @@ public class CommandProcessor {
                 fileBytesResponse(msgIn);
                 break;
 
+            case Commands.FILE_DELTA_REQUEST:
+                fileDeltaRequest(msgIn);
+                break;
+
+            case Commands.FILE_DELTA_RESPONSE:
+                fileDeltaResponse(msgIn);
+                break;
+
+            case Commands.FILE_CHUNKS_REQUEST:
+                fileChunksRequest(msgIn);
+                break;
+
+            case Commands.FILE_CHUNKS_RESPONSE:
+                fileChunksResponse(msgIn);
+                break;
+
+            case Commands.FILE_MOVE_REQUEST:
+                fileMoveRequest(msgIn);
+                break;
+
+            case Commands.DIRECTORY_MOVE_REQUEST:
+                dirMoveRequest(msgIn);
+                break;
+
+            case Commands.FILE_MOVE_RESPONSE:
+            case Commands.DIRECTORY_MOVE_RESPONSE:
+                moveResponse(msgIn);
+                break;
+
+            case Commands.SYNC_TREE_REQUEST:
+                syncTreeRequest(msgIn);
+                break;
+
+            case Commands.SYNC_TREE_RESPONSE:
+                syncTreeResponse(msgIn);
+                break;
+
             /*
              * What about other responses from the peer? We don't bother handling them because we
              * don't care about their contents. Furthermore, it is not a problem for us if a peer send a response
@@ -74,6 +202,7 @@ public class CommandProcessor {
              * INVALID_PROTOCOL in an attempt to ensure good support for peers written by other people.
              */
         }
+        startAdmittedTransfers();
         return this.responses;
     }
 
@@ -91,25 +220,29 @@ public class CommandProcessor {
         // check that the file can be created
         if (!fileSystemManager.isSafePathName(pathName)) {
             message = "unsafe pathname given";
+        } else if (fileSystemManager.isIgnored(pathName, false)) {
+            message = "pathname is ignored";
         } else if (fileSystemManager.fileNameExists(pathName)) {
             message = "pathname already exists";
         } else {
             // try to create file loader
+            HashAlgorithm hashAlgorithm = hashAlgorithm(fileDescriptor);
             String md5 = fileDescriptor.getString(Commands.MD5);
             long fileSize = fileDescriptor.getLong(Commands.FILE_SIZE);
             long lastModified = fileDescriptor.getLong(Commands.LAST_MODIFIED);
 
             try {
-                boolean status = fileSystemManager.createFileLoader(pathName, md5, fileSize, lastModified);
+                boolean status = fileSystemManager.createFileLoader(pathName, hashAlgorithm, md5, fileSize,
+                        lastModified);
                 if (status) {
-                    if (fileSystemManager.checkShortcut(pathName)) {
+                    if (fileSystemManager.checkShortcut(pathName, connection)) {
                         fileRelatedReply(Commands.FILE_CREATE_RESPONSE, fileDescriptor, pathName,
                                 true, "transfer complete using local data");
                         return;
                     }
                     fileRelatedReply(Commands.FILE_CREATE_RESPONSE, fileDescriptor, pathName,
                             true, "file loader ready");
-                    requestBytes(fileDescriptor, pathName, 0, fileSize);
+                    queueTransfer(new PendingTransfer(this, fileDescriptor, pathName, fileSize, false));
                     return;
                 }
                 message = "file loader creation unsuccessful";
@@ -138,25 +271,29 @@ public class CommandProcessor {
         // check that the file can be created
         if (!fileSystemManager.isSafePathName(pathName)) {
             message = "unsafe pathname given";
+        } else if (fileSystemManager.isIgnored(pathName, false)) {
+            message = "pathname is ignored";
         } else if (!fileSystemManager.fileNameExists(pathName)) {
             message = "pathname does not exist";
         } else {
             // try to create file loader
+            HashAlgorithm hashAlgorithm = hashAlgorithm(fileDescriptor);
             String md5 = fileDescriptor.getString(Commands.MD5);
             long fileSize = fileDescriptor.getLong(Commands.FILE_SIZE);
             long lastModified = fileDescriptor.getLong(Commands.LAST_MODIFIED);
 
             try {
-                boolean status = fileSystemManager.modifyFileLoader(pathName, md5, lastModified);
+                boolean status = fileSystemManager.modifyFileLoader(pathName, hashAlgorithm, md5, fileSize,
+                        lastModified);
                 if (status) {
-                    if (fileSystemManager.checkShortcut(pathName)) {
+                    if (fileSystemManager.checkShortcut(pathName, connection)) {
                         fileRelatedReply(Commands.FILE_MODIFY_RESPONSE, fileDescriptor, pathName,
                                 true, "transfer complete using local data");
                         return;
                     }
                     fileRelatedReply(Commands.FILE_MODIFY_RESPONSE, fileDescriptor, pathName,
                             true, "file loader ready");
-                    requestBytes(fileDescriptor, pathName, 0, fileSize);
+                    queueTransfer(new PendingTransfer(this, fileDescriptor, pathName, fileSize, true));
                     return;
                 }
                 message = "file loader creation unsuccessful";
@@ -186,6 +323,8 @@ public class CommandProcessor {
         // check the file can be deleted
         if (!fileSystemManager.isSafePathName(pathName)) {
             message = "unsafe pathname given";
+        } else if (fileSystemManager.isIgnored(pathName, false)) {
+            message = "pathname is ignored";
         } else if (!fileSystemManager.fileNameExists(pathName)) {
             message = "pathname does not exist";
         } else {
@@ -215,6 +354,8 @@ public class CommandProcessor {
 
         if (!fileSystemManager.isSafePathName(pathName)) {
             message = "unsafe pathname given";
+        } else if (fileSystemManager.isIgnored(pathName, true)) {
+            message = "pathname is ignored";
         } else if (fileSystemManager.dirNameExists(pathName)) {
             message = "pathname already exists";
         } else {
@@ -240,6 +381,8 @@ public class CommandProcessor {
 
         if (!fileSystemManager.isSafePathName(pathName)) {
             message = "unsafe pathname given";
+        } else if (fileSystemManager.isIgnored(pathName, true)) {
+            message = "pathname is ignored";
         } else if (!fileSystemManager.dirNameExists(pathName)) {
             message = "pathname does not exist";
         } else {
@@ -252,6 +395,185 @@ public class CommandProcessor {
         dirRelatedReply(Commands.DIRECTORY_DELETE_RESPONSE, pathName, message, status);
     }
 
+    /**
+     * Handle request to rename a file and rename it if possible.
+     *
+     * @param msgIn The peer's request for file renaming
+     * @throws BadMessageException If the request is malformed
+     */
+    private void fileMoveRequest(Document msgIn) throws BadMessageException {
+        Document fileDescriptor = msgIn.getDocument(Commands.FILE_DESCRIPTOR);
+        String pathName = msgIn.getString(Commands.PATH_NAME);
+        String fromPathName = msgIn.getString(Commands.FROM_PATH_NAME);
+        String message = "";
+        boolean status = false;
+
+        if (!fileSystemManager.isSafePathName(pathName) || !fileSystemManager.isSafePathName(fromPathName)) {
+            message = "unsafe pathname given";
+        } else if (fileSystemManager.isIgnored(fromPathName, false) || fileSystemManager.isIgnored(pathName, false)) {
+            message = "pathname is ignored";
+        } else if (!fileSystemManager.fileNameExists(fromPathName)) {
+            message = "pathname does not exist";
+        } else if (fileSystemManager.fileNameExists(pathName) || fileSystemManager.dirNameExists(pathName)) {
+            message = "pathname already exists";
+        } else {
+            try {
+                status = fileSystemManager.moveFile(fromPathName, pathName, hashAlgorithm(fileDescriptor),
+                        fileDescriptor.getString(Commands.MD5), connection);
+                message = "file moved";
+                if (!status) {
+                    message = "there was a problem moving the file";
+                }
+            } catch (NoSuchAlgorithmException e) {
+                log.severe("Missing hashing algorithm: " + e.getLocalizedMessage());
+                System.exit(1);
+            } catch (IOException e) {
+                message = "there was a problem moving the file: " + e.getMessage();
+            }
+        }
+        moveReply(Commands.FILE_MOVE_RESPONSE, fileDescriptor, fromPathName, pathName, status, message);
+    }
+
+    /**
+     * Handle request to rename a directory and rename it if possible.
+     *
+     * @param msgIn The peer's request for directory renaming
+     * @throws BadMessageException If the request is malformed
+     */
+    private void dirMoveRequest(Document msgIn) throws BadMessageException {
+        String pathName = msgIn.getString(Commands.PATH_NAME);
+        String fromPathName = msgIn.getString(Commands.FROM_PATH_NAME);
+        String message;
+        boolean status = false;
+
+        if (!fileSystemManager.isSafePathName(pathName) || !fileSystemManager.isSafePathName(fromPathName)) {
+            message = "unsafe pathname given";
+        } else if (fileSystemManager.isIgnored(fromPathName, true) || fileSystemManager.isIgnored(pathName, true)) {
+            message = "pathname is ignored";
+        } else if (!fileSystemManager.dirNameExists(fromPathName)) {
+            message = "pathname does not exist";
+        } else if (fileSystemManager.fileNameExists(pathName) || fileSystemManager.dirNameExists(pathName)) {
+            message = "pathname already exists";
+        } else {
+            try {
+                status = fileSystemManager.moveDirectory(fromPathName, pathName, connection);
+                message = "directory moved";
+                if (!status) {
+                    message = "there was a problem moving the directory";
+                }
+            } catch (IOException e) {
+                message = "there was a problem moving the directory: " + e.getMessage();
+            }
+        }
+        moveReply(Commands.DIRECTORY_MOVE_RESPONSE, null, fromPathName, pathName, status, message);
+    }
+
+    /**
+     * Accepts the peer's answer to one of our move requests. A peer that could not apply the move is
+     * sent the creations and deletions it stands for instead, so that it still ends up with the
+     * content under the new name.
+     *
+     * @param msgIn The peer's response to a file or directory move
+     * @throws BadMessageException If the response is malformed
+     */
+    private void moveResponse(Document msgIn) throws BadMessageException {
+        if (msgIn.getBoolean(Commands.STATUS) || connection == null) return;
+        String pathName = msgIn.getString(Commands.PATH_NAME);
+        String fromPathName = msgIn.getString(Commands.FROM_PATH_NAME);
+        log.info("Peer could not move " + fromPathName + " to " + pathName + " (" + msgIn.getString(Commands.MESSAGE)
+                + "), sending it instead");
+        try {
+            this.responses.addAll(connection.expandedMoveRequests(fromPathName, pathName));
+        } catch (IOException e) {
+            log.warning("Could not describe " + pathName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handle a peer's request to compare one of its directories with ours. Replies with our hash of
+     * the directory and, if it differs from the peer's, the hashes of the directory's entries so
+     * that the peer can tell which of them we are missing and which to compare further.
+     *
+     * @param msgIn The peer's request for a directory comparison
+     * @throws BadMessageException If the request is malformed
+     */
+    private void syncTreeRequest(Document msgIn) throws BadMessageException {
+        String pathName = msgIn.getString(Commands.PATH_NAME);
+        String treeHash = msgIn.getString(Commands.TREE_HASH);
+
+        Document msg = new Document();
+        msg.append(Commands.COMMAND, Commands.SYNC_TREE_RESPONSE);
+        msg.append(Commands.PATH_NAME, pathName);
+        String ours = null;
+        ArrayList<TreeEntry> entries = null;
+        if (pathName.isEmpty() || fileSystemManager.isSafePathName(pathName)) {
+            ours = fileSystemManager.treeHash(pathName);
+            entries = fileSystemManager.treeEntries(pathName);
+        }
+        if (ours == null || entries == null) {
+            msg.append(Commands.MESSAGE, "pathname does not exist");
+            msg.append(Commands.STATUS, false);
+        } else if (ours.equals(treeHash)) {
+            msg.append(Commands.TREE_HASH, ours);
+            msg.append(Commands.MESSAGE, "directory in sync");
+            msg.append(Commands.STATUS, true);
+        } else {
+            ArrayList<Document> entryDocs = new ArrayList<>();
+            for (TreeEntry entry : entries) {
+                Document entryDoc = new Document();
+                entryDoc.append(Commands.NAME, entry.name);
+                entryDoc.append(Commands.DIRECTORY, entry.directory);
+                entryDoc.append(Commands.HASH, entry.hash);
+                entryDocs.add(entryDoc);
+            }
+            msg.append(Commands.TREE_HASH, ours);
+            msg.append(Commands.ENTRIES, entryDocs);
+            msg.append(Commands.MESSAGE, "directory differs");
+            msg.append(Commands.STATUS, true);
+        }
+        this.responses.add(msg);
+    }
+
+    /**
+     * Compare the entries of one of our directories with the peer's, announcing whatever the peer
+     * does not have at all and asking it to compare the subdirectories that differ. Files that the
+     * peer has with other content are left alone, as a periodic sync only ever creates files.
+     *
+     * @param msgIn The peer's response to a directory comparison
+     * @throws BadMessageException If the response is malformed
+     */
+    private void syncTreeResponse(Document msgIn) throws BadMessageException {
+        String pathName = msgIn.getString(Commands.PATH_NAME);
+        if (connection == null) return;
+        try {
+            if (!msgIn.getBoolean(Commands.STATUS)) {
+                // the peer does not have the directory any more, so send all of it
+                this.responses.addAll(connection.syncRequests(pathName));
+                return;
+            }
+            if (!msgIn.containsKey(Commands.ENTRIES)) return;
+            ArrayList<TreeEntry> ours = fileSystemManager.treeEntries(pathName);
+            if (ours == null) return;
+            HashMap<String, Document> theirs = new HashMap<>();
+            for (Document entry : msgIn.getListOfDocuments(Commands.ENTRIES)) {
+                theirs.put(entry.getString(Commands.NAME), entry);
+            }
+            for (TreeEntry entry : ours) {
+                String child = pathName.isEmpty() ? entry.name : pathName + File.separator + entry.name;
+                Document theirEntry = theirs.get(entry.name);
+                if (theirEntry == null) {
+                    this.responses.addAll(connection.syncRequests(child));
+                } else if (entry.directory && theirEntry.getBoolean(Commands.DIRECTORY) &&
+                        !entry.hash.equals(theirEntry.getString(Commands.HASH))) {
+                    Document request = connection.treeRequest(child);
+                    if (request != null) this.responses.add(request);
+                }
+            }
+        } catch (IOException e) {
+            log.warning("Could not sync " + pathName + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Handle request for bytes from a file. Replies with the data if possible.
      *
@@ -263,17 +585,18 @@ public class CommandProcessor {
         String pathName = msgIn.getString(Commands.PATH_NAME);
         long position = msgIn.getLong(Commands.POSITION);
         long length = msgIn.getLong(Commands.LENGTH);
+        HashAlgorithm hashAlgorithm = hashAlgorithm(fileDescriptor);
         String md5 = fileDescriptor.getString(Commands.MD5);
 
-        String content = "";
+        byte[] content = new byte[0];
         String message = "";
         boolean status = false;
 
         try {
             // If peer requests bytes that don't exist we will return an unsuccessful read
-            ByteBuffer contentBB = fileSystemManager.readFile(md5, position, length);
+            ByteBuffer contentBB = fileSystemManager.readFile(hashAlgorithm, md5, position, length);
             if (contentBB != null) {
-                content = Base64.getEncoder().encodeToString(contentBB.array());
+                content = contentBB.array();
                 message = "successful read";
                 status = true;
             } else {
@@ -299,45 +622,40 @@ public class CommandProcessor {
     private void fileBytesResponse(Document msgIn) throws BadMessageException {
         boolean status = msgIn.getBoolean(Commands.STATUS);
         if (!status) {
-            log.warning("Peer read for file " + msgIn.getString(Commands.PATH_NAME) + " failed: "
-                    + msgIn.getString(Commands.MESSAGE));
+            String pathName = msgIn.getString(Commands.PATH_NAME);
+            log.warning("Peer read for file " + pathName + " failed: " + msgIn.getString(Commands.MESSAGE));
+            // most likely the file has changed since; keep what we have and let another transfer have the slot
+            if (transfers.contains(pathName)) {
+                try {
+                    fileSystemManager.suspendFileLoader(pathName);
+                } catch (IOException e) {
+                    log.warning("Could not save progress of " + pathName + ": " + e.getMessage());
+                }
+                endTransfer(pathName);
+            }
             return;
-            // A more robust error handling system would retry the request here
         }
 
         Document fileDescriptor = msgIn.getDocument(Commands.FILE_DESCRIPTOR);
         String pathName = msgIn.getString(Commands.PATH_NAME);
-        String content = msgIn.getString(Commands.CONTENT);
+        byte[] contentBytes = msgIn.getBytes(Commands.CONTENT);
         long position = msgIn.getLong(Commands.POSITION);
         long length = msgIn.getLong(Commands.LENGTH);
         long fileSize = fileDescriptor.getLong(Commands.FILE_SIZE);
 
-        ByteBuffer contentBB;
-        try {
-            byte[] contentBytes = Base64.getDecoder().decode(content);
-            if (contentBytes.length != length) {
-                // The peer has misreported how much data it returned. Handle gracefully.
-                length = contentBytes.length;
-                log.warning("Peer misreported content length, correcting.");
-            }
-            contentBB = ByteBuffer.allocate((int) length);
-            contentBB.put(contentBytes);
-            contentBB.position(0);
-        } catch (IllegalArgumentException e) {
-            throw new BadMessageException("Malformed bytes response");
+        if (contentBytes.length != length) {
+            // The peer has misreported how much data it returned. Handle gracefully.
+            length = contentBytes.length;
+            log.warning("Peer misreported content length, correcting.");
         }
+        ByteBuffer contentBB = ByteBuffer.wrap(contentBytes);
 
         try {
             if (fileSystemManager.writeFile(pathName, contentBB, position)) {
-                long newPosition = position + length;
-                if (newPosition < fileSize) {
-                    requestBytes(fileDescriptor, pathName, newPosition, fileSize);
-                } else {
-                    // this must be run as final step to write file
-                    fileSystemManager.checkWriteComplete(pathName);
-                }
+                continueTransfer(fileDescriptor, pathName, fileSize);
             } else {
                 log.severe("Failed to write bytes to " + pathName);
+                endTransfer(pathName);
                 fileSystemManager.cancelFileLoader(pathName);
             }
         } catch (NoSuchAlgorithmException e) {
@@ -345,6 +663,7 @@ public class CommandProcessor {
             System.exit(1);
         } catch (IOException e) {
             log.severe("I/O error while writing bytes for " + pathName);
+            endTransfer(pathName);
             try {
                 fileSystemManager.cancelFileLoader(pathName);
             } catch (IOException f) {
@@ -353,6 +672,313 @@ public class CommandProcessor {
         }
     }
 
+    /**
+     * Handle a peer's request for the instructions to build one of our files from its own version,
+     * as described by the signatures of that version's blocks.
+     *
+     * @param msgIn The peer's request for a delta
+     * @throws BadMessageException If the request is malformed
+     */
+    private void fileDeltaRequest(Document msgIn) throws BadMessageException {
+        Document fileDescriptor = msgIn.getDocument(Commands.FILE_DESCRIPTOR);
+        String pathName = msgIn.getString(Commands.PATH_NAME);
+        long blockSize = msgIn.getLong(Commands.BLOCK_SIZE);
+        HashAlgorithm hashAlgorithm = hashAlgorithm(fileDescriptor);
+        String md5 = fileDescriptor.getString(Commands.MD5);
+
+        byte[] signatures = msgIn.getBytes(Commands.SIGNATURES);
+        if (blockSize < Delta.MIN_BLOCK_SIZE || blockSize > Delta.MAX_BLOCK_SIZE) {
+            throw new BadMessageException("Invalid delta block size " + blockSize);
+        }
+
+        Document msg = new Document();
+        msg.append(Commands.COMMAND, Commands.FILE_DELTA_RESPONSE);
+        msg.append(Commands.FILE_DESCRIPTOR, fileDescriptor);
+        msg.append(Commands.PATH_NAME, pathName);
+        try {
+            byte[] instructions = fileSystemManager.deltaInstructions(hashAlgorithm, md5, (int) blockSize,
+                    signatures);
+            if (instructions != null) {
+                appendBytes(msg, Commands.INSTRUCTIONS, instructions);
+                msg.append(Commands.MESSAGE, "delta computed");
+                msg.append(Commands.STATUS, true);
+            } else {
+                msg.append(Commands.MESSAGE, "no file with that content");
+                msg.append(Commands.STATUS, false);
+            }
+        } catch (IOException e) {
+            msg.append(Commands.MESSAGE, "could not compute delta: " + e.getMessage());
+            msg.append(Commands.STATUS, false);
+        }
+        this.responses.add(msg);
+    }
+
+    /**
+     * Build as much of a file being modified as possible from its old content, as the peer
+     * instructed, then request whatever is left.
+     *
+     * @param msgIn The peer's response with delta instructions
+     * @throws BadMessageException If the response is malformed
+     */
+    private void fileDeltaResponse(Document msgIn) throws BadMessageException {
+        Document fileDescriptor = msgIn.getDocument(Commands.FILE_DESCRIPTOR);
+        String pathName = msgIn.getString(Commands.PATH_NAME);
+        long fileSize = fileDescriptor.getLong(Commands.FILE_SIZE);
+
+        if (msgIn.getBoolean(Commands.STATUS)) {
+            try {
+                byte[] instructions = msgIn.getBytes(Commands.INSTRUCTIONS);
+                fileSystemManager.applyDelta(pathName, instructions);
+            } catch (IOException e) {
+                // anything not copied is still missing and will be fetched in full
+                log.warning("Could not apply delta to " + pathName + ": " + e.getMessage());
+            }
+        } else {
+            log.info("Peer could not compute delta for " + pathName + ": " + msgIn.getString(Commands.MESSAGE));
+        }
+
+        try {
+            continueTransfer(fileDescriptor, pathName, fileSize);
+        } catch (NoSuchAlgorithmException e) {
+            log.severe("Missing hashing algorithm: " + e.getLocalizedMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            log.severe("I/O error while checking " + pathName);
+        }
+    }
+
+    /**
+     * Handle a peer's request for the chunk list of one of our files.
+     *
+     * @param msgIn The peer's request for a chunk list
+     * @throws BadMessageException If the request is malformed
+     */
+    private void fileChunksRequest(Document msgIn) throws BadMessageException {
+        Document fileDescriptor = msgIn.getDocument(Commands.FILE_DESCRIPTOR);
+        String pathName = msgIn.getString(Commands.PATH_NAME);
+        HashAlgorithm hashAlgorithm = hashAlgorithm(fileDescriptor);
+        String md5 = fileDescriptor.getString(Commands.MD5);
+
+        Document msg = new Document();
+        msg.append(Commands.COMMAND, Commands.FILE_CHUNKS_RESPONSE);
+        msg.append(Commands.FILE_DESCRIPTOR, fileDescriptor);
+        msg.append(Commands.PATH_NAME, pathName);
+        try {
+            byte[] chunkList = fileSystemManager.chunkList(hashAlgorithm, md5);
+            if (chunkList != null) {
+                appendBytes(msg, Commands.CHUNK_LIST, chunkList);
+                msg.append(Commands.MESSAGE, "chunk list computed");
+                msg.append(Commands.STATUS, true);
+            } else {
+                msg.append(Commands.MESSAGE, "no file with that content");
+                msg.append(Commands.STATUS, false);
+            }
+        } catch (IOException e) {
+            msg.append(Commands.MESSAGE, "could not compute chunk list: " + e.getMessage());
+            msg.append(Commands.STATUS, false);
+        }
+        this.responses.add(msg);
+    }
+
+    /**
+     * Copy every chunk of a file being loaded that we already have, then request whatever is left.
+     *
+     * @param msgIn The peer's response with the file's chunk list
+     * @throws BadMessageException If the response is malformed
+     */
+    private void fileChunksResponse(Document msgIn) throws BadMessageException {
+        Document fileDescriptor = msgIn.getDocument(Commands.FILE_DESCRIPTOR);
+        String pathName = msgIn.getString(Commands.PATH_NAME);
+        long fileSize = fileDescriptor.getLong(Commands.FILE_SIZE);
+
+        if (msgIn.getBoolean(Commands.STATUS)) {
+            try {
+                byte[] chunkList = msgIn.getBytes(Commands.CHUNK_LIST);
+                long copied = fileSystemManager.applyChunks(pathName, chunkList);
+                if (copied > 0) log.info("Reused " + copied + " of " + fileSize + " bytes of " + pathName);
+            } catch (IOException e) {
+                // anything not copied is still missing and will be fetched in full
+                log.warning("Could not reuse chunks for " + pathName + ": " + e.getMessage());
+            }
+        } else {
+            log.info("Peer could not list chunks of " + pathName + ": " + msgIn.getString(Commands.MESSAGE));
+        }
+
+        try {
+            continueTransfer(fileDescriptor, pathName, fileSize);
+        } catch (NoSuchAlgorithmException e) {
+            log.severe("Missing hashing algorithm: " + e.getLocalizedMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            log.severe("I/O error while checking " + pathName);
+        }
+    }
+
+    /**
+     * Ask the peer for the chunk list of a file being loaded, if the connection supports it and
+     * the file is large enough for it to be worth a round trip.
+     *
+     * @param fileDescriptor the description of the new content as a Document object
+     * @param pathName       the path of the file
+     * @param fileSize       the size of the new content
+     * @return true if the chunk list was requested, false if the whole file should be requested instead
+     */
+    private boolean requestChunks(Document fileDescriptor, String pathName, long fileSize) {
+        if (connection == null || !connection.capabilities.contains(Commands.CHUNKS)) return false;
+        if (fileSize <= Configuration.getBlockSize()) return false;
+
+        Document msg = new Document();
+        msg.append(Commands.COMMAND, Commands.FILE_CHUNKS_REQUEST);
+        msg.append(Commands.FILE_DESCRIPTOR, fileDescriptor);
+        msg.append(Commands.PATH_NAME, pathName);
+        this.responses.add(msg);
+        return true;
+    }
+
+    /**
+     * Ask the peer for a delta against our current version of a file being modified, if the
+     * connection supports it.
+     *
+     * @param fileDescriptor the description of the new content as a Document object
+     * @param pathName       the path of the file
+     * @param fileSize       the size of the new content
+     * @return true if a delta was requested, false if the whole file should be requested instead
+     */
+    private boolean requestDelta(Document fileDescriptor, String pathName, long fileSize) {
+        if (connection == null || !connection.capabilities.contains(Commands.DELTA)) return false;
+        int blockSize = Delta.blockSize(fileSize);
+        byte[] signatures;
+        try {
+            signatures = fileSystemManager.deltaSignatures(pathName, blockSize);
+        } catch (IOException e) {
+            log.warning("Could not compute block signatures of " + pathName + ": " + e.getMessage());
+            return false;
+        }
+        if (signatures == null) return false;
+
+        Document msg = new Document();
+        msg.append(Commands.COMMAND, Commands.FILE_DELTA_REQUEST);
+        msg.append(Commands.FILE_DESCRIPTOR, fileDescriptor);
+        msg.append(Commands.PATH_NAME, pathName);
+        msg.append(Commands.BLOCK_SIZE, blockSize);
+        appendBytes(msg, Commands.SIGNATURES, signatures);
+        this.responses.add(msg);
+        return true;
+    }
+
+    /**
+     * Hand a file whose loader is ready to the transfer scheduler, to be started once it is admitted.
+     *
+     * @param transfer the file to load
+     */
+    private void queueTransfer(PendingTransfer transfer) {
+        transfers.add(transfer.pathName);
+        if (scheduler == null) {
+            admittedTransfers.add(transfer);
+        } else {
+            addAdmitted(scheduler.submit(transfer));
+        }
+    }
+
+    /**
+     * Forget a file that is no longer being loaded, and take on any of our transfers that were
+     * admitted in its place.
+     *
+     * @param pathName the path of the file
+     */
+    private void endTransfer(String pathName) {
+        transfers.remove(pathName);
+        if (scheduler != null) {
+            addAdmitted(scheduler.finished(this, pathName));
+        }
+    }
+
+    private void addAdmitted(List<TransferScheduler.Transfer> admitted) {
+        for (TransferScheduler.Transfer transfer : admitted) {
+            admittedTransfers.add((PendingTransfer) transfer);
+        }
+    }
+
+    /**
+     * Send the first requests for every admitted transfer. Transfers that end straight away (e.g. empty
+     * files) admit others, which are started by the same loop.
+     */
+    private void startAdmittedTransfers() {
+        PendingTransfer transfer;
+        while ((transfer = admittedTransfers.poll()) != null) {
+            String pathName = transfer.pathName;
+            long fileSize = transfer.fileSize;
+            try {
+                if (transfer.modify && requestDelta(transfer.fileDescriptor, pathName, fileSize)) continue;
+                if (requestChunks(transfer.fileDescriptor, pathName, fileSize)) continue;
+                continueTransfer(transfer.fileDescriptor, pathName, fileSize);
+            } catch (NoSuchAlgorithmException e) {
+                log.severe("Missing hashing algorithm: " + e.getLocalizedMessage());
+                System.exit(1);
+            } catch (IOException e) {
+                log.severe("I/O error while starting transfer of " + pathName + ": " + e.getMessage());
+                try {
+                    fileSystemManager.cancelFileLoader(pathName);
+                } catch (IOException f) {
+                    // We don't really care
+                }
+                endTransfer(pathName);
+            }
+        }
+    }
+
+    /**
+     * Request the next part of a file that has not been received yet, or finish the file if
+     * there is none. If the finished file does not have the expected content, it is fetched again
+     * in full once before giving up.
+     *
+     * @param fileDescriptor the description of the file as a Document object
+     * @param pathName       the path of the file
+     * @param fileSize       the total size of the file
+     * @throws NoSuchAlgorithmException If the file's hash algorithm is not available
+     * @throws IOException              If the file could not be checked
+     */
+    private void continueTransfer(Document fileDescriptor, String pathName, long fileSize)
+            throws NoSuchAlgorithmException, IOException {
+        long[] missing = fileSystemManager.nextMissingRange(pathName);
+        if (missing != null) {
+            requestBytes(fileDescriptor, pathName, missing[0], missing[1]);
+            return;
+        }
+        // this must be run as final step to write file
+        if (fileSystemManager.checkWriteComplete(pathName, connection)) {
+            endTransfer(pathName);
+            return;
+        }
+        if (fileSystemManager.resetFileLoader(pathName)) {
+            log.warning("Content of " + pathName + " did not match its hash, fetching it again");
+            requestBytes(fileDescriptor, pathName, 0, fileSize);
+            return;
+        }
+        endTransfer(pathName);
+        if (fileSystemManager.cancelFileLoader(pathName)) {
+            log.severe("Content of " + pathName + " did not match its hash, giving up");
+        }
+    }
+
+    /**
+     * Work out which algorithm a file descriptor's hash was computed with. Descriptors without a
+     * hashAlgorithm field come from peers that only know MD5.
+     *
+     * @param fileDescriptor the description of the file as a Document object
+     * @return the hash algorithm
+     * @throws BadMessageException If the descriptor names an algorithm we do not know
+     */
+    private HashAlgorithm hashAlgorithm(Document fileDescriptor) throws BadMessageException {
+        if (!fileDescriptor.containsKey(Commands.HASH_ALGORITHM)) return HashAlgorithm.MD5;
+        String name = fileDescriptor.getString(Commands.HASH_ALGORITHM);
+        HashAlgorithm hashAlgorithm = HashAlgorithm.fromName(name);
+        if (hashAlgorithm == null) {
+            throw new BadMessageException("Unknown hash algorithm " + name);
+        }
+        return hashAlgorithm;
+    }
+
     /**
      * Writes the reply message for all file related requests e.g. FILE_CREATE, FILE_DELETE,
      * FILE_MODIFY
@@ -392,6 +1018,30 @@ public class CommandProcessor {
         this.responses.add(replyMsg);
     }
 
+    /**
+     * Writes the reply message for file and directory move requests
+     *
+     * @param response       the response command to send
+     * @param fileDescriptor the description of the file as a Document object, or null for a directory
+     * @param fromPathName   the path the file/directory was moved from
+     * @param pathName       the path the file/directory was moved to
+     * @param status         whether the request was successfully fulfilled
+     * @param message        details of why the request succeeded/failed
+     */
+    private void moveReply(String response, Document fileDescriptor, String fromPathName, String pathName,
+                           Boolean status, String message) {
+        Document replyMsg = new Document();
+        replyMsg.append(Commands.COMMAND, response);
+        if (fileDescriptor != null) {
+            replyMsg.append(Commands.FILE_DESCRIPTOR, fileDescriptor);
+        }
+        replyMsg.append(Commands.FROM_PATH_NAME, fromPathName);
+        replyMsg.append(Commands.PATH_NAME, pathName);
+        replyMsg.append(Commands.STATUS, status);
+        replyMsg.append(Commands.MESSAGE, message);
+        this.responses.add(replyMsg);
+    }
+
     /**
      * Generate a request to the peer for a section of a file. The maximum number of bytes read is
      * controlled by the blockSize configuration value.
@@ -399,14 +1049,14 @@ public class CommandProcessor {
      * @param fileDescriptor the description of the file as a Document object
      * @param pathName       the path of the file
      * @param position       byte offset to start reading from
-     * @param fileSize       the total size of the file
+     * @param end            byte offset to read up to, at most the total size of the file
      */
-    private void requestBytes(Document fileDescriptor, String pathName, long position, long fileSize) {
+    private void requestBytes(Document fileDescriptor, String pathName, long position, long end) {
         Document msg = new Document();
 
         // calculate length to request
         long length = Configuration.getBlockSize();
-        long remaining = fileSize - position;
+        long remaining = end - position;
         if (remaining < length) length = remaining;
 
         msg.append(Commands.COMMAND, Commands.FILE_BYTES_REQUEST);
@@ -425,22 +1075,33 @@ public class CommandProcessor {
      * @param pathName       the path of the file
      * @param position       the byte offset in the file where this data starts from
      * @param length         the length of the data being sent
-     * @param content        data to be sent. Should be base64 encoded.
+     * @param content        data to be sent
      * @param message        details of why the request succeeded/failed
      * @param status         whether the request was successfully fulfilled
      */
     private void returnBytes(Document fileDescriptor, String pathName, long position, long length,
-                             String content, String message, Boolean status) {
+                             byte[] content, String message, Boolean status) {
         Document msg = new Document();
         msg.append(Commands.COMMAND, Commands.FILE_BYTES_RESPONSE);
         msg.append(Commands.FILE_DESCRIPTOR, fileDescriptor);
         msg.append(Commands.PATH_NAME, pathName);
         msg.append(Commands.POSITION, position);
         msg.append(Commands.LENGTH, length);
-        msg.append(Commands.CONTENT, content);
+        appendBytes(msg, Commands.CONTENT, content);
         msg.append(Commands.MESSAGE, message);
         msg.append(Commands.STATUS, status);
         this.responses.add(msg);
     }
 
+    /**
+     * Add binary data to a message: raw if the connection sends binary frames, base64 otherwise.
+     */
+    private void appendBytes(Document msg, String key, byte[] bytes) {
+        if (connection != null && connection.capabilities.contains(Commands.BINARY)) {
+            msg.append(key, bytes);
+        } else {
+            msg.append(key, Base64.getEncoder().encodeToString(bytes));
+        }
+    }
+
 }
\ No newline at end of file
@@ -26,6 +26,11 @@ public class Commands {
     public final static String DIRECTORY_CREATE_REQUEST = "DIRECTORY_CREATE_REQUEST";
     public final static String DIRECTORY_DELETE_REQUEST = "DIRECTORY_DELETE_REQUEST";
     public final static String FILE_BYTES_REQUEST = "FILE_BYTES_REQUEST";
+    public final static String FILE_DELTA_REQUEST = "FILE_DELTA_REQUEST";
+    public final static String FILE_CHUNKS_REQUEST = "FILE_CHUNKS_REQUEST";
+    public final static String FILE_MOVE_REQUEST = "FILE_MOVE_REQUEST";
+    public final static String DIRECTORY_MOVE_REQUEST = "DIRECTORY_MOVE_REQUEST";
+    public final static String SYNC_TREE_REQUEST = "SYNC_TREE_REQUEST";
 
     public final static String FILE_CREATE_RESPONSE = "FILE_CREATE_RESPONSE";
     public final static String FILE_DELETE_RESPONSE = "FILE_DELETE_RESPONSE";
@@ -33,6 +38,11 @@ public class Commands {
     public final static String DIRECTORY_CREATE_RESPONSE = "DIRECTORY_CREATE_RESPONSE";
     public final static String DIRECTORY_DELETE_RESPONSE = "DIRECTORY_DELETE_RESPONSE";
     public final static String FILE_BYTES_RESPONSE = "FILE_BYTES_RESPONSE";
+    public final static String FILE_DELTA_RESPONSE = "FILE_DELTA_RESPONSE";
+    public final static String FILE_CHUNKS_RESPONSE = "FILE_CHUNKS_RESPONSE";
+    public final static String FILE_MOVE_RESPONSE = "FILE_MOVE_RESPONSE";
+    public final static String DIRECTORY_MOVE_RESPONSE = "DIRECTORY_MOVE_RESPONSE";
+    public final static String SYNC_TREE_RESPONSE = "SYNC_TREE_RESPONSE";
 
     public final static String AUTH_REQUEST = "AUTH_REQUEST";
     public final static String AUTH_RESPONSE = "AUTH_RESPONSE";
@@ -66,4 +76,30 @@ public class Commands {
     public static final String IDENTITY = "identity";
     public static final String AES128 = "AES128";
     public static final String PAYLOAD = "payload";
+    public static final String HASH_ALGORITHM = "hashAlgorithm";
+    public static final String HASH_ALGORITHMS = "hashAlgorithms";
+    public static final String CAPABILITIES = "capabilities";
+    public static final String BLOCK_SIZE = "blockSize";
+    public static final String SIGNATURES = "signatures";
+    public static final String INSTRUCTIONS = "instructions";
+    public static final String CHUNK_LIST = "chunkList";
+    public static final String FROM_PATH_NAME = "fromPathName";
+    public static final String TREE_HASH = "treeHash";
+    public static final String ENTRIES = "entries";
+    public static final String NAME = "name";
+    public static final String DIRECTORY = "directory";
+    public static final String HASH = "hash";
+    public static final String SEQUENCE = "sequence";
+    public static final String EPOCH = "epoch";
+    public static final String LAST_SEEN = "lastSeen";
+    public static final String SYNC_FILTER = "syncFilter";
+
+    // list of capabilities
+    public static final String DELTA = "delta";
+    public static final String CHUNKS = "chunks";
+    public static final String MOVE = "move";
+    public static final String TREE = "tree";
+    public static final String JOURNAL = "journal";
+    public static final String BLOOM = "bloom";
+    public static final String BINARY = "binary";
 }
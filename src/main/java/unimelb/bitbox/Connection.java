@@ -1,19 +1,28 @@
 package unimelb.bitbox;
 
+import unimelb.bitbox.util.BinaryFrame;
 import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.Document;
 import unimelb.bitbox.util.FileSystemManager;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+import unimelb.bitbox.util.HashAlgorithm;
 import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.SyncFilter;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * Thread class created to handle network IO with a peer. One instance per peer.
  * This class's children are the *only* classes allowed to communicate directly to peers.
+ * A child that does its IO without a thread of its own, like {@link NIOConnection}, uses
+ * {@link #processMessage(Document)} and {@link #closed()} in place of {@link #run()}.
  * <p>
  * Also handles the initial protocol handshake and fatal errors in peer communications.
  *
@@ -26,10 +35,37 @@ public abstract class Connection extends Thread {
     public HostPort remoteHostPort; // This is the address/port the peer tells us
     public InetSocketAddress remoteAddress; // The is the address/port the connection is actually coming from
     public boolean isIncomingConnection;
+    public HashAlgorithm hashAlgorithm = HashAlgorithm.MD5; // Hash used in file descriptors sent to the peer
+    public HashSet<String> capabilities = new HashSet<>(); // Protocol extensions both we and the peer support
+    public long peerEpoch; // Epoch of the peer's change journal
+    private long[] peerLastSeen; // Epoch and sequence number of the last of our changes the peer heard about
+    private SyncFilter peerFilter; // What the peer had at the handshake, for our first sync with it
 
     public enum ConnectionState {CONNECTING, CONNECTED, DONE}
 
     public ConnectionState connectionState = ConnectionState.CONNECTING;
+    private Thread virtualThread; // The thread running this connection, if it is not running as itself
+
+    /**
+     * Start the IO thread, on a virtual thread if they are enabled (see {@link VirtualThreads}).
+     */
+    @Override
+    public synchronized void start() {
+        if (VirtualThreads.enabled()) {
+            virtualThread = VirtualThreads.start(this, getName());
+        } else {
+            super.start();
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        if (virtualThread != null) {
+            virtualThread.interrupt();
+        } else {
+            super.interrupt();
+        }
+    }
 
     /**
      * Perform the handshake with a newly-connected peer. Terminates the connection if it fails.
@@ -44,6 +80,21 @@ public abstract class Connection extends Thread {
      */
     protected abstract void sendMessageToPeer(Document message) throws IOException;
 
+    /**
+     * A message as it goes on the wire: a {@link BinaryFrame} once both we and the peer have
+     * agreed to use them, a line of JSON otherwise. Handshake messages are always JSON, as is
+     * anything sent before the handshake is done.
+     *
+     * @param message The JSON Document to be sent.
+     * @return The encoded message.
+     */
+    protected byte[] encode(Document message) {
+        if (capabilities.contains(Commands.BINARY)) {
+            return BinaryFrame.encode(message);
+        }
+        return (message.toJson() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
     /**
      * Reads message from peer; blocks on read.
      *
@@ -69,21 +120,11 @@ public abstract class Connection extends Thread {
             server.reapConnections();
             return;
         }
-        connectionState = ConnectionState.CONNECTED;
+        SyncTimer.catchUp(server, this);
         try {
             while (!interrupted()) {
-                ArrayList<Document> msgOut;
-                Document msgIn = receiveMessageFromPeer();
-                if (msgIn.getString(Commands.COMMAND).equals(Commands.INVALID_PROTOCOL)) {
-                    // That's unfortunate
-                    log.severe("Peer reckons we sent an invalid message. Disconnecting from " + this.remoteAddress);
-                    closeConnection();
-                    connectionState = ConnectionState.DONE;
-                    return;
-                }
-                msgOut = commandProcessor.handleMessage(msgIn);
-                for (Document msg : msgOut) {
-                    sendMessageToPeer(msg);
+                if (!processMessage(receiveMessageFromPeer())) {
+                    break;
                 }
             }
         } catch (IOException e) {
@@ -91,8 +132,42 @@ public abstract class Connection extends Thread {
                     ")");
         } catch (BadMessageException e) {
             terminateConnection(e.getMessage());
+        } catch (RuntimeException | Error e) {
+            // otherwise the peer would stay connected to a thread that is gone
+            log.severe("Acting on a message from " + this.remoteAddress + " failed (" + e + ")");
+            closed();
+            throw e;
         }
+        closed();
+    }
+
+    /**
+     * Act on a message from the peer and send our responses.
+     *
+     * @param msgIn The message
+     * @return false if the peer has given up on us and the connection should be closed
+     * @throws IOException         If communication fails
+     * @throws BadMessageException If the message is not well-formed
+     */
+    protected boolean processMessage(Document msgIn) throws IOException, BadMessageException {
+        if (msgIn.getString(Commands.COMMAND).equals(Commands.INVALID_PROTOCOL)) {
+            // That's unfortunate
+            log.severe("Peer reckons we sent an invalid message. Disconnecting from " + this.remoteAddress);
+            return false;
+        }
+        for (Document msg : commandProcessor.handleMessage(msgIn)) {
+            sendMessageToPeer(msg);
+        }
+        return true;
+    }
+
+    /**
+     * Clean up after the connection to the peer has been lost or given up on.
+     */
+    protected void closed() {
         closeConnection();
+        // anything we were receiving can be resumed later, from this peer or another
+        commandProcessor.suspendTransfers();
         connectionState = ConnectionState.DONE;
         server.reapConnections();
     }
@@ -105,12 +180,34 @@ public abstract class Connection extends Thread {
      * @throws BadMessageException If we received an incorrect message
      */
     protected boolean sendHandshake() throws IOException, BadMessageException {
+        sendMessageToPeer(handshakeRequest());
+        return handshakeReplied(receiveMessageFromPeer());
+    }
+
+    /**
+     * Our half of the handshake as the initiating party, see {@link #sendHandshake()}.
+     *
+     * @return The handshake request to send
+     */
+    protected Document handshakeRequest() {
         Document doc = new Document();
         doc.append(Commands.COMMAND, Commands.HANDSHAKE_REQUEST);
         doc.append(Commands.HOST_PORT, Configuration.getLocalHostPort());
-        sendMessageToPeer(doc);
+        doc.append(Commands.HASH_ALGORITHMS, supportedHashAlgorithms());
+        doc.append(Commands.CAPABILITIES, localCapabilities());
+        appendJournalPosition(doc);
+        appendSyncFilter(doc);
+        return doc;
+    }
 
-        Document reply = receiveMessageFromPeer();
+    /**
+     * Act on the peer's reply to our handshake request, see {@link #sendHandshake()}.
+     *
+     * @param reply The first message from the peer
+     * @return false if we got CONNECTION_REFUSED, true otherwise
+     * @throws BadMessageException If we received an incorrect message
+     */
+    protected boolean handshakeReplied(Document reply) throws BadMessageException {
         if (reply.getString(Commands.COMMAND).equals(Commands.CONNECTION_REFUSED)) {
             ArrayList<HostPort> peers = new ArrayList<>();
             for (Document peer : reply.getListOfDocuments(Commands.PEERS)) {
@@ -123,6 +220,7 @@ public abstract class Connection extends Thread {
                     "response, responded with " + reply.getString(Commands.COMMAND));
         }
         remoteHostPort = new HostPort(reply.getDocument(Commands.HOST_PORT));
+        negotiateExtensions(reply);
         return true;
     }
 
@@ -134,7 +232,18 @@ public abstract class Connection extends Thread {
      * @throws BadMessageException If we received an incorrect message
      */
     protected boolean receiveHandshake() throws IOException, BadMessageException {
-        Document request = receiveMessageFromPeer();
+        return handshakeRequested(receiveMessageFromPeer());
+    }
+
+    /**
+     * Act on the peer's handshake request and reply to it, see {@link #receiveHandshake()}.
+     *
+     * @param request The first message from the peer
+     * @return false if we sent CONNECTION_REFUSED because we are at maximumIncommingConnections, true otherwise
+     * @throws IOException         If communication fails
+     * @throws BadMessageException If we received an incorrect message
+     */
+    protected boolean handshakeRequested(Document request) throws IOException, BadMessageException {
         if (!request.getString(Commands.COMMAND).equals(Commands.HANDSHAKE_REQUEST)) {
             throw new BadMessageException("Peer " + this.remoteAddress + " did not open with handshake request");
         }
@@ -147,17 +256,261 @@ public abstract class Connection extends Thread {
         Document reply = new Document();
         reply.append(Commands.COMMAND, Commands.HANDSHAKE_RESPONSE);
         reply.append(Commands.HOST_PORT, Configuration.getLocalHostPort());
+        reply.append(Commands.HASH_ALGORITHMS, supportedHashAlgorithms());
+        reply.append(Commands.CAPABILITIES, localCapabilities());
+        appendJournalPosition(reply);
+        appendSyncFilter(reply);
         sendMessageToPeer(reply);
+        negotiateExtensions(request);
         return true;
     }
 
     /**
-     * Inform the peer about a file-related event (i.e create/modify/delete) on our file system.
+     * The names of every hash algorithm we can verify file contents with, for the handshake.
+     */
+    private static ArrayList<String> supportedHashAlgorithms() {
+        ArrayList<String> names = new ArrayList<>();
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            names.add(algorithm.wireName);
+        }
+        return names;
+    }
+
+    /**
+     * The protocol extensions this connection can use, for the handshake.
+     */
+    protected ArrayList<String> localCapabilities() {
+        ArrayList<String> names = new ArrayList<>();
+        names.add(Commands.DELTA);
+        names.add(Commands.CHUNKS);
+        names.add(Commands.MOVE);
+        names.add(Commands.TREE);
+        names.add(Commands.JOURNAL);
+        names.add(Commands.BLOOM);
+        names.add(Commands.BINARY);
+        return names;
+    }
+
+    /**
+     * Add to our handshake message a filter of what our share directory holds, so that the peer's
+     * first sync with us can leave it out.
+     *
+     * @param handshake Our handshake message
+     */
+    private void appendSyncFilter(Document handshake) {
+        if (!localCapabilities().contains(Commands.BLOOM)) return;
+        int maxBytes = Integer.parseInt(Configuration.getConfigurationValue("syncFilterSize", "1048576"));
+        SyncFilter filter = server.fileSystemManager.syncFilter(maxBytes);
+        if (filter != null) handshake.append(Commands.SYNC_FILTER, filter.toDoc());
+    }
+
+    /**
+     * Add to our handshake message the epoch of our change journal, and the last of the peer's
+     * changes we heard about if we have talked to it before.
+     *
+     * @param handshake Our handshake message
+     */
+    private void appendJournalPosition(Document handshake) {
+        handshake.append(Commands.EPOCH, server.fileSystemManager.journalEpoch());
+        long[] lastSeen = server.lastSeen(journalKey());
+        if (lastSeen != null) {
+            Document position = new Document();
+            position.append(Commands.EPOCH, lastSeen[0]);
+            position.append(Commands.SEQUENCE, lastSeen[1]);
+            handshake.append(Commands.LAST_SEEN, position);
+        }
+    }
+
+    /**
+     * The name we remember the peer's changes under: the address we dialled if we connected to it,
+     * as we need it before the peer says who it is, and the address it gives otherwise.
+     */
+    String journalKey() {
+        if (isIncomingConnection) return remoteHostPort.toString();
+        return remoteAddress.getHostString() + ":" + remoteAddress.getPort();
+    }
+
+    /**
+     * Note that we heard about one of the peer's changes.
+     *
+     * @param sequence The change's sequence number in the peer's journal
+     */
+    void journalSeen(long sequence) {
+        if (capabilities.contains(Commands.JOURNAL)) {
+            server.journalSeen(journalKey(), peerEpoch, sequence);
+        }
+    }
+
+    /**
+     * Forget which of the peer's changes we heard about, so that the next connection syncs in full.
+     */
+    void forgetJournal() {
+        if (capabilities.contains(Commands.JOURNAL)) {
+            server.forgetJournal(journalKey());
+        }
+    }
+
+    /**
+     * Describe files to the peer with our share directory's hash algorithm if its handshake said it
+     * understands it, and with MD5 otherwise. Peers that say nothing only understand MD5.
+     * Likewise, only use the protocol extensions that both of us listed.
+     *
+     * @param handshake The peer's handshake message
+     * @throws BadMessageException If the list of algorithms or capabilities is malformed
+     */
+    private void negotiateExtensions(Document handshake) throws BadMessageException {
+        List<String> names = handshake.getListOfStrings(Commands.HASH_ALGORITHMS);
+        HashAlgorithm ours = server.fileSystemManager.getHashAlgorithm();
+        hashAlgorithm = names.contains(ours.wireName) ? ours : HashAlgorithm.MD5;
+        log.info("Using " + hashAlgorithm.wireName + " file hashes with " + this.remoteAddress);
+        capabilities = new HashSet<>(localCapabilities());
+        capabilities.retainAll(handshake.getListOfStrings(Commands.CAPABILITIES));
+        if (!capabilities.isEmpty()) {
+            log.info("Using " + capabilities + " with " + this.remoteAddress);
+        }
+        if (capabilities.contains(Commands.JOURNAL)) {
+            peerEpoch = handshake.getLong(Commands.EPOCH);
+            if (handshake.containsKey(Commands.LAST_SEEN)) {
+                Document position = handshake.getDocument(Commands.LAST_SEEN);
+                peerLastSeen = new long[]{position.getLong(Commands.EPOCH), position.getLong(Commands.SEQUENCE)};
+            }
+        }
+        if (capabilities.contains(Commands.BLOOM) && handshake.containsKey(Commands.SYNC_FILTER)) {
+            peerFilter = SyncFilter.fromDoc(handshake.getDocument(Commands.SYNC_FILTER));
+        }
+    }
+
+    /**
+     * Bring the peer up to date once it has connected: with the changes it missed if it told us the
+     * last of ours it heard about and the journal still has everything since, and with a full sync
+     * otherwise. A full sync leaves out whatever the filter the peer sent with its handshake says it
+     * already has.
+     *
+     * @throws IOException If communication fails
+     */
+    public void catchUp() throws IOException {
+        SyncFilter peerHas = peerFilter;
+        // only good for the first sync
+        peerFilter = null;
+        if (capabilities.contains(Commands.JOURNAL) && peerLastSeen != null) {
+            ArrayList<FileSystemEvent> changes =
+                    server.fileSystemManager.changesSince(peerLastSeen[0], peerLastSeen[1]);
+            if (changes != null) {
+                log.info("Sending " + this.remoteAddress + " the " + changes.size() + " changes it missed");
+                for (FileSystemEvent change : changes) {
+                    // as with new events, changes made on behalf of the peer are not sent back to it
+                    if (change.origin instanceof Connection &&
+                            ((Connection) change.origin).journalKey().equals(journalKey())) {
+                        continue;
+                    }
+                    sendEvent(change);
+                }
+                return;
+            }
+        }
+        if (peerHas != null && peerHas.hashAlgorithm == server.fileSystemManager.getHashAlgorithm()) {
+            ArrayList<FileSystemEvent> missing = server.fileSystemManager.generateSyncEventsExcept(peerHas);
+            log.info("Syncing " + this.remoteAddress + " with the " + missing.size() +
+                    " files and directories it seems to lack");
+            for (FileSystemEvent event : missing) {
+                sendEvent(event);
+            }
+            return;
+        }
+        log.info("Syncing " + this.remoteAddress + " in full");
+        if (usesTreeSync()) {
+            sendTreeSync();
+            return;
+        }
+        for (FileSystemEvent event : server.fileSystemManager.generateSyncEvents()) {
+            sendEvent(event);
+        }
+    }
+
+    /**
+     * Inform the peer about any event on our file system.
+     *
+     * @param fileSystemEvent The event that occurred
+     * @throws IOException If communication fails
+     */
+    private void sendEvent(FileSystemEvent fileSystemEvent) throws IOException {
+        if (fileSystemEvent.fileDescriptor != null) {
+            sendFileReq(fileSystemEvent);
+        } else {
+            sendDirReq(fileSystemEvent);
+        }
+    }
+
+    /**
+     * Inform the peer about a file-related event (i.e create/modify/delete/move) on our file system.
      *
      * @param fileSystemEvent The file event that occurred
      * @throws IOException If communication fails
      */
     public void sendFileReq(FileSystemEvent fileSystemEvent) throws IOException {
+        if (fileSystemEvent.event == FileSystemManager.EVENT.FILE_MOVE && !capabilities.contains(Commands.MOVE)) {
+            sendExpandedMove(fileSystemEvent);
+            return;
+        }
+        sendMessageToPeer(fileRequest(fileSystemEvent));
+    }
+
+    /**
+     * Inform the peer about a directory-related event (i.e create/delete/move) on our file system.
+     *
+     * @param fileSystemEvent the directory event that occurred
+     * @throws IOException if communication fails
+     */
+    public void sendDirReq(FileSystemEvent fileSystemEvent) throws IOException {
+        if (fileSystemEvent.event == FileSystemManager.EVENT.DIRECTORY_MOVE &&
+                !capabilities.contains(Commands.MOVE)) {
+            sendExpandedMove(fileSystemEvent);
+            return;
+        }
+        sendMessageToPeer(dirRequest(fileSystemEvent));
+    }
+
+    /**
+     * Send the peer the creations and deletions a move stands for, as it does not understand moves.
+     *
+     * @param fileSystemEvent the move that occurred
+     * @throws IOException if communication fails
+     */
+    private void sendExpandedMove(FileSystemEvent fileSystemEvent) throws IOException {
+        for (Document doc : expandedMoveRequests(fileSystemEvent.fromPathName, fileSystemEvent.pathName)) {
+            sendMessageToPeer(doc);
+        }
+    }
+
+    /**
+     * The requests for the creations and deletions that a move stands for, creations first so that
+     * the peer can still copy the content from the old name.
+     *
+     * @param fromPathName the name moved from
+     * @param pathName     the name moved to
+     * @return the requests, in the order they should be sent
+     * @throws IOException If a file could not be described
+     */
+    ArrayList<Document> expandedMoveRequests(String fromPathName, String pathName) throws IOException {
+        ArrayList<Document> requests = new ArrayList<>();
+        for (FileSystemEvent event : server.fileSystemManager.expandMove(fromPathName, pathName)) {
+            if (event.fileDescriptor != null) {
+                requests.add(fileRequest(event));
+            } else {
+                requests.add(dirRequest(event));
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Build the request for a file-related event.
+     *
+     * @param fileSystemEvent The file event that occurred
+     * @return The request message
+     * @throws IOException If the file could not be described
+     */
+    private Document fileRequest(FileSystemEvent fileSystemEvent) throws IOException {
         Document doc = new Document();
         String command;
 
@@ -166,30 +519,53 @@ public abstract class Connection extends Thread {
             command = Commands.FILE_CREATE_REQUEST;
         } else if (fileSystemEvent.event == FileSystemManager.EVENT.FILE_DELETE) {
             command = Commands.FILE_DELETE_REQUEST;
+        } else if (fileSystemEvent.event == FileSystemManager.EVENT.FILE_MOVE) {
+            command = Commands.FILE_MOVE_REQUEST;
         } else {
             command = Commands.FILE_MODIFY_REQUEST;
         }
 
         // write request message
         doc.append(Commands.COMMAND, command);
-        doc.append(Commands.FILE_DESCRIPTOR, fileSystemEvent.fileDescriptor.toDoc());
+        try {
+            doc.append(Commands.FILE_DESCRIPTOR,
+                    server.fileSystemManager.describe(fileSystemEvent, hashAlgorithm).toDoc());
+        } catch (NoSuchAlgorithmException e) {
+            log.severe("Missing hashing algorithm: " + e.getLocalizedMessage());
+            System.exit(1);
+        }
         doc.append(Commands.PATH_NAME, fileSystemEvent.pathName);
-        sendMessageToPeer(doc);
+        if (fileSystemEvent.fromPathName != null) {
+            doc.append(Commands.FROM_PATH_NAME, fileSystemEvent.fromPathName);
+        }
+        appendSequence(doc, fileSystemEvent);
+        return doc;
+    }
+
+    /**
+     * Number a request with the sequence number of its event, for peers that catch up from our journal.
+     */
+    private void appendSequence(Document doc, FileSystemEvent fileSystemEvent) {
+        if (fileSystemEvent.sequence > 0 && capabilities.contains(Commands.JOURNAL)) {
+            doc.append(Commands.SEQUENCE, fileSystemEvent.sequence);
+        }
     }
 
     /**
-     * Inform the peer about a directory-related event (i.e create/delete) on our file system.
+     * Build the request for a directory-related event.
      *
      * @param fileSystemEvent the directory event that occurred
-     * @throws IOException if communication fails
+     * @return The request message
      */
-    public void sendDirReq(FileSystemEvent fileSystemEvent) throws IOException {
+    private Document dirRequest(FileSystemEvent fileSystemEvent) {
         Document doc = new Document();
         String command;
 
         // determine correct request
         if (fileSystemEvent.event == FileSystemManager.EVENT.DIRECTORY_CREATE) {
             command = Commands.DIRECTORY_CREATE_REQUEST;
+        } else if (fileSystemEvent.event == FileSystemManager.EVENT.DIRECTORY_MOVE) {
+            command = Commands.DIRECTORY_MOVE_REQUEST;
         } else {
             command = Commands.DIRECTORY_DELETE_REQUEST;
         }
@@ -197,7 +573,65 @@ public abstract class Connection extends Thread {
         // write request message
         doc.append(Commands.COMMAND, command);
         doc.append(Commands.PATH_NAME, fileSystemEvent.pathName);
-        sendMessageToPeer(doc);
+        if (fileSystemEvent.fromPathName != null) {
+            doc.append(Commands.FROM_PATH_NAME, fileSystemEvent.fromPathName);
+        }
+        appendSequence(doc, fileSystemEvent);
+        return doc;
+    }
+
+    /**
+     * Whether periodic syncs with this peer compare directory trees rather than announcing every
+     * file and directory. Tree hashes cover file digests, so both of us must use the same algorithm.
+     */
+    public boolean usesTreeSync() {
+        return capabilities.contains(Commands.TREE) && hashAlgorithm == server.fileSystemManager.getHashAlgorithm();
+    }
+
+    /**
+     * Start a periodic sync by comparing our whole share directory with the peer's.
+     *
+     * @throws IOException If communication fails
+     */
+    public void sendTreeSync() throws IOException {
+        Document request = treeRequest("");
+        if (request != null) sendMessageToPeer(request);
+    }
+
+    /**
+     * Build the request asking the peer to compare one of our directories with its own.
+     *
+     * @param pathName the directory, empty for the share directory
+     * @return the request, or null if the directory is no longer watched
+     */
+    Document treeRequest(String pathName) {
+        String treeHash = server.fileSystemManager.treeHash(pathName);
+        if (treeHash == null) return null;
+        Document doc = new Document();
+        doc.append(Commands.COMMAND, Commands.SYNC_TREE_REQUEST);
+        doc.append(Commands.PATH_NAME, pathName);
+        doc.append(Commands.TREE_HASH, treeHash);
+        return doc;
+    }
+
+    /**
+     * The requests that create a file, or a directory and everything in it, on a peer that does not
+     * have it at all.
+     *
+     * @param pathName the file/directory, empty for the share directory
+     * @return the requests, parents first
+     * @throws IOException If a file could not be described
+     */
+    ArrayList<Document> syncRequests(String pathName) throws IOException {
+        ArrayList<Document> requests = new ArrayList<>();
+        for (FileSystemEvent event : server.fileSystemManager.generateSyncEvents(pathName)) {
+            if (event.fileDescriptor != null) {
+                requests.add(fileRequest(event));
+            } else {
+                requests.add(dirRequest(event));
+            }
+        }
+        return requests;
     }
 
     /**
@@ -0,0 +1,76 @@
+package unimelb.bitbox;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A thread that does the socket IO of any number of {@link NIOConnection}s, reading and writing
+ * whenever their channels are ready. It never blocks on anything but the selector, so the work of
+ * acting on messages is left to the connections' worker threads.
+ * <p>
+ * Selection keys are only touched on the loop's own thread; other threads hand it tasks instead.
+ *
+ * @author TransfictionRailways
+ */
+class EventLoop extends Thread {
+    private static Logger log = Logger.getLogger(Server.class.getName());
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop(String name) throws IOException {
+        super(name);
+        selector = Selector.open();
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Run a task on the loop's thread, as soon as it next wakes up.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Start reading from a connection's channel, which must be in non-blocking mode.
+     */
+    void register(SocketChannel channel, NIOConnection connection) {
+        execute(() -> {
+            try {
+                connection.registered(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                connection.failed(e);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.severe("Selector failed, " + getName() + " exiting: " + e.getMessage());
+                return;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    ((NIOConnection) key.attachment()).ready(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,615 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.util.BinaryFrame;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TCP connection to a peer without a thread of its own. Its socket IO is done by an
+ * {@link EventLoop} shared with other connections, and the messages it receives are acted on by
+ * the server's worker threads, one message at a time and in the order they arrived.
+ * <p>
+ * The {@link EventLoop} splits what it reads into lines and binary frames (see
+ * {@link Connection#encode(Document)}), which queue in an inbox until a worker
+ * gets to them. If the inbox fills up, reading from the peer stops until the worker catches up.
+ * Messages we send are written by the sending thread as far as the socket will take them, and the
+ * rest queue in an outbox for the event loop to write when it can. A thread sending while the
+ * outbox holds more than <code>writeQueueLimit</code> bytes waits for it to drain, as it would have
+ * waited on a blocking socket. A peer may not send a message longer than
+ * <code>maxMessageSize</code> bytes, and has <code>handshakeTimeout</code> milliseconds to answer
+ * the handshake.
+ *
+ * @author TransfictionRailways
+ */
+public class NIOConnection extends Connection {
+    // put in the inbox, after whatever was read before, once the connection is closed
+    private static final Object CLOSED = new Object();
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_INBOX = 1024; // messages
+    private static final int DRAIN_BATCH = 32; // messages acted on before letting other connections have the worker
+    private static final int MAX_GATHER = 64; // messages written at once
+
+    private final int maxMessageSize = Integer.parseInt(Configuration.getConfigurationValue("maxMessageSize",
+            "67108864"));
+    private final long writeQueueLimit = Long.parseLong(Configuration.getConfigurationValue("writeQueueLimit",
+            "4194304"));
+    private final long handshakeTimeout = Long.parseLong(Configuration.getConfigurationValue("handshakeTimeout",
+            "30000"));
+    private SocketChannel channel;
+    private EventLoop loop;
+    private ExecutorService workers;
+    private ScheduledFuture<?> handshakeTimer;
+
+    // Only touched on the event loop's thread
+    private SelectionKey key;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteArrayOutputStream partial = new ByteArrayOutputStream(); // the start of a line still being read
+    private final byte[] frameHeader = new byte[BinaryFrame.HEADER_LENGTH];
+    private int frameHeaderFilled; // how much of a frame header has been read, if it is part way through one
+    private byte[] frame; // the body of a frame still being read
+    private int frameFilled;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    // Lines and frames read but not yet acted on
+    private final LinkedBlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean readingPaused = new AtomicBoolean();
+    private volatile boolean handshaken;
+
+    // Messages not yet written
+    private final ConcurrentLinkedQueue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // Set while a sender or the event loop is writing the outbox, or the event loop is waiting to
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final Object writable = new Object();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * This constructor initiates a connection to a peer. It does not return until
+     * the connection is established; the handshake carries on in the background.
+     *
+     * @param server        An instance of the main server object
+     * @param remoteAddress The address/port target to connect to
+     */
+    public NIOConnection(TCPServer server, InetSocketAddress remoteAddress) {
+        isIncomingConnection = false;
+        this.remoteAddress = remoteAddress;
+        log.info("Start new connection to outgoing peer at " + remoteAddress);
+        this.server = server;
+        this.commandProcessor = new CommandProcessor(server.fileSystemManager, this);
+        try {
+            channel = SocketChannel.open(remoteAddress);
+        } catch (IOException | UnresolvedAddressException e) {
+            log.severe("Socket creation failed, connection to " + remoteAddress + " abandoned");
+            connectionState = ConnectionState.DONE;
+            return;
+        }
+        server.registerNewConnection(this);
+        begin(server);
+    }
+
+    /**
+     * This is for accepting incoming connections.
+     *
+     * @param channel A channel from accept() connected to the peer
+     */
+    public NIOConnection(TCPServer server, SocketChannel channel) {
+        isIncomingConnection = true;
+        this.remoteAddress = new InetSocketAddress(channel.socket().getInetAddress(), channel.socket().getPort());
+        log.info("Start new connection to incoming peer at " + this.remoteAddress);
+        this.server = server;
+        this.commandProcessor = new CommandProcessor(server.fileSystemManager, this);
+        this.channel = channel;
+        begin(server);
+    }
+
+    private void begin(TCPServer server) {
+        loop = server.nextEventLoop();
+        workers = server.workers;
+        handshakeTimer = server.timer.schedule(this::handshakeTimedOut, handshakeTimeout, TimeUnit.MILLISECONDS);
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            log.severe("Setting up new peer connection to " + this.remoteAddress + " failed");
+            closeConnection();
+            connectionState = ConnectionState.DONE;
+            return;
+        }
+        loop.register(channel, this);
+        if (!isIncomingConnection) {
+            workers.execute(this::requestHandshake);
+        }
+    }
+
+    /**
+     * Nothing runs this as a thread; see {@link #drain()} instead.
+     */
+    @Override
+    public void run() {
+        throw new UnsupportedOperationException("NIOConnection has no IO thread");
+    }
+
+    /**
+     * Disconnect from the peer. The connection is cleaned up once whatever it had already
+     * received has been acted on.
+     */
+    @Override
+    public void interrupt() {
+        closeConnection();
+    }
+
+    /**
+     * Not used, as waiting for the peer would tie up a worker thread. The handshake is instead done
+     * by {@link #requestHandshake()} and {@link #handshake(Object)}.
+     */
+    @Override
+    protected boolean initialise() {
+        throw new UnsupportedOperationException("NIOConnection handshakes as messages arrive");
+    }
+
+    /**
+     * Send our handshake request to the peer we connected to, on a worker thread. Its reply is acted
+     * on by {@link #drain()} like any other message.
+     */
+    private void requestHandshake() {
+        try {
+            sendMessageToPeer(handshakeRequest());
+        } catch (IOException e) {
+            log.severe("Setting up new peer connection failed, connection to "
+                    + this.remoteAddress + " abandoned (" + e.getMessage() + ")");
+            closeConnection();
+        }
+    }
+
+    /**
+     * Act on the first message from the peer, which completes the handshake, then start acting on its
+     * other messages.
+     *
+     * @param input The first line or frame from the peer
+     * @return false if the handshake failed and the connection has been given up on
+     */
+    private boolean handshake(Object input) {
+        boolean success;
+        try {
+            if (input == CLOSED) {
+                throw new IOException("connection closed");
+            }
+            if (isIncomingConnection) {
+                success = handshakeRequested(parse(input));
+            } else {
+                success = handshakeReplied(parse(input));
+            }
+            if (!success) {
+                log.severe("Did not connect to " + this.remoteAddress);
+            }
+        } catch (IOException e) {
+            log.severe("Setting up new peer connection failed, connection to "
+                    + this.remoteAddress + " abandoned (" + e.getMessage() + ")");
+            success = false;
+        } catch (BadMessageException e) {
+            terminateConnection(e.getMessage());
+            success = false;
+        }
+        handshakeTimer.cancel(false);
+        if (!success) {
+            closeConnection();
+            connectionState = ConnectionState.DONE;
+            server.reapConnections();
+            return false;
+        }
+        handshaken = true;
+        SyncTimer.catchUp(server, this);
+        return true;
+    }
+
+    /**
+     * Give up on a peer that has not finished the handshake in time, on the server's timer thread.
+     */
+    private void handshakeTimedOut() {
+        if (!handshaken) {
+            log.warning("Peer " + this.remoteAddress + " did not finish the handshake within " + handshakeTimeout + " ms");
+            closeConnection();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            workers.execute(this::drain);
+        }
+    }
+
+    /**
+     * Act on the messages in the inbox, on a worker thread. Only one worker drains a connection at
+     * a time, and after a batch of messages it goes to the back of the queue for the others.
+     */
+    private void drain() {
+        try {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Object input = inbox.poll();
+                if (input == null) {
+                    break;
+                }
+                // the connection stays draining from here on, so that nothing acts on it after it is given up on
+                if (!handshaken) {
+                    if (!handshake(input)) {
+                        return;
+                    }
+                    continue;
+                }
+                if (input == CLOSED || !processMessage(parse(input))) {
+                    closed();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            log.severe("Communication to " + this.remoteAddress + " failed (" + e.getMessage() + ")");
+            closed();
+            return;
+        } catch (BadMessageException e) {
+            terminateConnection(e.getMessage());
+            closed();
+            return;
+        } catch (RuntimeException | Error e) {
+            // otherwise the connection would stay draining, with nothing ever acting on it again
+            log.severe("Acting on a message from " + this.remoteAddress + " failed (" + e + ")");
+            closed();
+            throw e;
+        }
+        if (inbox.size() <= MAX_INBOX / 2 && readingPaused.compareAndSet(true, false)) {
+            loop.execute(this::resumeReading);
+        }
+        draining.set(false);
+        if (!inbox.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Not used; messages are acted on by {@link #drain()} as they arrive.
+     */
+    @Override
+    protected Document receiveMessageFromPeer() {
+        throw new UnsupportedOperationException("NIOConnection has no IO thread");
+    }
+
+    @Override
+    protected void sendMessageToPeer(Document message) throws IOException {
+        byte[] bytes = encode(message);
+        synchronized (writable) {
+            try {
+                while (queuedBytes.get() > writeQueueLimit && !closed.get()) {
+                    writable.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted waiting to send");
+            }
+        }
+        if (closed.get()) {
+            throw new IOException("connection closed");
+        }
+        outbox.add(ByteBuffer.wrap(bytes));
+        queuedBytes.addAndGet(bytes.length);
+        if (writing.compareAndSet(false, true)) {
+            writeNow();
+        }
+        //log.info("Sent message to peer: " + message);
+    }
+
+    /**
+     * Write what has been sent and close the channel, on the event loop's thread. Anything the
+     * socket will not take straight away is dropped.
+     */
+    @Override
+    protected void closeConnection() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (writable) {
+            writable.notifyAll();
+        }
+        inbox.add(CLOSED);
+        scheduleDrain();
+        if (loop == null) {
+            return;
+        }
+        loop.execute(() -> {
+            try {
+                // unless a sender is in the middle of writing
+                if (key != null && key.isValid() &&
+                        ((key.interestOps() & SelectionKey.OP_WRITE) != 0 || writing.compareAndSet(false, true))) {
+                    write();
+                }
+            } catch (IOException e) {
+                // Ignore, we're closing anyway
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        });
+    }
+
+    /**
+     * Called by the event loop once the channel is registered with it.
+     */
+    void registered(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Called by the event loop when the channel fails.
+     */
+    void failed(IOException e) {
+        log.severe("Communication to " + this.remoteAddress + " failed (" + e.getMessage() + ")");
+        closeConnection();
+    }
+
+    /**
+     * Called by the event loop when the channel can be read from or written to.
+     */
+    void ready(SelectionKey key) {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            if (key.isWritable()) {
+                write();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void flush() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            write();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Read what the peer has sent, queueing each complete line or frame in the inbox.
+     */
+    private void read() throws IOException {
+        if (frame != null) {
+            // no point copying a large frame through the read buffer
+            int count = channel.read(ByteBuffer.wrap(frame, frameFilled, frame.length - frameFilled));
+            if (count < 0) {
+                closedByPeer();
+                return;
+            }
+            frameFilled += count;
+            if (frameFilled == frame.length) {
+                received(frame);
+                frame = null;
+            }
+            pauseIfBehind();
+            return;
+        }
+        int count = channel.read(readBuffer);
+        if (count < 0) {
+            closedByPeer();
+            return;
+        }
+        byte[] bytes = readBuffer.array();
+        int end = readBuffer.position();
+        int i = 0;
+        while (i < end) {
+            if (frame != null) {
+                int length = Math.min(end - i, frame.length - frameFilled);
+                System.arraycopy(bytes, i, frame, frameFilled, length);
+                frameFilled += length;
+                i += length;
+                if (frameFilled == frame.length) {
+                    received(frame);
+                    frame = null;
+                }
+            } else if (frameHeaderFilled > 0 || (partial.size() == 0 && bytes[i] == BinaryFrame.MAGIC)) {
+                frameHeader[frameHeaderFilled++] = bytes[i++];
+                if (frameHeaderFilled == BinaryFrame.HEADER_LENGTH) {
+                    frameHeaderFilled = 0;
+                    int length = BinaryFrame.bodyLength(frameHeader);
+                    if (length < 0 || length > maxMessageSize) {
+                        throw new IOException("frame of " + length + " bytes is too long");
+                    }
+                    frame = new byte[length];
+                    frameFilled = 0;
+                    if (length == 0) {
+                        received(frame);
+                        frame = null;
+                    }
+                }
+            } else {
+                int newline = i;
+                while (newline < end && bytes[newline] != '\n') {
+                    newline++;
+                }
+                if (newline == end) {
+                    partial.write(bytes, i, end - i);
+                    if (partial.size() > maxMessageSize) {
+                        throw new IOException("message longer than " + maxMessageSize + " bytes");
+                    }
+                } else {
+                    receivedLine(bytes, i, newline);
+                }
+                i = newline + 1;
+            }
+        }
+        readBuffer.clear();
+        pauseIfBehind();
+    }
+
+    private void closedByPeer() {
+        log.info("Peer " + this.remoteAddress + " closed the connection");
+        closeConnection();
+    }
+
+    /**
+     * Stop reading from the peer while the inbox is full.
+     */
+    private void pauseIfBehind() {
+        if (inbox.size() >= MAX_INBOX) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            readingPaused.set(true);
+            // the inbox may have been drained before we paused
+            if (inbox.size() <= MAX_INBOX / 2 && readingPaused.compareAndSet(true, false)) {
+                resumeReading();
+            }
+        }
+    }
+
+    private void receivedLine(byte[] bytes, int start, int end) throws IOException {
+        String line;
+        if (partial.size() > 0) {
+            partial.write(bytes, start, end - start);
+            line = partial.toString("UTF-8");
+            if (partial.size() > READ_BUFFER_SIZE) {
+                // don't hang on to the space for one long message
+                partial = new ByteArrayOutputStream();
+            } else {
+                partial.reset();
+            }
+        } else {
+            line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        received(line);
+    }
+
+    /**
+     * Queue a message for a worker to act on.
+     *
+     * @param message A line of JSON, or the body of a binary frame
+     */
+    private void received(Object message) {
+        inbox.add(message);
+        scheduleDrain();
+    }
+
+    /**
+     * @param message A line of JSON, or the body of a binary frame
+     * @throws BadMessageException If the message is malformed, or a frame arrives before binary was negotiated
+     */
+    private Document parse(Object message) throws BadMessageException {
+        if (message instanceof byte[]) {
+            if (!capabilities.contains(Commands.BINARY)) {
+                throw new BadMessageException("Binary frame before binary was negotiated");
+            }
+            return BinaryFrame.decode((byte[]) message);
+        }
+        return Document.parse((String) message);
+    }
+
+    private void resumeReading() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Write as much of the outbox as the socket will take, and watch for it becoming writable
+     * again if there is more.
+     */
+    private void write() throws IOException {
+        while (true) {
+            int count = 0;
+            for (ByteBuffer buffer : outbox) {
+                gather[count++] = buffer;
+                if (count == MAX_GATHER) {
+                    break;
+                }
+            }
+            if (count > 0) {
+                long written = channel.write(gather, 0, count);
+                for (int i = 0; i < count && !gather[i].hasRemaining(); i++) {
+                    outbox.poll();
+                }
+                boolean full = gather[count - 1].hasRemaining();
+                Arrays.fill(gather, 0, count, null);
+                wrote(written);
+                if (full) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                continue;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writing.set(false);
+            // something may have been sent since we found the outbox empty
+            if (outbox.isEmpty() || !writing.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write the outbox on the sending thread, as far as the socket will take it without blocking,
+     * rather than waking the event loop for every message. Whatever is left is handed to the event loop.
+     */
+    private void writeNow() throws IOException {
+        try {
+            while (true) {
+                ByteBuffer buffer;
+                while ((buffer = outbox.peek()) != null) {
+                    int written = channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        wrote(written);
+                        loop.execute(this::flush);
+                        return;
+                    }
+                    outbox.poll();
+                    wrote(written);
+                }
+                writing.set(false);
+                // something may have been sent since we found the outbox empty
+                if (outbox.isEmpty() || !writing.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            writing.set(false);
+            failed(e);
+            throw e;
+        }
+    }
+
+    private void wrote(long written) {
+        long before = queuedBytes.getAndAdd(-written);
+        if (before > writeQueueLimit && before - written <= writeQueueLimit) {
+            synchronized (writable) {
+                writable.notifyAll();
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -21,6 +23,11 @@ public abstract class Server extends Thread implements FileSystemObserver {
     protected static Logger log = Logger.getLogger(Server.class.getName());
     protected List<Connection> connections = Collections.synchronizedList(new ArrayList<>());
     public FileSystemManager fileSystemManager;
+    public TransferScheduler transferScheduler = new TransferScheduler();
+    // peer -> journal epoch and sequence number of the last of its changes we heard about
+    private final ConcurrentHashMap<String, long[]> lastSeen = new ConcurrentHashMap<>();
+    // events waiting for the publisher thread to send them to the peers, in journal order
+    private final LinkedBlockingQueue<FileSystemEvent> unpublished = new LinkedBlockingQueue<>();
 
     public void registerNewConnection(Connection connection) {
         reapConnections();
@@ -35,6 +42,9 @@ public abstract class Server extends Thread implements FileSystemObserver {
     public abstract void mainLoop() throws IOException;
 
     public void run() {
+        Thread publisher = new Thread(this::publishEvents, "event publisher");
+        publisher.setDaemon(true);
+        publisher.start();
         SyncTimer.startEvents(this, fileSystemManager);
         try {
             mainLoop();
@@ -52,7 +62,7 @@ public abstract class Server extends Thread implements FileSystemObserver {
                     if (Peer.udpMode) {
                         new UDPConnection((UDPServer) this, remoteAddress, false);
                     } else {
-                        new TCPConnection((TCPServer) this, remoteAddress);
+                        ((TCPServer) this).connect(remoteAddress);
                     }
                 }
                 return true;
@@ -63,16 +73,47 @@ public abstract class Server extends Thread implements FileSystemObserver {
     }
 
     /**
-     * Sends a request based on the event that occurred. synchronization prevents the sync timer and filesystem manager
-     * from both entering the method at the same time.
+     * Queue a request based on the event that occurred, for the publisher thread to send to the peers. The
+     * file system manager calls this from whichever thread made the change, often one acting on a peer's
+     * messages, which must not block on sending to other peers: two peers each blocked sending to the other
+     * would never read what the other sent.
      *
      * @param fileSystemEvent the event that occurred
      */
     @Override
-    public synchronized void processFileSystemEvent(FileSystemEvent fileSystemEvent) {
+    public void processFileSystemEvent(FileSystemEvent fileSystemEvent) {
+        unpublished.add(fileSystemEvent);
+    }
+
+    /**
+     * Body of the publisher thread, sending each event in turn.
+     */
+    private void publishEvents() {
+        while (true) {
+            FileSystemEvent fileSystemEvent;
+            try {
+                fileSystemEvent = unpublished.take();
+            } catch (InterruptedException e) {
+                log.warning("Event publisher interrupted, exiting");
+                return;
+            }
+            publish(fileSystemEvent);
+        }
+    }
+
+    /**
+     * Sends a request based on the event that occurred. synchronization prevents the sync timer and the publisher
+     * from both entering the method at the same time.
+     * <p>
+     * Changes made on behalf of a peer are relayed to every other peer, but not back to the one they came from.
+     *
+     * @param fileSystemEvent the event that occurred
+     */
+    private synchronized void publish(FileSystemEvent fileSystemEvent) {
         synchronized (connections) {
             for (Connection connection : connections) {
-                if (connection.connectionState != Connection.ConnectionState.CONNECTED) {
+                if (connection.connectionState != Connection.ConnectionState.CONNECTED ||
+                        connection == fileSystemEvent.origin) {
                     continue;
                 }
                 try {
@@ -95,6 +136,87 @@ public abstract class Server extends Thread implements FileSystemObserver {
         }
     }
 
+    /**
+     * Mark a connection whose handshake is done as connected and bring the peer up to date, see
+     * {@link Connection#catchUp()}. Synchronized with the publishing of new events so that the peer
+     * receives every change after those it catches up with. Runs on the sync timer's thread, never on a
+     * connection's.
+     *
+     * @param connection the newly connected peer
+     */
+    public synchronized void connected(Connection connection) {
+        if (connection.connectionState != Connection.ConnectionState.CONNECTING) return;
+        connection.connectionState = Connection.ConnectionState.CONNECTED;
+        try {
+            connection.catchUp();
+        } catch (IOException e) {
+            log.severe("Attempt to send to dead peer");
+            connection.interrupt();
+        }
+    }
+
+    /**
+     * The journal epoch and sequence number of the last of a peer's changes we heard about.
+     *
+     * @param peer the peer, see {@link Connection#journalKey()}
+     * @return the epoch and sequence number, or null if we have not heard about any
+     */
+    public long[] lastSeen(String peer) {
+        return lastSeen.get(peer);
+    }
+
+    /**
+     * Note that we heard about one of a peer's changes.
+     *
+     * @param peer     the peer, see {@link Connection#journalKey()}
+     * @param epoch    the epoch of the peer's journal
+     * @param sequence the change's sequence number
+     */
+    public void journalSeen(String peer, long epoch, long sequence) {
+        lastSeen.merge(peer, new long[]{epoch, sequence},
+                (old, seen) -> old[0] == seen[0] && old[1] > seen[1] ? old : seen);
+    }
+
+    /**
+     * Forget which of a peer's changes we heard about, so that it is synced in full when it reconnects.
+     *
+     * @param peer the peer, see {@link Connection#journalKey()}
+     */
+    public void forgetJournal(String peer) {
+        lastSeen.remove(peer);
+    }
+
+    /**
+     * Bring every peer up to date with the share directory, as the sync timer does periodically.
+     * Peers that can compare directory trees are asked to, so that only directories that differ are
+     * looked at; every file and directory is announced to the others.
+     */
+    public synchronized void syncPeers() {
+        ArrayList<FileSystemEvent> events = null;
+        synchronized (connections) {
+            for (Connection connection : connections) {
+                if (connection.connectionState != Connection.ConnectionState.CONNECTED) continue;
+                try {
+                    if (connection.usesTreeSync()) {
+                        connection.sendTreeSync();
+                        continue;
+                    }
+                    if (events == null) events = fileSystemManager.generateSyncEvents();
+                    for (FileSystemEvent fileSystemEvent : events) {
+                        if (isFileEvent(fileSystemEvent.event)) {
+                            connection.sendFileReq(fileSystemEvent);
+                        } else {
+                            connection.sendDirReq(fileSystemEvent);
+                        }
+                    }
+                } catch (IOException e) {
+                    log.severe("Attempt to send to dead peer");
+                    connection.interrupt();
+                }
+            }
+        }
+    }
+
     /**
      * Chccks if the event involves a file
      *
@@ -104,7 +226,8 @@ public abstract class Server extends Thread implements FileSystemObserver {
     private boolean isFileEvent(FileSystemManager.EVENT event) {
         if (event == FileSystemManager.EVENT.FILE_CREATE ||
                 event == FileSystemManager.EVENT.FILE_MODIFY ||
-                event == FileSystemManager.EVENT.FILE_DELETE) {
+                event == FileSystemManager.EVENT.FILE_DELETE ||
+                event == FileSystemManager.EVENT.FILE_MOVE) {
             return true;
         }
         return false;
@@ -118,7 +241,8 @@ public abstract class Server extends Thread implements FileSystemObserver {
      */
     private boolean isDirEvent(FileSystemManager.EVENT event) {
         if (event == FileSystemManager.EVENT.DIRECTORY_CREATE ||
-                event == FileSystemManager.EVENT.DIRECTORY_DELETE) {
+                event == FileSystemManager.EVENT.DIRECTORY_DELETE ||
+                event == FileSystemManager.EVENT.DIRECTORY_MOVE) {
             return true;
         }
         return false;
@@ -130,9 +254,11 @@ public abstract class Server extends Thread implements FileSystemObserver {
      * @return Long >= 0
      */
     public long countIncomingConnections() {
-        return connections.stream()
-                .filter(c -> c.isIncomingConnection && c.connectionState == Connection.ConnectionState.CONNECTED)
-                .count();
+        synchronized (connections) {
+            return connections.stream()
+                    .filter(c -> c.isIncomingConnection && c.connectionState == Connection.ConnectionState.CONNECTED)
+                    .count();
+        }
     }
 
     /**
@@ -143,11 +269,13 @@ public abstract class Server extends Thread implements FileSystemObserver {
      * @return List of Document hostports
      */
     public ArrayList<Document> getPeerHostPorts() {
-        return (ArrayList<Document>) connections.stream()
-                .filter(c -> c.connectionState == Connection.ConnectionState.CONNECTED)
-                .map(c -> c.remoteHostPort.toDoc())
-                .filter(hp -> hp != null)
-                .collect(Collectors.toList());
+        synchronized (connections) {
+            return (ArrayList<Document>) connections.stream()
+                    .filter(c -> c.connectionState == Connection.ConnectionState.CONNECTED)
+                    .map(c -> c.remoteHostPort.toDoc())
+                    .filter(hp -> hp != null)
+                    .collect(Collectors.toList());
+        }
     }
 
     /**
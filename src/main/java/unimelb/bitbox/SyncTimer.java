@@ -2,7 +2,6 @@ package unimelb.bitbox;
 
 import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.FileSystemManager;
-import unimelb.bitbox.util.FileSystemObserver;
 
 import java.util.Timer;
 import java.util.TimerTask;
@@ -13,33 +12,49 @@ import java.util.TimerTask;
  * @author TransfictionRailways
  */
 public class SyncTimer extends TimerTask {
-    private final FileSystemObserver server;
+    private final Server server;
     private static Timer timerThread = new Timer(true);
     private final FileSystemManager fileSystemManager;
 
-    public SyncTimer(FileSystemObserver server, FileSystemManager fileSystemManager) {
+    public SyncTimer(Server server, FileSystemManager fileSystemManager) {
         this.server = server;
         this.fileSystemManager = fileSystemManager;
     }
 
     /**
      * Start the sync events timer. Every so often (interval controlled by the syncInterval config option),
-     * asks the file system manager for sync events and feeds to the main server object.
+     * has the main server object bring every peer up to date.
      *
      * @param server            The servermain instance controlling IO threads
      * @param fileSystemManager An instance of the file system manager
      */
-    public static void startEvents(FileSystemObserver server, FileSystemManager fileSystemManager) {
+    public static void startEvents(Server server, FileSystemManager fileSystemManager) {
         TimerTask task = new SyncTimer(server, fileSystemManager);
         timerThread.schedule(task, 0,
                 1000 * Long.parseLong(Configuration.getConfigurationValue(Commands.SYNC_INTERVAL)));
     }
 
     /**
-     * The task to be periodically executed. Query file system manager then send each event to serverMain.
+     * Have the main server object bring a newly connected peer up to date, on the timer's thread
+     * rather than the connection's own so that the connection can read the peer's messages meanwhile.
+     *
+     * @param server     The servermain instance controlling IO threads
+     * @param connection The newly connected peer
+     */
+    public static void catchUp(Server server, Connection connection) {
+        timerThread.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                server.connected(connection);
+            }
+        }, 0);
+    }
+
+    /**
+     * The task to be periodically executed. Has serverMain sync every peer, with tree comparisons or sync events.
      */
     @Override
     public void run() {
-        fileSystemManager.generateSyncEvents().forEach(server::processFileSystemEvent);
+        server.syncPeers();
     }
 }
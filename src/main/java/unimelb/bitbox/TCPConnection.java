@@ -1,15 +1,28 @@
 package unimelb.bitbox;
 
+import unimelb.bitbox.util.BinaryFrame;
+import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.Document;
 
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TCPConnection extends Connection {
     private Socket clientSocket;
-    private BufferedWriter outStream;
-    private BufferedReader inStream;
+    private OutputStream outStream;
+    private InputStream inStream;
+    // Read from the socket, holding lines of JSON or binary frames
+    private final byte[] inBuffer = new byte[64 * 1024];
+    private int inPosition;
+    private int inLimit;
+    private final int maxMessageSize = Integer.parseInt(Configuration.getConfigurationValue("maxMessageSize",
+            "67108864"));
+    // Locks rather than synchronized, which would pin a virtual thread blocked on the socket
+    private final ReentrantLock outLock = new ReentrantLock();
+    private final ReentrantLock inLock = new ReentrantLock();
 
     /**
      * This constructor initiates a connection to a peer. It does not return until
@@ -24,7 +37,7 @@ public class TCPConnection extends Connection {
         this.remoteAddress = remoteAddress;
         log.info("Start new IO thread for outgoing peer at " + remoteAddress);
         this.server = server;
-        this.commandProcessor = new CommandProcessor(server.fileSystemManager);
+        this.commandProcessor = new CommandProcessor(server.fileSystemManager, this);
         try {
             clientSocket = new Socket(remoteAddress.getAddress(), remoteAddress.getPort());
         } catch (IOException e) {
@@ -47,7 +60,7 @@ public class TCPConnection extends Connection {
         this.remoteAddress = new InetSocketAddress(clientSocket.getInetAddress(), clientSocket.getPort());
         log.info("Start new IO thread for incoming peer at " + this.remoteAddress);
         this.server = server;
-        this.commandProcessor = new CommandProcessor(server.fileSystemManager);
+        this.commandProcessor = new CommandProcessor(server.fileSystemManager, this);
         this.clientSocket = clientSocket;
         this.setDaemon(true);
         start();
@@ -56,8 +69,8 @@ public class TCPConnection extends Connection {
     protected boolean initialise() {
         boolean success;
         try {
-            outStream = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream(), "UTF-8"));
-            inStream = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            outStream = new BufferedOutputStream(clientSocket.getOutputStream());
+            inStream = clientSocket.getInputStream();
             if (isIncomingConnection) {
                 success = receiveHandshake();
             } else {
@@ -87,23 +100,111 @@ public class TCPConnection extends Connection {
     }
 
     protected void sendMessageToPeer(Document message) throws IOException {
-        synchronized (outStream) {
-            outStream.write(message.toJson() + "\n");
+        outLock.lock();
+        try {
+            outStream.write(encode(message));
             outStream.flush();
+        } finally {
+            outLock.unlock();
         }
         //log.info("Sent message to peer: " + message);
     }
 
     protected Document receiveMessageFromPeer() throws BadMessageException, IOException {
-        String input;
-        synchronized (inStream) {
-            input = inStream.readLine();
-        }
-        if (input == null) {
-            throw new IOException();
+        Document doc;
+        inLock.lock();
+        try {
+            if (!fill()) {
+                throw new IOException();
+            }
+            if (inBuffer[inPosition] == BinaryFrame.MAGIC) {
+                if (!capabilities.contains(Commands.BINARY)) {
+                    throw new BadMessageException("Binary frame before binary was negotiated");
+                }
+                int length = BinaryFrame.bodyLength(readBytes(BinaryFrame.HEADER_LENGTH));
+                if (length < 0 || length > maxMessageSize) {
+                    throw new BadMessageException("Frame of " + length + " bytes is too long");
+                }
+                doc = BinaryFrame.decode(readBytes(length));
+            } else {
+                doc = Document.parse(readLine());
+            }
+        } finally {
+            inLock.unlock();
         }
-        Document doc = Document.parse(input);
         //log.info("Received message from peer: " + doc);
         return doc;
     }
+
+    /**
+     * Make sure there is something left in the input buffer.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (inPosition < inLimit) {
+            return true;
+        }
+        int count = inStream.read(inBuffer);
+        if (count < 0) {
+            return false;
+        }
+        inPosition = 0;
+        inLimit = count;
+        return true;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int filled = 0;
+        while (filled < length) {
+            if (inPosition == inLimit && length - filled >= inBuffer.length) {
+                // no point copying a large frame through the buffer
+                int count = inStream.read(bytes, filled, length - filled);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                filled += count;
+                continue;
+            }
+            if (!fill()) {
+                throw new EOFException();
+            }
+            int count = Math.min(length - filled, inLimit - inPosition);
+            System.arraycopy(inBuffer, inPosition, bytes, filled, count);
+            inPosition += count;
+            filled += count;
+        }
+        return bytes;
+    }
+
+    private String readLine() throws IOException, BadMessageException {
+        ByteArrayOutputStream start = null; // the part of the line from earlier reads
+        while (true) {
+            if (!fill()) {
+                throw new EOFException();
+            }
+            for (int i = inPosition; i < inLimit; i++) {
+                if (inBuffer[i] == '\n') {
+                    String line;
+                    if (start == null) {
+                        line = new String(inBuffer, inPosition, i - inPosition, StandardCharsets.UTF_8);
+                    } else {
+                        start.write(inBuffer, inPosition, i - inPosition);
+                        line = new String(start.toByteArray(), StandardCharsets.UTF_8);
+                    }
+                    inPosition = i + 1;
+                    return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+                }
+            }
+            if (start == null) {
+                start = new ByteArrayOutputStream();
+            }
+            start.write(inBuffer, inPosition, inLimit - inPosition);
+            inPosition = inLimit;
+            if (start.size() > maxMessageSize) {
+                throw new BadMessageException("Message longer than " + maxMessageSize + " bytes");
+            }
+        }
+    }
 }
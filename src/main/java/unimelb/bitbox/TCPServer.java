@@ -4,12 +4,29 @@ import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.FileSystemManager;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Server for TCP peers. Unless <code>tcpTransport</code> is <code>threads</code>, connections are
+ * {@link NIOConnection}s, whose socket IO is shared between <code>ioThreads</code> event loops and
+ * whose messages are acted on by a pool of <code>workerThreads</code>. Otherwise each connection
+ * is a {@link TCPConnection} with a thread of its own.
+ */
 public class TCPServer extends Server {
-    ServerSocket serverSocket;
+    ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    ExecutorService workers;
+    ScheduledExecutorService timer; // handshake timeouts
 
     /**
      * Create server thread with a list of already-established connections
@@ -20,20 +37,75 @@ public class TCPServer extends Server {
      */
     public TCPServer() throws NumberFormatException, NoSuchAlgorithmException, IOException {
         fileSystemManager = new FileSystemManager(Configuration.getConfigurationValue("path"), this);
-        serverSocket = new ServerSocket(Integer.parseInt(Configuration.getConfigurationValue(Commands.PORT)));
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(Integer.parseInt(Configuration.getConfigurationValue(Commands.PORT))));
+        if (!Configuration.getConfigurationValue("tcpTransport", "selector").equals("threads")) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            int ioThreads = Integer.parseInt(Configuration.getConfigurationValue("ioThreads",
+                    Integer.toString(Math.max(1, processors / 2))));
+            eventLoops = new EventLoop[ioThreads];
+            for (int i = 0; i < ioThreads; i++) {
+                eventLoops[i] = new EventLoop("peer io " + i);
+            }
+            int workerThreads = Integer.parseInt(Configuration.getConfigurationValue("workerThreads",
+                    Integer.toString(Math.max(4, processors * 2))));
+            workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+                private int count;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "peer worker " + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "peer timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // nearly every handshake finishes long before it times out
+            timer.setRemoveOnCancelPolicy(true);
+            this.timer = timer;
+        }
     }
 
     /**
-     * Main loop for server thread. accept() an incoming connection and spawn a new IO thread to handle it.
+     * Main loop for server thread. accept() an incoming connection and hand it to the configured transport.
      *
      * @throws IOException
      */
     public void mainLoop() throws IOException {
         while (true) {
-            Socket clientSocket = serverSocket.accept();
-            Connection connection = new TCPConnection(this, clientSocket);
+            SocketChannel clientChannel = serverChannel.accept();
+            Connection connection;
+            if (eventLoops != null) {
+                connection = new NIOConnection(this, clientChannel);
+            } else {
+                connection = new TCPConnection(this, clientChannel.socket());
+            }
             registerNewConnection(connection);
         }
     }
 
+    /**
+     * Connect to a peer over the configured transport. Does not return until the connection is
+     * established or has failed; the handshake carries on in the background.
+     *
+     * @param remoteAddress The address/port target to connect to
+     * @return The new connection, which is DONE if it could not be established
+     */
+    public Connection connect(InetSocketAddress remoteAddress) {
+        if (eventLoops != null) {
+            return new NIOConnection(this, remoteAddress);
+        }
+        return new TCPConnection(this, remoteAddress);
+    }
+
+    /**
+     * The event loop a new connection should use, taking turns.
+     */
+    EventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+    }
 }
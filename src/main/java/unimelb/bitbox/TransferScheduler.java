@@ -0,0 +1,203 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.util.Configuration;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Decides when the files we are receiving start loading. A file whose loader is ready waits in a
+ * queue until both its peer and the server as a whole are below their limits of active transfers
+ * (the <code>maxTransfersPerPeer</code> and <code>maxTransfers</code> configuration values), and
+ * a transfer is admitted from the queues whenever another one ends.
+ * <p>
+ * Queued transfers are admitted in order of the first <code>transferPriority</code> glob (comma
+ * separated, matched against the path name) they match, those matching none coming last; then,
+ * unless <code>transferOrder</code> is <code>arrival</code>, smallest first; then in the order they
+ * arrived. A mass change therefore makes its small files usable first rather than queueing them
+ * behind whatever large files happened to be announced before them.
+ * <p>
+ * A transfer admitted for the peer whose message freed the slot is handed straight back to be
+ * started in its reply. One admitted for any other peer is started by that peer's
+ * {@link CommandProcessor} on the scheduler's own thread, so that no thread ever waits on one
+ * command processor while holding another.
+ *
+ * @author TransfictionRailways
+ */
+public class TransferScheduler {
+    private static Logger log = Logger.getLogger(Server.class.getName());
+
+    /**
+     * A file waiting to be, or being, loaded from a peer.
+     */
+    public static class Transfer {
+        final CommandProcessor owner;
+        final String pathName;
+        final long fileSize;
+        private int priority;
+        private long sequence;
+
+        /**
+         * @param owner    The command processor of the connection the file is loaded over
+         * @param pathName The path name of the file
+         * @param fileSize The size of the new content
+         */
+        public Transfer(CommandProcessor owner, String pathName, long fileSize) {
+            this.owner = owner;
+            this.pathName = pathName;
+            this.fileSize = fileSize;
+        }
+    }
+
+    private final int maxPerPeer;
+    private final int maxTotal;
+    private final boolean smallestFirst;
+    private final ArrayList<PathMatcher> priorities = new ArrayList<>();
+    private final HashMap<CommandProcessor, PriorityQueue<Transfer>> queued = new HashMap<>();
+    private final HashMap<CommandProcessor, HashSet<String>> active = new HashMap<>();
+    private final ExecutorService starter;
+    private int activeCount;
+    private long sequence;
+
+    public TransferScheduler() {
+        maxPerPeer = Integer.parseInt(Configuration.getConfigurationValue("maxTransfersPerPeer", "4"));
+        maxTotal = Integer.parseInt(Configuration.getConfigurationValue("maxTransfers", "16"));
+        smallestFirst = !Configuration.getConfigurationValue("transferOrder", "size").equals("arrival");
+        String configured = Configuration.getConfigurationValue("transferPriority", "");
+        for (String glob : configured.split(",")) {
+            if (!glob.trim().isEmpty()) priorities.add(FileSystems.getDefault().getPathMatcher("glob:" + glob.trim()));
+        }
+        starter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "transfer scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a transfer whose loader is ready.
+     *
+     * @return The caller's own transfers that should now be started, which includes this one
+     * unless it has to wait
+     */
+    public List<Transfer> submit(Transfer transfer) {
+        List<Transfer> admitted;
+        synchronized (this) {
+            transfer.priority = priority(transfer.pathName);
+            transfer.sequence = sequence++;
+            queued.computeIfAbsent(transfer.owner, owner -> new PriorityQueue<>(this::compare)).add(transfer);
+            admitted = admit();
+            if (!admitted.contains(transfer)) {
+                log.info("Queued transfer of " + transfer.pathName + ", " + activeCount + " active");
+            }
+        }
+        return startAdmitted(admitted, transfer.owner);
+    }
+
+    /**
+     * Note that a transfer has ended, for whatever reason, and admit whatever can start in its place.
+     *
+     * @return The caller's own transfers that should now be started
+     */
+    public List<Transfer> finished(CommandProcessor owner, String pathName) {
+        List<Transfer> admitted;
+        synchronized (this) {
+            HashSet<String> running = active.get(owner);
+            if (running != null && running.remove(pathName)) {
+                activeCount--;
+                if (running.isEmpty()) active.remove(owner);
+            } else {
+                PriorityQueue<Transfer> waiting = queued.get(owner);
+                if (waiting != null) waiting.removeIf(transfer -> transfer.pathName.equals(pathName));
+            }
+            admitted = admit();
+        }
+        return startAdmitted(admitted, owner);
+    }
+
+    /**
+     * Forget every transfer of a peer that has gone away, and give its slots to the others.
+     */
+    public void cancelAll(CommandProcessor owner) {
+        List<Transfer> admitted;
+        synchronized (this) {
+            queued.remove(owner);
+            HashSet<String> running = active.remove(owner);
+            if (running != null) activeCount -= running.size();
+            admitted = admit();
+        }
+        startAdmitted(admitted, owner);
+    }
+
+    /**
+     * Move transfers from the queues to the active set while there are slots for them, best first.
+     */
+    private List<Transfer> admit() {
+        ArrayList<Transfer> admitted = new ArrayList<>();
+        while (activeCount < maxTotal) {
+            Transfer best = null;
+            for (Map.Entry<CommandProcessor, PriorityQueue<Transfer>> entry : queued.entrySet()) {
+                Transfer head = entry.getValue().peek();
+                if (head == null) continue;
+                HashSet<String> running = active.get(entry.getKey());
+                if (running != null && running.size() >= maxPerPeer) continue;
+                if (best == null || compare(head, best) < 0) best = head;
+            }
+            if (best == null) break;
+            PriorityQueue<Transfer> waiting = queued.get(best.owner);
+            waiting.poll();
+            if (waiting.isEmpty()) queued.remove(best.owner);
+            active.computeIfAbsent(best.owner, owner -> new HashSet<>()).add(best.pathName);
+            activeCount++;
+            admitted.add(best);
+        }
+        return admitted;
+    }
+
+    /**
+     * Hand the admitted transfers of other peers to their command processors, returning the caller's own.
+     */
+    private List<Transfer> startAdmitted(List<Transfer> admitted, CommandProcessor caller) {
+        ArrayList<Transfer> own = new ArrayList<>();
+        for (Transfer transfer : admitted) {
+            if (transfer.owner == caller) {
+                own.add(transfer);
+            } else {
+                starter.submit(() -> transfer.owner.startQueuedTransfer(transfer));
+            }
+        }
+        return own;
+    }
+
+    private int compare(Transfer a, Transfer b) {
+        if (a.priority != b.priority) return Integer.compare(a.priority, b.priority);
+        if (smallestFirst && a.fileSize != b.fileSize) return Long.compare(a.fileSize, b.fileSize);
+        return Long.compare(a.sequence, b.sequence);
+    }
+
+    private int priority(String pathName) {
+        for (int i = 0; i < priorities.size(); i++) {
+            try {
+                if (priorities.get(i).matches(Paths.get(pathName))) return i;
+            } catch (RuntimeException e) {
+                // not a valid path name here, it will be refused by the file system manager anyway
+                return priorities.size();
+            }
+        }
+        return priorities.size();
+    }
+}
@@ -7,9 +7,15 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class UDPConnection extends Connection {
     private List<String> incomingMessages = new LinkedList<>();
+    // Guards incomingMessages; a lock so that a virtual thread waiting for messages is not pinned
+    private final ReentrantLock incomingLock = new ReentrantLock();
+    private final Condition messageArrived = incomingLock.newCondition();
     private List<Message> activeMessages = Collections.synchronizedList(new ArrayList<>());
 
     /**
@@ -25,12 +31,26 @@ public class UDPConnection extends Connection {
         this.remoteAddress = remoteAddress;
         this.isIncomingConnection = isIncomingConnection;
         log.info("Start new IO thread for peer at " + remoteAddress);
-        this.commandProcessor = new CommandProcessor(server.fileSystemManager);
+        this.commandProcessor = new CommandProcessor(server.fileSystemManager, this);
         this.setDaemon(true);
         server.registerNewConnection(this);
         start();
     }
 
+    /**
+     * Delta and chunked transfers and tree syncs are not used over UDP, as block signatures, chunk
+     * lists and directory listings do not fit in a datagram. Moves are small enough. Nor is catching
+     * up from the change journal, which relies on the peer receiving our changes in order, nor a
+     * filter of the share directory in the handshake. Messages stay JSON, as binary frames are only
+     * read from a stream.
+     */
+    @Override
+    protected ArrayList<String> localCapabilities() {
+        ArrayList<String> names = new ArrayList<>();
+        names.add(Commands.MOVE);
+        return names;
+    }
+
     @Override
     protected boolean initialise() {
         boolean success;
@@ -73,9 +93,12 @@ public class UDPConnection extends Connection {
     }
 
     public void addReceivedMessage(String message) {
-        synchronized (incomingMessages) {
+        incomingLock.lock();
+        try {
             incomingMessages.add(message);
-            incomingMessages.notify();
+            messageArrived.signal();
+        } finally {
+            incomingLock.unlock();
         }
     }
 
@@ -83,12 +106,16 @@ public class UDPConnection extends Connection {
     protected Document receiveMessageFromPeer() throws BadMessageException, IOException {
         String input;
         try {
-            synchronized (incomingMessages) {
+            incomingLock.lock();
+            try {
                 while (incomingMessages.size() == 0) {
-                    incomingMessages.wait(Integer.parseInt(Configuration.getConfigurationValue("udpTimeout")));
+                    messageArrived.await(Integer.parseInt(Configuration.getConfigurationValue("udpTimeout")),
+                            TimeUnit.MILLISECONDS);
                     handleResends();
                 }
                 input = incomingMessages.remove(0);
+            } finally {
+                incomingLock.unlock();
             }
         } catch (InterruptedException e) {
             return null;
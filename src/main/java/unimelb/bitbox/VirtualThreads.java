@@ -0,0 +1,68 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.util.Configuration;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.logging.Logger;
+
+/**
+ * Starts the IO threads of connections as virtual threads when <code>threadMode</code> is
+ * <code>virtual</code> and the runtime has them (Java 21 and later), so that thousands of peers
+ * and clients blocked on their sockets do not each hold a platform thread. On older runtimes, or
+ * by default, they are ordinary platform threads. Virtual threads are looked up by reflection as
+ * we are built for older runtimes.
+ * <p>
+ * This covers every connection with a thread of its own: {@link ClientConnection}s,
+ * {@link UDPConnection}s and, with <code>tcpTransport=threads</code>, {@link TCPConnection}s.
+ * Those connections block with locks rather than <code>synchronized</code>, which would pin a
+ * virtual thread to its carrier while it waits on Java 21.
+ *
+ * @author TransfictionRailways
+ */
+class VirtualThreads {
+    private static Logger log = Logger.getLogger(Server.class.getName());
+    private static Object builder; // a Thread.Builder.OfVirtual, or null for platform threads
+    private static Method unstarted; // Thread.Builder.unstarted(Runnable)
+
+    static {
+        if (Configuration.getConfigurationValue("threadMode", "platform").equals("virtual")) {
+            try {
+                builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+                log.info("Using virtual threads for connections");
+            } catch (ReflectiveOperationException e) {
+                builder = null;
+                log.warning("Virtual threads need Java 21 or later, using platform threads for connections");
+            }
+        }
+    }
+
+    /**
+     * @return true if connections run on virtual threads
+     */
+    static boolean enabled() {
+        return builder != null;
+    }
+
+    /**
+     * Start a virtual thread. Only to be used if {@link #enabled()}.
+     *
+     * @param task The task for the thread to run
+     * @param name The thread's name
+     * @return The started thread
+     */
+    static Thread start(Runnable task, String name) {
+        Thread thread;
+        try {
+            thread = (Thread) unstarted.invoke(builder, task);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+}
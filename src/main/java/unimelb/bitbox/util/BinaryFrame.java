@@ -0,0 +1,243 @@
+package unimelb.bitbox.util;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import unimelb.bitbox.BadMessageException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary encoding of messages used between peers that both advertise the <code>binary</code>
+ * capability, in place of a line of JSON. Binary fields (see {@link Document#append(String, byte[])})
+ * travel as raw bytes rather than base64, and nothing has to be parsed as JSON.
+ * <p>
+ * A frame is the byte <code>0xB7</code>, which cannot start a line of UTF-8 text, then the length of
+ * the rest of the frame as a 4 byte big endian integer, then the message as a document. A document
+ * is its number of fields then, for each, its name as a string and its value. A value is a tag byte
+ * followed by: for <code>S</code> (string) and <code>B</code> (bytes) a length and that many bytes,
+ * UTF-8 for a string; for <code>L</code> an integer, zigzag encoded; for <code>R</code> an 8 byte
+ * IEEE double; for <code>D</code> a document; for <code>A</code> (array) a number of values and the
+ * values; and nothing for <code>T</code> (true), <code>F</code> (false) and <code>N</code> (null).
+ * Counts, lengths and integers are unsigned base 128 varints, least significant group first.
+ *
+ * @author TransfictionRailways
+ */
+public class BinaryFrame {
+    /**
+     * The first byte of every frame.
+     */
+    public static final byte MAGIC = (byte) 0xB7;
+    /**
+     * The length of the frame header: the magic byte and the length of the rest.
+     */
+    public static final int HEADER_LENGTH = 5;
+    private static final int MAX_DEPTH = 32;
+
+    /**
+     * Encode a message as a frame, header included.
+     */
+    public static byte[] encode(Document message) {
+        int size = sizeOfDocument(message.json());
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + size);
+        frame.put(MAGIC);
+        frame.putInt(size);
+        putDocument(frame, message.json());
+        return frame.array();
+    }
+
+    /**
+     * Decode the body of a frame, the bytes after the header.
+     *
+     * @throws BadMessageException If the frame is malformed
+     */
+    public static Document decode(byte[] body) throws BadMessageException {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        try {
+            JSONObject obj = getDocument(buffer, 0);
+            if (buffer.hasRemaining()) throw new BadMessageException("Trailing bytes in frame");
+            return new Document(obj);
+        } catch (RuntimeException e) {
+            // running off the end of the frame, or anything else a malformed frame makes fail
+            throw new BadMessageException("Malformed frame");
+        }
+    }
+
+    /**
+     * The length of the body of a frame, from its header.
+     *
+     * @param header The header, starting with the magic byte
+     */
+    public static int bodyLength(byte[] header) {
+        return ByteBuffer.wrap(header, 1, 4).getInt();
+    }
+
+    private static int sizeOfDocument(Map<?, ?> obj) {
+        int size = sizeOfVarint(obj.size());
+        for (Map.Entry<?, ?> entry : obj.entrySet()) {
+            size += sizeOfBytes(utf8((String) entry.getKey()).length) + sizeOfValue(entry.getValue());
+        }
+        return size;
+    }
+
+    private static int sizeOfValue(Object value) {
+        if (value == null || value instanceof Boolean) return 1;
+        if (value instanceof String) return 1 + sizeOfBytes(utf8((String) value).length);
+        if (value instanceof byte[]) return 1 + sizeOfBytes(((byte[]) value).length);
+        if (value instanceof Long || value instanceof Integer) return 1 + sizeOfVarint(zigzag(((Number) value).longValue()));
+        if (value instanceof Double) return 9;
+        if (value instanceof Map) return 1 + sizeOfDocument((Map<?, ?>) value);
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            int size = 1 + sizeOfVarint(list.size());
+            for (Object o : list) {
+                size += sizeOfValue(o);
+            }
+            return size;
+        }
+        throw new IllegalArgumentException("Cannot encode " + value.getClass().getName());
+    }
+
+    private static int sizeOfBytes(int length) {
+        return sizeOfVarint(length) + length;
+    }
+
+    private static int sizeOfVarint(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static void putDocument(ByteBuffer buffer, Map<?, ?> obj) {
+        putVarint(buffer, obj.size());
+        for (Map.Entry<?, ?> entry : obj.entrySet()) {
+            putBytes(buffer, utf8((String) entry.getKey()));
+            putValue(buffer, entry.getValue());
+        }
+    }
+
+    private static void putValue(ByteBuffer buffer, Object value) {
+        if (value == null) {
+            buffer.put((byte) 'N');
+        } else if (value instanceof Boolean) {
+            buffer.put((byte) ((Boolean) value ? 'T' : 'F'));
+        } else if (value instanceof String) {
+            buffer.put((byte) 'S');
+            putBytes(buffer, utf8((String) value));
+        } else if (value instanceof byte[]) {
+            buffer.put((byte) 'B');
+            putBytes(buffer, (byte[]) value);
+        } else if (value instanceof Long || value instanceof Integer) {
+            buffer.put((byte) 'L');
+            putVarint(buffer, zigzag(((Number) value).longValue()));
+        } else if (value instanceof Double) {
+            buffer.put((byte) 'R');
+            buffer.putDouble((Double) value);
+        } else if (value instanceof Map) {
+            buffer.put((byte) 'D');
+            putDocument(buffer, (Map<?, ?>) value);
+        } else {
+            List<?> list = (List<?>) value;
+            buffer.put((byte) 'A');
+            putVarint(buffer, list.size());
+            for (Object o : list) {
+                putValue(buffer, o);
+            }
+        }
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject getDocument(ByteBuffer buffer, int depth) throws BadMessageException {
+        if (depth > MAX_DEPTH) throw new BadMessageException("Frame nested too deeply");
+        JSONObject obj = new JSONObject();
+        int fields = getCount(buffer);
+        for (int i = 0; i < fields; i++) {
+            String key = new String(getBytes(buffer), StandardCharsets.UTF_8);
+            obj.put(key, getValue(buffer, depth));
+        }
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object getValue(ByteBuffer buffer, int depth) throws BadMessageException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case 'N':
+                return null;
+            case 'T':
+                return Boolean.TRUE;
+            case 'F':
+                return Boolean.FALSE;
+            case 'S':
+                return new String(getBytes(buffer), StandardCharsets.UTF_8);
+            case 'B':
+                return getBytes(buffer);
+            case 'L':
+                long value = getVarint(buffer);
+                return (value >>> 1) ^ -(value & 1);
+            case 'R':
+                return buffer.getDouble();
+            case 'D':
+                return getDocument(buffer, depth + 1);
+            case 'A':
+                if (depth >= MAX_DEPTH) throw new BadMessageException("Frame nested too deeply");
+                JSONArray list = new JSONArray();
+                int count = getCount(buffer);
+                for (int i = 0; i < count; i++) {
+                    list.add(getValue(buffer, depth + 1));
+                }
+                return list;
+            default:
+                throw new BadMessageException("Unknown tag in frame");
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) throws BadMessageException {
+        byte[] bytes = new byte[getCount(buffer)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * A count of fields or values, or a length in bytes: each takes at least a byte, so there can be
+     * no more than there are bytes left.
+     */
+    private static int getCount(ByteBuffer buffer) throws BadMessageException {
+        long count = getVarint(buffer);
+        if (count < 0 || count > buffer.remaining()) throw new BadMessageException("Malformed frame");
+        return (int) count;
+    }
+
+    private static long getVarint(ByteBuffer buffer) throws BadMessageException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new BadMessageException("Malformed frame");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
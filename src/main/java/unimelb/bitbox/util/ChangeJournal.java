@@ -0,0 +1,100 @@
+package unimelb.bitbox.util;
+
+import unimelb.bitbox.util.FileSystemManager.EVENT;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The changes a {@link FileSystemManager} has announced, numbered in the order they were announced,
+ * so that a peer that reconnects can be sent just the changes it missed rather than a full sync.
+ * <p>
+ * Sequence numbers start at 1 and belong to an epoch, a random number chosen when the journal is
+ * created. A peer that last heard about changes of another epoch (i.e. before a restart) has to be
+ * synced in full.
+ * <p>
+ * A change is dropped as soon as a later change to the same path name makes it redundant for every
+ * peer, whatever it last heard: a modification supersedes an earlier modification, and a deletion
+ * supersedes an earlier creation or modification. Nothing is dropped in favour of a change on the
+ * other side of a move. Beyond that the journal keeps at most <code>capacity</code> changes, dropping
+ * the oldest, and a peer that last heard about a change before one of those can no longer catch up.
+ *
+ * @author TransfictionRailways
+ */
+class ChangeJournal {
+    private final long epoch;
+    private final int capacity;
+    private final TreeMap<Long, FileSystemEvent> changes = new TreeMap<Long, FileSystemEvent>();
+    // path name -> sequence number of its latest change, while that may still be superseded
+    private final HashMap<String, Long> latest = new HashMap<String, Long>();
+    private long last; // sequence number of the latest change
+    private long dropped; // sequence number of the latest change dropped for lack of room
+
+    /**
+     * @param capacity The most changes to keep
+     */
+    ChangeJournal(int capacity) {
+        this.capacity = capacity;
+        // kept positive so that it survives being sent as JSON
+        this.epoch = new SecureRandom().nextLong() & Long.MAX_VALUE;
+    }
+
+    long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Number a change and add it to the journal.
+     *
+     * @return The change's sequence number, which is also set on the event
+     */
+    synchronized long append(FileSystemEvent event) {
+        long sequence = ++last;
+        event.sequence = sequence;
+        if (event.event == EVENT.FILE_MOVE || event.event == EVENT.DIRECTORY_MOVE) {
+            latest.remove(event.fromPathName);
+            latest.remove(event.pathName);
+        } else {
+            Long previous = latest.put(event.pathName, sequence);
+            if (previous != null && supersedes(event.event, changes.get(previous).event)) {
+                changes.remove(previous);
+            }
+        }
+        changes.put(sequence, event);
+        while (changes.size() > capacity) {
+            Map.Entry<Long, FileSystemEvent> oldest = changes.pollFirstEntry();
+            dropped = oldest.getKey();
+            latest.remove(oldest.getValue().pathName, oldest.getKey());
+        }
+        return sequence;
+    }
+
+    /**
+     * The changes after a given one, oldest first.
+     *
+     * @param sequence The sequence number of the last change a peer heard about, 0 for none
+     * @return The changes, or null if some of them are no longer in the journal
+     */
+    synchronized List<FileSystemEvent> since(long sequence) {
+        if (sequence < dropped || sequence > last) return null;
+        return new ArrayList<FileSystemEvent>(changes.tailMap(sequence, false).values());
+    }
+
+    private static boolean supersedes(EVENT later, EVENT earlier) {
+        switch (later) {
+            case FILE_MODIFY:
+                return earlier == EVENT.FILE_MODIFY;
+            case FILE_DELETE:
+                return earlier == EVENT.FILE_CREATE || earlier == EVENT.FILE_MODIFY;
+            case DIRECTORY_DELETE:
+                return earlier == EVENT.DIRECTORY_CREATE;
+            default:
+                return false;
+        }
+    }
+}
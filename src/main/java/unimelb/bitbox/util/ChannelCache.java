@@ -0,0 +1,111 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A bounded set of read-only channels to files that are being served to peers, so that a file
+ * requested a block at a time is opened once rather than once per block.
+ * <p>
+ * Channels are shared: any number of threads may read from a channel at once using positional
+ * reads. The least recently used channel is closed when the cache is full, but only once every
+ * thread using it has released it. A channel is only handed out for the file it was opened on;
+ * if a different file has since been put in its place (as identified by its file key), a new
+ * channel is opened.
+ *
+ * @author TransfictionRailways
+ */
+class ChannelCache {
+    private static Logger log = Logger.getLogger(ChannelCache.class.getName());
+
+    /**
+     * An open channel, valid until it is released.
+     */
+    static class Handle {
+        final FileChannel channel;
+        final Path path;
+        private final Object fileKey;
+        private int users;
+        private boolean evicted;
+
+        private Handle(FileChannel channel, Path path, Object fileKey) {
+            this.channel = channel;
+            this.path = path;
+            this.fileKey = fileKey;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Path, Handle> handles;
+
+    /**
+     * @param capacity Maximum number of channels to keep open, apart from any still in use after eviction
+     */
+    ChannelCache(int capacity) {
+        this.capacity = capacity;
+        handles = new LinkedHashMap<Path, Handle>(16, 0.75f, true);
+    }
+
+    /**
+     * Get a channel to a file, opening it if necessary. Every call must be matched by a call
+     * to {@link #release(Handle)}.
+     *
+     * @param path    The file to read
+     * @param fileKey The file key the file currently has, or null if the file system does not have them
+     * @throws IOException If the file could not be opened
+     */
+    synchronized Handle acquire(Path path, Object fileKey) throws IOException {
+        Handle handle = handles.get(path);
+        if (handle != null && (fileKey == null || fileKey.equals(handle.fileKey))) {
+            handle.users++;
+            return handle;
+        }
+        if (handle != null) evict(handles.remove(path));
+        handle = new Handle(FileChannel.open(path, StandardOpenOption.READ), path, fileKey);
+        handle.users++;
+        handles.put(path, handle);
+        trim();
+        return handle;
+    }
+
+    synchronized void release(Handle handle) {
+        handle.users--;
+        if (handle.evicted && handle.users == 0) close(handle);
+    }
+
+    /**
+     * Close the channel to a file, if there is one, e.g. because it has been modified or deleted.
+     */
+    synchronized void invalidate(Path path) {
+        Handle handle = handles.remove(path);
+        if (handle != null) evict(handle);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Path, Handle>> it = handles.entrySet().iterator();
+        while (handles.size() > capacity && it.hasNext()) {
+            Handle handle = it.next().getValue();
+            it.remove();
+            evict(handle);
+        }
+    }
+
+    private void evict(Handle handle) {
+        handle.evicted = true;
+        if (handle.users == 0) close(handle);
+    }
+
+    private void close(Handle handle) {
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            log.warning("could not close " + handle.path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package unimelb.bitbox.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Where every chunk (see {@link Chunker}) of the watched files can be found, so that a file
+ * being received can be assembled from chunks we already have, whichever files they are in.
+ * <p>
+ * Files are chunked in the background by a single low priority thread, some time after they are
+ * added or modified. Until then, and whenever a file has changed since it was chunked, its chunks
+ * are simply not found. Callers must check the content of a chunk they read anyway.
+ * <p>
+ * Chunk locations are kept in an open addressing table of parallel arrays keyed by chunk hash.
+ * Only the first location of each chunk is kept; a chunk is forgotten when the file it was found
+ * in is removed or chunked again, even if other files still contain it.
+ *
+ * @author TransfictionRailways
+ */
+class ChunkIndex {
+    private static Logger log = Logger.getLogger(ChunkIndex.class.getName());
+
+    /**
+     * The chunks of one file, as of when it was chunked.
+     */
+    private static class FileChunks {
+        final String name;
+        final long lastModified;
+        final long fileSize;
+        final List<Chunker.Chunk> chunks;
+
+        FileChunks(String name, long lastModified, long fileSize, List<Chunker.Chunk> chunks) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.fileSize = fileSize;
+            this.chunks = chunks;
+        }
+    }
+
+    /**
+     * A place a chunk can be read from.
+     */
+    static class Location {
+        final String name;
+        final long offset;
+        final int length;
+
+        private Location(String name, long offset, int length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final HashMap<String, FileChunks> files = new HashMap<String, FileChunks>();
+    private final ExecutorService worker;
+    // chunk hash -> file and chunk number, empty slots have no file
+    private long[] hashHigh = new long[1024];
+    private long[] hashLow = new long[1024];
+    private FileChunks[] owner = new FileChunks[1024];
+    private int[] chunk = new int[1024];
+    private int size;
+
+    ChunkIndex() {
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "chunker");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Chunk a file in the background, if it is large enough to be worth it.
+     */
+    void schedule(final String name, final long lastModified, final long fileSize) {
+        if (fileSize < Chunker.MIN_SIZE * 2) {
+            remove(name);
+            return;
+        }
+        synchronized (this) {
+            FileChunks known = files.get(name);
+            if (known != null && known.lastModified == lastModified && known.fileSize == fileSize) return;
+        }
+        worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(name);
+                if (file.lastModified() != lastModified || file.length() != fileSize) {
+                    // changed again, it will have been scheduled again
+                    return;
+                }
+                try (FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ)) {
+                    List<Chunker.Chunk> chunks = Chunker.chunks(channel);
+                    if (file.lastModified() == lastModified && file.length() == fileSize) {
+                        put(new FileChunks(name, lastModified, fileSize, chunks));
+                    }
+                } catch (IOException e) {
+                    log.warning("could not chunk " + name + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * The chunks of a file that is open for reading, chunking it now if it has not been chunked
+     * since it was last modified.
+     */
+    List<Chunker.Chunk> chunks(String name, FileChannel channel) throws IOException {
+        File file = new File(name);
+        long lastModified = file.lastModified();
+        long fileSize = channel.size();
+        synchronized (this) {
+            FileChunks known = files.get(name);
+            if (known != null && known.lastModified == lastModified && known.fileSize == fileSize) {
+                return known.chunks;
+            }
+        }
+        List<Chunker.Chunk> chunks = Chunker.chunks(channel);
+        if (file.lastModified() == lastModified && fileSize >= Chunker.MIN_SIZE * 2) {
+            put(new FileChunks(name, lastModified, fileSize, chunks));
+        }
+        return chunks;
+    }
+
+    /**
+     * Where a chunk with the given hash was last seen, or null if nowhere.
+     */
+    synchronized Location find(long high, long low) {
+        int slot = slot(high, low);
+        if (owner[slot] == null) return null;
+        Chunker.Chunk found = owner[slot].chunks.get(chunk[slot]);
+        return new Location(owner[slot].name, found.offset, found.length);
+    }
+
+    synchronized void remove(String name) {
+        FileChunks old = files.remove(name);
+        if (old == null) return;
+        for (Chunker.Chunk c : old.chunks) {
+            int slot = slot(c.hashHigh, c.hashLow);
+            if (owner[slot] == old) delete(slot);
+        }
+    }
+
+    private synchronized void put(FileChunks fileChunks) {
+        remove(fileChunks.name);
+        files.put(fileChunks.name, fileChunks);
+        for (int i = 0; i < fileChunks.chunks.size(); i++) {
+            Chunker.Chunk c = fileChunks.chunks.get(i);
+            int slot = slot(c.hashHigh, c.hashLow);
+            if (owner[slot] != null) continue;
+            hashHigh[slot] = c.hashHigh;
+            hashLow[slot] = c.hashLow;
+            owner[slot] = fileChunks;
+            chunk[slot] = i;
+            if (++size * 2 > owner.length) grow();
+        }
+    }
+
+    /**
+     * The slot holding the given hash, or the empty slot it would go in.
+     */
+    private int slot(long high, long low) {
+        int mask = owner.length - 1;
+        int slot = (int) high & mask;
+        while (owner[slot] != null && (hashHigh[slot] != high || hashLow[slot] != low)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empty a slot, moving back any later entries that could no longer be found.
+     */
+    private void delete(int slot) {
+        int mask = owner.length - 1;
+        owner[slot] = null;
+        size--;
+        int next = (slot + 1) & mask;
+        while (owner[next] != null) {
+            int home = (int) hashHigh[next] & mask;
+            // move the entry back if its home is not between the hole and it
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                hashHigh[slot] = hashHigh[next];
+                hashLow[slot] = hashLow[next];
+                owner[slot] = owner[next];
+                chunk[slot] = chunk[next];
+                owner[next] = null;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        long[] oldHigh = hashHigh;
+        long[] oldLow = hashLow;
+        FileChunks[] oldOwner = owner;
+        int[] oldChunk = chunk;
+        hashHigh = new long[oldOwner.length * 2];
+        hashLow = new long[oldOwner.length * 2];
+        owner = new FileChunks[oldOwner.length * 2];
+        chunk = new int[oldOwner.length * 2];
+        for (int i = 0; i < oldOwner.length; i++) {
+            if (oldOwner[i] == null) continue;
+            int slot = slot(oldHigh[i], oldLow[i]);
+            hashHigh[slot] = oldHigh[i];
+            hashLow[slot] = oldLow[i];
+            owner[slot] = oldOwner[i];
+            chunk[slot] = oldChunk[i];
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package unimelb.bitbox.util;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content-defined chunking (FastCDC), for finding the parts of a file that already exist
+ * somewhere else.
+ * <p>
+ * A gear hash is rolled over the file and a chunk ends wherever its top bits are all zero, so
+ * chunk boundaries depend only on the bytes near them: inserting or removing data in one place
+ * only changes the chunks around it, and identical runs of data in different files are cut into
+ * identical chunks. Boundaries are harder to find before the average chunk size and easier after
+ * it, which keeps chunk sizes close to the average. Both peers must cut files the same way, so the
+ * gear table and sizes are fixed.
+ * <p>
+ * Chunks are identified by their murmur3_128 hash. A chunk list is encoded as the length (an int)
+ * and both halves of the hash (two longs) of each chunk in turn.
+ *
+ * @author TransfictionRailways
+ */
+public final class Chunker {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVERAGE_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+    private static final long MASK_SMALL = ((1L << 18) - 1) << (64 - 18);
+    private static final long MASK_LARGE = ((1L << 14) - 1) << (64 - 14);
+    private static final int ENCODED_SIZE = 20;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = Hashing.murmur3_128().hashInt(i).asLong();
+        }
+    }
+
+    /**
+     * A chunk of a file.
+     */
+    public static class Chunk {
+        public final long offset;
+        public final int length;
+        public final long hashHigh;
+        public final long hashLow;
+
+        Chunk(long offset, int length, long hashHigh, long hashLow) {
+            this.offset = offset;
+            this.length = length;
+            this.hashHigh = hashHigh;
+            this.hashLow = hashLow;
+        }
+
+        /**
+         * True if the given bytes are this chunk's content.
+         */
+        public boolean matches(ByteBuffer content) {
+            if (content.remaining() != length) return false;
+            ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128().hashBytes(content.duplicate()).asBytes());
+            return hash.getLong() == hashHigh && hash.getLong() == hashLow;
+        }
+    }
+
+    private Chunker() {
+    }
+
+    /**
+     * Cut a file into chunks.
+     */
+    public static List<Chunk> chunks(FileChannel channel) throws IOException {
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        byte[] buffer = new byte[1 << 20];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        long position = 0;
+        long chunkStart = 0;
+        long fingerprint = 0;
+        while (true) {
+            bb.clear();
+            int read = channel.read(bb, position);
+            if (read < 0) break;
+            int segment = 0;
+            for (int i = 0; i < read; i++) {
+                long length = position + i + 1 - chunkStart;
+                if (length < MIN_SIZE) continue;
+                fingerprint = (fingerprint << 1) + GEAR[buffer[i] & 0xff];
+                long mask = length < AVERAGE_SIZE ? MASK_SMALL : MASK_LARGE;
+                if ((fingerprint & mask) == 0 || length >= MAX_SIZE) {
+                    hasher.putBytes(buffer, segment, i + 1 - segment);
+                    chunks.add(chunk(chunkStart, (int) length, hasher));
+                    hasher = Hashing.murmur3_128().newHasher();
+                    segment = i + 1;
+                    chunkStart = position + i + 1;
+                    fingerprint = 0;
+                }
+            }
+            hasher.putBytes(buffer, segment, read - segment);
+            position += read;
+        }
+        if (position > chunkStart) chunks.add(chunk(chunkStart, (int) (position - chunkStart), hasher));
+        return chunks;
+    }
+
+    public static byte[] encode(List<Chunk> chunks) {
+        ByteBuffer out = ByteBuffer.allocate(chunks.size() * ENCODED_SIZE);
+        for (Chunk chunk : chunks) {
+            out.putInt(chunk.length);
+            out.putLong(chunk.hashHigh);
+            out.putLong(chunk.hashLow);
+        }
+        return out.array();
+    }
+
+    /**
+     * Decode a chunk list made by {@link #encode(List)}.
+     *
+     * @param chunks The encoded chunk list
+     * @param length The length of the file, which the chunks must cover exactly
+     * @throws IOException If the chunk list is malformed
+     */
+    public static List<Chunk> decode(byte[] chunks, long length) throws IOException {
+        if (chunks.length % ENCODED_SIZE != 0) throw new IOException("malformed chunk list");
+        ByteBuffer in = ByteBuffer.wrap(chunks);
+        ArrayList<Chunk> result = new ArrayList<Chunk>(chunks.length / ENCODED_SIZE);
+        long position = 0;
+        while (in.hasRemaining()) {
+            int size = in.getInt();
+            if (size <= 0 || size > MAX_SIZE || position + size > length) {
+                throw new IOException("malformed chunk list");
+            }
+            result.add(new Chunk(position, size, in.getLong(), in.getLong()));
+            position += size;
+        }
+        if (position != length) throw new IOException("chunk list does not cover the whole file");
+        return result;
+    }
+
+    private static Chunk chunk(long offset, int length, Hasher hasher) {
+        ByteBuffer hash = ByteBuffer.wrap(hasher.hash().asBytes());
+        return new Chunk(offset, length, hash.getLong(), hash.getLong());
+    }
+}
@@ -67,6 +67,18 @@ public class Configuration {
         return properties.getProperty(key);
     }
 
+    /**
+     * Look up a configuration value, falling back to a default for optional keys that are
+     * not present in the configuration file.
+     *
+     * @param key          The configuration key
+     * @param defaultValue Value to use if the key is not set
+     * @return The configured value, or defaultValue
+     */
+    public static String getConfigurationValue(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
     /**
      * Compute the host-port combination we want to be known as.
      * This is not a directly-set value but a composition of configuration values.
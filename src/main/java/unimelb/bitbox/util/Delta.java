@@ -0,0 +1,292 @@
+package unimelb.bitbox.util;
+
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The rsync algorithm, for sending a new version of a file to a peer that already has an old one.
+ * <p>
+ * The receiver splits its old copy (the <i>basis</i>) into fixed size blocks and sends a
+ * signature for each: a weak checksum that can be rolled along a file a byte at a time, and a
+ * strong hash. The sender rolls the weak checksum over every offset of the new file, and where
+ * both checksums match a block of the basis, tells the receiver to copy that block. Everything in
+ * between is literal data, which is described by its range in the new file rather than sent
+ * inline, so the receiver can fetch it with ordinary byte requests.
+ * <p>
+ * A signature is 12 bytes per block: the 32 bit weak checksum and the first 64 bits of the
+ * block's murmur3_128 hash. Instructions are encoded as a sequence of a type byte followed by the
+ * length and, for copies, the position in the basis to copy from; each instruction continues the
+ * new file where the previous one ended.
+ *
+ * @author TransfictionRailways
+ */
+public final class Delta {
+    /**
+     * The smallest block size {@link #blockSize(long)} chooses, and that a peer may ask for.
+     */
+    public static final int MIN_BLOCK_SIZE = 700;
+    /**
+     * The largest block size {@link #blockSize(long)} chooses, and that a peer may ask for.
+     */
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int SIGNATURE_SIZE = 12;
+    private static final byte COPY = 0;
+    private static final byte LITERAL = 1;
+
+    /**
+     * A range of the new file, and where to get it from.
+     */
+    public static class Instruction {
+        /**
+         * True if the range is copied from the basis, false if it has to be fetched.
+         */
+        public final boolean copy;
+        /**
+         * Position of the range in the new file.
+         */
+        public final long position;
+        /**
+         * Position to copy from in the basis, if {@link #copy}.
+         */
+        public final long basisPosition;
+        public final long length;
+
+        Instruction(boolean copy, long position, long basisPosition, long length) {
+            this.copy = copy;
+            this.position = position;
+            this.basisPosition = basisPosition;
+            this.length = length;
+        }
+    }
+
+    private Delta() {
+    }
+
+    /**
+     * The block size to use for a file, about the square root of its size as rsync does, so
+     * that the signatures and the literal data around each change stay small together.
+     */
+    public static int blockSize(long fileSize) {
+        long size = (long) Math.sqrt((double) fileSize);
+        size = (size + 7) & ~7L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Compute the signature of every whole block of the basis.
+     */
+    public static byte[] signatures(FileChannel basis, int blockSize) throws IOException {
+        long blocks = basis.size() / blockSize;
+        ByteBuffer out = ByteBuffer.allocate((int) blocks * SIGNATURE_SIZE);
+        byte[] block = new byte[blockSize];
+        for (long i = 0; i < blocks; i++) {
+            readFully(basis, ByteBuffer.wrap(block), i * blockSize);
+            out.putInt(weakChecksum(block, blockSize));
+            out.putLong(strongHash(block, blockSize));
+        }
+        return out.array();
+    }
+
+    /**
+     * Compute the instructions that build the new file from the basis with the given signatures.
+     */
+    public static byte[] instructions(FileChannel source, int blockSize, byte[] signatures) throws IOException {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new IOException("block size " + blockSize + " out of range");
+        }
+        if (signatures.length % SIGNATURE_SIZE != 0) {
+            throw new IOException("malformed block signatures");
+        }
+        int blocks = signatures.length / SIGNATURE_SIZE;
+        ByteBuffer sigs = ByteBuffer.wrap(signatures);
+        long[] strong = new long[blocks];
+        HashMap<Integer, ArrayList<Integer>> byWeak = new HashMap<Integer, ArrayList<Integer>>();
+        for (int i = 0; i < blocks; i++) {
+            int weak = sigs.getInt();
+            strong[i] = sigs.getLong();
+            if (!byWeak.containsKey(weak)) byWeak.put(weak, new ArrayList<Integer>(1));
+            byWeak.get(weak).add(i);
+        }
+
+        Encoder encoder = new Encoder();
+        long size = source.size();
+        Window outgoing = new Window(source);
+        Window incoming = new Window(source);
+        byte[] block = new byte[blockSize];
+        long position = 0;
+        long literalStart = 0;
+        int expectedBlock = -1;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+        while (position + blockSize <= size) {
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = incoming.get(position + i);
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                rolling = true;
+            }
+            ArrayList<Integer> candidates = byWeak.get(((b & 0xffff) << 16) | (a & 0xffff));
+            if (candidates != null) {
+                readFully(source, ByteBuffer.wrap(block), position);
+                long hash = strongHash(block, blockSize);
+                int match = -1;
+                for (int candidate : candidates) {
+                    if (strong[candidate] != hash) continue;
+                    match = candidate;
+                    // carry on a run of consecutive blocks if we can
+                    if (candidate == expectedBlock) break;
+                }
+                if (match >= 0) {
+                    encoder.literal(literalStart, position);
+                    encoder.copy(position, (long) match * blockSize, blockSize);
+                    position += blockSize;
+                    literalStart = position;
+                    expectedBlock = match + 1;
+                    rolling = false;
+                    continue;
+                }
+            }
+            if (position + blockSize >= size) break;
+            int out = outgoing.get(position);
+            int in = incoming.get(position + blockSize);
+            a += in - out;
+            b += a - blockSize * out;
+            position++;
+        }
+        encoder.literal(literalStart, size);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Decode instructions made by {@link #instructions(FileChannel, int, byte[])}.
+     *
+     * @param instructions The encoded instructions
+     * @param length       The length of the new file, which the instructions must cover exactly
+     * @throws IOException If the instructions are malformed
+     */
+    public static List<Instruction> decode(byte[] instructions, long length) throws IOException {
+        ArrayList<Instruction> result = new ArrayList<Instruction>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(instructions));
+        long position = 0;
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            long count = in.readLong();
+            if (count <= 0 || position + count > length) throw new IOException("malformed delta instruction");
+            if (type == COPY) {
+                long basisPosition = in.readLong();
+                if (basisPosition < 0) throw new IOException("malformed delta instruction");
+                result.add(new Instruction(true, position, basisPosition, count));
+            } else if (type == LITERAL) {
+                result.add(new Instruction(false, position, 0, count));
+            } else {
+                throw new IOException("unknown delta instruction " + type);
+            }
+            position += count;
+        }
+        if (position != length) throw new IOException("delta does not cover the whole file");
+        return result;
+    }
+
+    private static int weakChecksum(byte[] block, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = block[i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static long strongHash(byte[] block, int length) {
+        return Hashing.murmur3_128().hashBytes(block, 0, length).asLong();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("file shrank while computing delta");
+        }
+    }
+
+    /**
+     * Buffered sequential access to a file by absolute position.
+     */
+    private static class Window {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private long start = -1;
+
+        Window(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        int get(long position) throws IOException {
+            if (start < 0 || position < start || position >= start + buffer.limit()) {
+                buffer.clear();
+                start = position;
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) < 0) break;
+                }
+                buffer.flip();
+                if (buffer.limit() == 0) throw new IOException("file shrank while computing delta");
+            }
+            return buffer.get((int) (position - start)) & 0xff;
+        }
+    }
+
+    /**
+     * Writes instructions, merging copies of consecutive blocks.
+     */
+    private static class Encoder {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private long copyLength;
+        private long copyFrom;
+
+        void copy(long position, long basisPosition, long length) throws IOException {
+            if (copyLength > 0 && copyFrom + copyLength == basisPosition) {
+                copyLength += length;
+                return;
+            }
+            flush();
+            copyFrom = basisPosition;
+            copyLength = length;
+        }
+
+        void literal(long from, long to) throws IOException {
+            if (to <= from) return;
+            flush();
+            out.writeByte(LITERAL);
+            out.writeLong(to - from);
+        }
+
+        byte[] toByteArray() throws IOException {
+            flush();
+            return bytes.toByteArray();
+        }
+
+        private void flush() throws IOException {
+            if (copyLength == 0) return;
+            out.writeByte(COPY);
+            out.writeLong(copyLength);
+            out.writeLong(copyFrom);
+            copyLength = 0;
+        }
+    }
+}
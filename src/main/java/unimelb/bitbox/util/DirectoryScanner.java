@@ -0,0 +1,169 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+/**
+ * Walks a directory tree in parallel on a {@link ForkJoinPool}, reading the attributes of
+ * every entry with a single stat.
+ * <p>
+ * A directory is always visited before any of the entries inside it, and the entries of a
+ * directory are only visited once the visitor has returned for the directory itself. Anything the
+ * visitor records while visiting a directory therefore happens-before anything recorded for its
+ * contents, which is the ordering the file system events rely on. No ordering is given between
+ * sibling subtrees.
+ *
+ * @author TransfictionRailways
+ */
+class DirectoryScanner {
+    private static Logger log = Logger.getLogger(DirectoryScanner.class.getName());
+
+    /**
+     * Called for every entry found by the scanner, possibly from many threads at once.
+     */
+    interface Visitor {
+        /**
+         * @param path  The entry
+         * @param attrs Its attributes
+         * @return True if the scanner should descend into this entry (only meaningful for directories)
+         */
+        boolean visit(Path path, BasicFileAttributes attrs) throws IOException, NoSuchAlgorithmException;
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism Number of worker threads to walk the tree with
+     */
+    DirectoryScanner(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Scan everything at and below start, returning once every entry has been visited.
+     * Entries that disappear while being scanned are skipped.
+     */
+    void scan(Path start, Visitor visitor) throws NoSuchAlgorithmException {
+        try {
+            pool.invoke(new ScanTask(start, null, visitor));
+        } catch (ScanException e) {
+            // the pool may have wrapped the original exception again when rethrowing it
+            Throwable cause = e.getCause();
+            while (!(cause instanceof NoSuchAlgorithmException)) {
+                cause = cause.getCause();
+            }
+            throw (NoSuchAlgorithmException) cause;
+        }
+    }
+
+    /**
+     * Carries checked exceptions out of the fork/join tasks.
+     */
+    @SuppressWarnings("serial")
+    private static class ScanException extends RuntimeException {
+        ScanException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ScanTask extends RecursiveAction {
+        private final Path path;
+        private BasicFileAttributes attrs;
+        private final Visitor visitor;
+
+        ScanTask(Path path, BasicFileAttributes attrs, Visitor visitor) {
+            this.path = path;
+            this.attrs = attrs;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (attrs == null) {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                }
+                if (!visitor.visit(path, attrs) || !attrs.isDirectory()) return;
+                ArrayList<RecursiveAction> subtasks = new ArrayList<RecursiveAction>();
+                FileBatchTask batch = new FileBatchTask(visitor);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    for (Path subpath : stream) {
+                        BasicFileAttributes subattrs;
+                        try {
+                            subattrs = Files.readAttributes(subpath, BasicFileAttributes.class);
+                        } catch (NoSuchFileException e) {
+                            continue;
+                        }
+                        if (subattrs.isDirectory()) {
+                            subtasks.add(new ScanTask(subpath, subattrs, visitor));
+                        } else if (subattrs.isRegularFile()) {
+                            batch.add(subpath, subattrs);
+                            if (batch.isFull()) {
+                                subtasks.add(batch);
+                                batch = new FileBatchTask(visitor);
+                            }
+                        }
+                    }
+                }
+                subtasks.add(batch);
+                invokeAll(subtasks);
+            } catch (NoSuchFileException e) {
+                // removed while we were looking at it, the deletion check will catch it
+            } catch (IOException e) {
+                log.warning("could not scan " + path + ": " + e.getMessage());
+            } catch (NoSuchAlgorithmException e) {
+                throw new ScanException(e);
+            }
+        }
+    }
+
+    /**
+     * Visits a group of files from the same directory, so that very large directories
+     * are spread over the workers too.
+     */
+    @SuppressWarnings("serial")
+    private static class FileBatchTask extends RecursiveAction {
+        private static final int BATCH_SIZE = 64;
+        private final ArrayList<Path> paths = new ArrayList<Path>(BATCH_SIZE);
+        private final ArrayList<BasicFileAttributes> attrs = new ArrayList<BasicFileAttributes>(BATCH_SIZE);
+        private final Visitor visitor;
+
+        FileBatchTask(Visitor visitor) {
+            this.visitor = visitor;
+        }
+
+        void add(Path path, BasicFileAttributes attr) {
+            paths.add(path);
+            attrs.add(attr);
+        }
+
+        boolean isFull() {
+            return paths.size() >= BATCH_SIZE;
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < paths.size(); i++) {
+                try {
+                    visitor.visit(paths.get(i), attrs.get(i));
+                } catch (NoSuchFileException e) {
+                    // removed while we were looking at it
+                } catch (IOException e) {
+                    log.warning("could not scan " + paths.get(i) + ": " + e.getMessage());
+                } catch (NoSuchAlgorithmException e) {
+                    throw new ScanException(e);
+                }
+            }
+        }
+    }
+}
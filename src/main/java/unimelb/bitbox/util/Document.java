@@ -1,6 +1,7 @@
 package unimelb.bitbox.util;
 
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -67,6 +68,15 @@ public class Document {
 		obj.put(key,list);
 	}
 	
+	/**
+	 * Binary data. It is sent raw in a {@link BinaryFrame}, so it may only be appended to messages
+	 * for peers that use them; otherwise append it as a base64 string.
+	 */
+	@SuppressWarnings("unchecked")
+	public void append(String key,byte[] val){
+		obj.put(key, val);
+	}
+	
 	@SuppressWarnings("unchecked")
 	public void append(String key,long val){
 		obj.put(key, new Long(val));
@@ -77,6 +87,10 @@ public class Document {
 		obj.put(key, new Integer(val));
 	}
 	
+	JSONObject json(){
+		return obj;
+	}
+	
 	public String toJson(){
 		return obj.toJSONString();
 	}
@@ -139,6 +153,20 @@ public class Document {
 	    return val;
     }
 
+    /**
+     * Binary data, whether it arrived raw in a {@link BinaryFrame} or as a base64 string.
+     */
+    public byte[] getBytes(String key) throws BadMessageException {
+        Object val = obj.get(key);
+        if (val instanceof byte[]) return (byte[]) val;
+        try {
+            return Base64.getDecoder().decode((String) val);
+        }
+        catch (ClassCastException | NullPointerException | IllegalArgumentException e) {
+            throw new BadMessageException("No binary field " + key);
+        }
+    }
+
     public boolean getBoolean(String key) throws BadMessageException {
 	    Boolean val;
         try {
@@ -166,6 +194,20 @@ public class Document {
 	    return list;
     }
 
+    public List<String> getListOfStrings(String key) throws BadMessageException {
+	    ArrayList<String> list = new ArrayList<>();
+	    if (!obj.containsKey(key)) return list;
+	    try {
+	        for (Object o : (JSONArray) obj.get(key)) {
+	            list.add((String) o);
+            }
+        }
+	    catch (ClassCastException | NullPointerException e) {
+	        throw new BadMessageException("No array of strings field " + key);
+        }
+	    return list;
+    }
+
     public boolean matches(Document other, String[] ignoredFields) {
 	    Set<String> fields = new HashSet<String>(obj.keySet());
 	    for (String field : ignoredFields) {
@@ -0,0 +1,180 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Computes digests of file contents with as few system calls and copies as possible.
+ * <p>
+ * How the file is read is chosen by its size (see {@link Strategy#forSize(long, boolean)}):
+ * small files are read in one go into a heap buffer and larger files stream through a large
+ * per-thread direct buffer. Large files can instead be memory mapped a region at a time, so that
+ * the digest reads straight out of the page cache, but only on request: the regions stay mapped
+ * until they are garbage collected, which stops the file being renamed or deleted on Windows, and
+ * a file truncated while being read through a mapping crashes Java 8 when hashed with MD5.
+ *
+ * @author TransfictionRailways
+ */
+public final class FileChecksum {
+    private static final int DIRECT_BUFFER_SIZE = 1 << 20;
+    private static final long MAP_THRESHOLD = 64L << 20;
+    private static final long MAP_REGION_SIZE = 256L << 20;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // reused by each hashing thread, allocating direct memory is expensive
+    private static final ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Ways of reading a file for hashing.
+     */
+    public enum Strategy {
+        /**
+         * Read the whole file into a heap buffer with a single read.
+         */
+        HEAP,
+        /**
+         * Stream the file through a reusable direct buffer.
+         */
+        DIRECT,
+        /**
+         * Memory map the file a region at a time.
+         */
+        MAPPED;
+
+        /**
+         * The strategy that suits a file of the given size best, without memory mapping.
+         */
+        public static Strategy forSize(long size) {
+            return forSize(size, false);
+        }
+
+        /**
+         * The strategy that suits a file of the given size best.
+         *
+         * @param mapLargeFiles Whether large files may be memory mapped
+         */
+        public static Strategy forSize(long size, boolean mapLargeFiles) {
+            if (size <= 64 * 1024) return HEAP;
+            if (size < MAP_THRESHOLD || !mapLargeFiles) return DIRECT;
+            return MAPPED;
+        }
+    }
+
+    private FileChecksum() {
+    }
+
+    /**
+     * Digest the entire contents of a channel, choosing how to read it by its size.
+     * The channel's position is not used or changed.
+     *
+     * @param digest  A fresh digest to update
+     * @param channel The open file
+     * @return The digest as a lower case hex string
+     * @throws IOException If the file could not be read
+     */
+    public static String checksum(MessageDigest digest, FileChannel channel) throws IOException {
+        return checksum(digest, channel, Strategy.forSize(channel.size()));
+    }
+
+    /**
+     * Digest the entire contents of a channel using a particular strategy.
+     */
+    public static String checksum(final MessageDigest digest, FileChannel channel, Strategy strategy)
+            throws IOException {
+        return checksum(new HashAlgorithm.Digester() {
+            @Override
+            public void update(ByteBuffer bytes) {
+                digest.update(bytes);
+            }
+
+            @Override
+            public byte[] digest() {
+                return digest.digest();
+            }
+        }, channel, strategy);
+    }
+
+    /**
+     * Digest the entire contents of a channel with any {@link HashAlgorithm}, choosing how to
+     * read it by its size.
+     */
+    public static String checksum(HashAlgorithm.Digester digest, FileChannel channel) throws IOException {
+        return checksum(digest, channel, Strategy.forSize(channel.size()));
+    }
+
+    /**
+     * Digest the entire contents of a channel with any {@link HashAlgorithm} using a particular strategy.
+     *
+     * @throws IOException If the file could not be read, including if it was truncated while
+     *                     being read through a memory mapping
+     */
+    public static String checksum(HashAlgorithm.Digester digest, FileChannel channel, Strategy strategy)
+            throws IOException {
+        long size = channel.size();
+        if (strategy == Strategy.HEAP && size > DIRECT_BUFFER_SIZE) {
+            // too big to sensibly read in one go
+            strategy = Strategy.DIRECT;
+        }
+        switch (strategy) {
+            case HEAP:
+                ByteBuffer whole = ByteBuffer.allocate((int) size);
+                readFully(channel, whole, 0);
+                whole.flip();
+                digest.update(whole);
+                break;
+            case DIRECT:
+                ByteBuffer buffer = directBuffer.get();
+                long position = 0;
+                while (position < size) {
+                    buffer.clear();
+                    int read = channel.read(buffer, position);
+                    if (read < 0) break;
+                    position += read;
+                    buffer.flip();
+                    digest.update(buffer);
+                }
+                break;
+            case MAPPED:
+                for (long offset = 0; offset < size; offset += MAP_REGION_SIZE) {
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                            Math.min(MAP_REGION_SIZE, size - offset));
+                    try {
+                        digest.update(region);
+                    } catch (InternalError e) {
+                        // the JVM's report of a fault reading the mapping, i.e. SIGBUS past the end of the file
+                        throw new IOException("file truncated while being hashed", e);
+                    }
+                }
+                break;
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Lower case hex representation of some bytes.
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) break;
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package unimelb.bitbox.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent record of every file in the share directory and its digest, so that a restart
+ * only needs to stat files rather than hash all of their contents again.
+ * <p>
+ * The index lives in its own directory inside the share directory whose name ends in the
+ * loading suffix, so the file system monitor never reports it. It consists of two files:
+ * <li><code>index</code>, a snapshot of every entry, written to a temporary file and
+ * atomically renamed into place;</li>
+ * <li><code>journal</code>, every change made since that snapshot, one checksummed record at a time.</li>
+ * Both carry a generation number. A journal is only replayed onto the snapshot with the same
+ * generation, and replay stops at the first torn or corrupt record, so a crash at any point
+ * leaves a consistent (if slightly stale) index. Anything stale is caught by the size and
+ * modification time checks on startup.
+ *
+ * @author TransfictionRailways
+ */
+class FileIndex {
+    private static Logger log = Logger.getLogger(FileIndex.class.getName());
+    private static final int SNAPSHOT_MAGIC = 0x42424958; // "BBIX"
+    private static final int JOURNAL_MAGIC = 0x42424a4c; // "BBJL"
+    private static final int VERSION = 2;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    // compact once the journal holds this many records more than the index has entries
+    private static final int COMPACT_SLACK = 10000;
+
+    /**
+     * What we knew about a file the last time it was hashed.
+     */
+    static class Entry {
+        final long fileSize;
+        final long lastModified;
+        final String fileKey;
+        final HashAlgorithm hashAlgorithm;
+        final String md5;
+
+        Entry(long fileSize, long lastModified, String fileKey, HashAlgorithm hashAlgorithm, String md5) {
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.hashAlgorithm = hashAlgorithm;
+            this.md5 = md5;
+        }
+
+        /**
+         * True if a file with these attributes can be assumed to still have this entry's content.
+         */
+        boolean matches(long fileSize, long lastModified, String fileKey) {
+            return this.fileSize == fileSize && this.lastModified == lastModified &&
+                    (this.fileKey == null || fileKey == null || this.fileKey.equals(fileKey));
+        }
+
+        boolean sameAs(Entry other) {
+            return matches(other.fileSize, other.lastModified, other.fileKey) &&
+                    hashAlgorithm == other.hashAlgorithm && md5.equals(other.md5);
+        }
+    }
+
+    private final File directory;
+    private final File snapshotFile;
+    private final File journalFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private long generation;
+    private DataOutputStream journal;
+    private FileOutputStream journalOut;
+    private int journalRecords;
+    // format of the entries being loaded, older indexes are upgraded by the first compaction
+    private int loadVersion = VERSION;
+
+    /**
+     * Open (creating if necessary) the index in the given directory and load its contents.
+     *
+     * @param directory Directory to keep the index files in
+     * @throws IOException If the directory cannot be created or the journal cannot be opened
+     */
+    FileIndex(File directory) throws IOException {
+        this.directory = directory;
+        snapshotFile = new File(directory, "index");
+        journalFile = new File(directory, "journal");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create index directory " + directory);
+        }
+        load();
+        // start from a clean snapshot so the journal only ever has to be appended to
+        compact();
+    }
+
+    Entry get(String pathName) {
+        return entries.get(pathName);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Record the state of a file. Nothing is written if the entry is unchanged.
+     */
+    synchronized void put(String pathName, Entry entry) throws IOException {
+        Entry old = entries.put(pathName, entry);
+        if (old != null && old.sameAs(entry)) return;
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(OP_PUT);
+        out.writeUTF(pathName);
+        writeEntry(out, entry);
+        appendRecord(record.toByteArray());
+    }
+
+    synchronized void remove(String pathName) throws IOException {
+        if (entries.remove(pathName) == null) return;
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(OP_REMOVE);
+        out.writeUTF(pathName);
+        appendRecord(record.toByteArray());
+    }
+
+    /**
+     * Drop every entry whose path name is not in the given set, e.g. files deleted while we were not running.
+     */
+    synchronized void retainAll(Set<String> pathNames) throws IOException {
+        for (String pathName : new ArrayList<String>(entries.keySet())) {
+            if (!pathNames.contains(pathName)) remove(pathName);
+        }
+    }
+
+    /**
+     * Make everything recorded so far durable, compacting the journal into a new snapshot if it
+     * has grown large.
+     */
+    synchronized void sync() throws IOException {
+        if (journalRecords > entries.size() + COMPACT_SLACK) {
+            compact();
+            return;
+        }
+        journal.flush();
+        journalOut.getChannel().force(false);
+    }
+
+    synchronized void close() throws IOException {
+        sync();
+        journal.close();
+    }
+
+    private void appendRecord(byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        journal.writeInt(record.length);
+        journal.write(record);
+        journal.writeInt((int) crc.getValue());
+        journalRecords++;
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeLong(entry.fileSize);
+        out.writeLong(entry.lastModified);
+        out.writeUTF(entry.fileKey == null ? "" : entry.fileKey);
+        out.writeUTF(entry.hashAlgorithm.wireName);
+        out.writeUTF(entry.md5);
+    }
+
+    private Entry readEntry(DataInputStream in) throws IOException {
+        long fileSize = in.readLong();
+        long lastModified = in.readLong();
+        String fileKey = in.readUTF();
+        // version 1 indexes only ever held MD5 digests
+        HashAlgorithm hashAlgorithm = loadVersion == 1 ? HashAlgorithm.MD5 : HashAlgorithm.fromName(in.readUTF());
+        String md5 = in.readUTF();
+        return new Entry(fileSize, lastModified, fileKey.isEmpty() ? null : fileKey, hashAlgorithm, md5);
+    }
+
+    private void load() {
+        generation = 0;
+        if (snapshotFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(snapshotFile)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("unrecognised index format");
+                }
+                loadVersion = in.readInt();
+                if (loadVersion < 1 || loadVersion > VERSION) {
+                    throw new IOException("unsupported index version " + loadVersion);
+                }
+                generation = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String pathName = in.readUTF();
+                    putLoaded(pathName, readEntry(in));
+                }
+            } catch (IOException e) {
+                log.warning("discarding unreadable file index: " + e.getMessage());
+                entries.clear();
+                generation = 0;
+                return;
+            }
+        }
+        if (!journalFile.exists()) return;
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(journalFile)))) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readLong() != generation) {
+                // left over from before the last snapshot was written
+                return;
+            }
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > 1 << 20) break;
+                byte[] record = new byte[length];
+                in.readFully(record);
+                CRC32 crc = new CRC32();
+                crc.update(record, 0, record.length);
+                if (in.readInt() != (int) crc.getValue()) break;
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                byte op = recordIn.readByte();
+                String pathName = recordIn.readUTF();
+                if (op == OP_PUT) {
+                    putLoaded(pathName, readEntry(recordIn));
+                } else {
+                    entries.remove(pathName);
+                }
+                replayed++;
+            }
+        } catch (EOFException e) {
+            // a torn final record, everything before it is good
+        } catch (IOException e) {
+            log.warning("stopped replaying file index journal: " + e.getMessage());
+        }
+        log.info("loaded file index of " + entries.size() + " files (" + replayed + " journal records)");
+    }
+
+    private void putLoaded(String pathName, Entry entry) {
+        if (entry.hashAlgorithm == null) {
+            // hashed with an algorithm this version does not know, it will be hashed again
+            entries.remove(pathName);
+        } else {
+            entries.put(pathName, entry);
+        }
+    }
+
+    /**
+     * Write every entry to a new snapshot and start an empty journal for it.
+     */
+    private void compact() throws IOException {
+        if (journal != null) journal.close();
+        long newGeneration = generation + 1;
+        Path tmp = new File(directory, "index.tmp").toPath();
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(newGeneration);
+            ArrayList<Map.Entry<String, Entry>> snapshot = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot) {
+                out.writeUTF(e.getKey());
+                writeEntry(out, e.getValue());
+            }
+            out.flush();
+            fos.getChannel().force(false);
+        }
+        Files.move(tmp, snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = newGeneration;
+        journalOut = new FileOutputStream(journalFile, false);
+        journal = new DataOutputStream(new BufferedOutputStream(journalOut, 1 << 16));
+        journal.writeInt(JOURNAL_MAGIC);
+        journal.writeLong(generation);
+        journal.flush();
+        journalOut.getChannel().force(false);
+        journalRecords = 0;
+    }
+}
@@ -1,28 +1,43 @@
 package unimelb.bitbox.util;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * A file system manager, that recursively monitors a given share directory,
@@ -35,6 +50,7 @@ import java.util.logging.Logger;
  * The file system manager also provides an API
  * for safely making modifications to the files and directories in the share directory:
  * <li>{@link #cancelFileLoader(String)}</li>
+ * <li>{@link #changesSince(long, long)}</li>
  * <li>{@link #createFileLoader(String, String)}</li>
  * <li>{@link #checkShortcut(String)}</li>
  * <li>{@link #checkWriteComplete(String)}</li>
@@ -44,11 +60,39 @@ import java.util.logging.Logger;
  * <li>{@link #fileNameExists(String)}</li>
  * <li>{@link #fileNameExists(String, String)}</li>
  * <li>{@link #generateSyncEvents()}</li>
+ * <li>{@link #generateSyncEvents(String)}</li>
+ * <li>{@link #generateSyncEventsExcept(SyncFilter)}</li>
+ * <li>{@link #isIgnored(String, boolean)}</li>
  * <li>{@link #isSafePathName(String)}</li>
+ * <li>{@link #journalEpoch()}</li>
  * <li>{@link #readFile(String, long, long)}</li>
+ * <li>{@link #syncFilter(int)}</li>
  * <li>{@link #makeDirectory(String)}</li>
  * <li>{@link #modifyFileLoader(String, String, long)}</li>
+ * <li>{@link #treeEntries(String)}</li>
+ * <li>{@link #treeHash(String)}</li>
+ * <li>{@link #moveDirectory(String, String, Object)}</li>
+ * <li>{@link #moveFile(String, String, HashAlgorithm, String, Object)}</li>
  * <li>{@link #writeFile(String, ByteBuffer, long)}</li>
+ * <br/>
+ * Changes are detected either by rescanning the whole share directory every second
+ * ({@link #MONITOR_POLL}), or by registering every directory with a {@link WatchService}
+ * and only rescanning the entries the operating system reports as changed ({@link #MONITOR_WATCH}).
+ * The mode is chosen with the <code>fileSystemMonitor</code> configuration value.
+ * A file or directory that is deleted and turns up again elsewhere in the same rescan is reported as
+ * moved (see {@link EVENT#FILE_MOVE} and {@link EVENT#DIRECTORY_MOVE}); when watching, a rescan that
+ * finds deletions waits up to <code>moveWindow</code> milliseconds for the other half of a move.
+ * A new or modified file is only hashed and announced once its size and modification time have stayed
+ * the same for <code>settleInterval</code> milliseconds, so that a file still being written is not
+ * hashed over and over, nor fetched by peers before it is complete.
+ * Entries matched by the ignore rules (see {@link IgnoreRules}) are left out altogether: ignored
+ * directories are neither descended into nor watched.
+ * Every announced event is numbered in a change journal (see {@link ChangeJournal}) holding up to
+ * <code>journalSize</code> changes, so that a peer that was away can be sent just what it missed.
+ * <br/>
+ * The watched files are guarded by a read/write lock rather than by the manager's monitor, so that
+ * lookups and reads for different peers run concurrently with each other and with the tree walk of
+ * a scan. Each file loader is guarded by one of a fixed set of locks striped by path name.
  * @author Aaron Harwood
  * @author Andrew Linxi Wang (contributions to Windows compatibility)
  */
@@ -62,6 +106,27 @@ public class FileSystemManager extends Thread {
      */
     public final String loadingSuffix = "(bitbox)";
 
+    /**
+     * Monitor mode that rescans the entire share directory once a second.
+     */
+    public static final String MONITOR_POLL = "poll";
+
+    /**
+     * Monitor mode that waits for change notifications from the operating system,
+     * falling back to {@link #MONITOR_POLL} if they are not available.
+     */
+    public static final String MONITOR_WATCH = "watch";
+
+    private static final long WATCH_COALESCE_MS = 20;
+
+    /**
+     * Name (before the loading suffix) of the directory holding the persistent file index.
+     */
+    private static final String INDEX_DIRECTORY = ".bitbox";
+    private static final String TRANSFER_DIRECTORY = "transfers";
+    // how much a file loader writes between saving its progress
+    private static final long PROGRESS_INTERVAL = 16L<<20;
+
     /**
      * Possible file system events.
      * <li>{@link #FILE_CREATE}</li>
@@ -69,6 +134,8 @@ public class FileSystemManager extends Thread {
      * <li>{@link #FILE_MODIFY}</li>
      * <li>{@link #DIRECTORY_CREATE}</li>
      * <li>{@link #DIRECTORY_DELETE}</li>
+     * <li>{@link #FILE_MOVE}</li>
+     * <li>{@link #DIRECTORY_MOVE}</li>
      */
     public enum EVENT {
         /**
@@ -94,7 +161,19 @@ public class FileSystemManager extends Thread {
          * be empty for this event to be emitted, and its parent
          * directory must exist.
          */
-        DIRECTORY_DELETE
+        DIRECTORY_DELETE,
+        /**
+         * An existing file has been renamed, keeping its content. The
+         * parent directory of its new name must exist for this event
+         * to be emitted.
+         */
+        FILE_MOVE,
+        /**
+         * An existing directory has been renamed together with everything
+         * in it. The parent directory of its new name must exist for this
+         * event to be emitted.
+         */
+        DIRECTORY_MOVE
     }
 
     /**
@@ -105,6 +184,8 @@ public class FileSystemManager extends Thread {
      * <li>{@link #pathName}</li>
      * <li>{@link #event}</li>
      * <li>{@link #fileDescriptor}</li>
+     * <li>{@link #fromPathName}</li>
+     * <li>{@link #sequence}</li>
      */
     public class FileSystemEvent {
         /**
@@ -129,6 +210,21 @@ public class FileSystemManager extends Thread {
          * Additional information for the file/directory.
          */
         public FileDescriptor fileDescriptor;
+        /**
+         * Where the change came from, as given to {@link #checkWriteComplete(String, Object)},
+         * or null if it was made locally.
+         */
+        public Object origin;
+        /**
+         * For {@link EVENT#FILE_MOVE} and {@link EVENT#DIRECTORY_MOVE}, the pathname the
+         * file/directory had before it was moved, <i>relative</i> to the share directory.
+         */
+        public String fromPathName;
+        /**
+         * The number of this change in the change journal (see {@link #changesSince(long, long)}),
+         * or 0 if it has not been announced.
+         */
+        public long sequence;
 
         /**
          * Constructor for file events.
@@ -161,6 +257,7 @@ public class FileSystemManager extends Thread {
         }
 
         public String toString() {
+            if(fromPathName!=null) return event.name()+" "+fromPathName+" -> "+pathName;
             return event.name()+" " +pathName;
         }
     }
@@ -175,13 +272,21 @@ public class FileSystemManager extends Thread {
          */
         public long lastModified;
         /**
-         * The MD5 hash of the file's content.
+         * The hash of the file's content. This is an MD5 hash unless {@link #hashAlgorithm} says otherwise.
          */
         public String md5;
+        /**
+         * The algorithm that produced {@link #md5}.
+         */
+        public HashAlgorithm hashAlgorithm;
         /**
          * The size of the file in bytes.
          */
         public long fileSize;
+        /**
+         * The file system's identifier for the file (e.g. device and inode), if known. Not sent to peers.
+         */
+        String fileKey;
 
         /**
          * Constructor
@@ -189,9 +294,20 @@ public class FileSystemManager extends Thread {
          * @param md5 the current MD5 hash of the file's content.
          */
         public FileDescriptor(long lastModified, String md5, long fileSize) {
+            this(lastModified,md5,fileSize,FileSystemManager.this.hashAlgorithm);
+        }
+
+        /**
+         * Constructor
+         * @param lastModified the timestamp for when file was last modified
+         * @param md5 the current hash of the file's content.
+         * @param hashAlgorithm the algorithm used to hash the file's content.
+         */
+        public FileDescriptor(long lastModified, String md5, long fileSize, HashAlgorithm hashAlgorithm) {
             this.lastModified=lastModified;
             this.md5=md5;
             this.fileSize=fileSize;
+            this.hashAlgorithm=hashAlgorithm;
         }
 
         /**
@@ -202,34 +318,131 @@ public class FileSystemManager extends Thread {
             doc.append("lastModified", lastModified);
             doc.append("md5", md5);
             doc.append("fileSize", fileSize);
+            if(hashAlgorithm!=HashAlgorithm.MD5) {
+                doc.append("hashAlgorithm", hashAlgorithm.wireName);
+            }
             return doc;
         }
     }
 
+    /**
+     * A file or directory directly inside a watched directory, for comparing the share directory
+     * with a peer's one directory at a time. Two entries with the same name have the same hash
+     * only if they are both files with the same content, or both directories with the same
+     * entries all the way down.
+     * <li>{@link #name}</li>
+     * <li>{@link #directory}</li>
+     * <li>{@link #hash}</li>
+     */
+    public static class TreeEntry {
+        /**
+         * The name of the entry within its directory.
+         */
+        public final String name;
+        /**
+         * True for a directory, false for a file.
+         */
+        public final boolean directory;
+        /**
+         * Hash of the entry's name, kind and content, as a hex string.
+         */
+        public final String hash;
+
+        TreeEntry(String name, boolean directory, String hash) {
+            this.name=name;
+            this.directory=directory;
+            this.hash=hash;
+        }
+    }
+
     /**
      * Construct a new file system manager. If the supplied share directory is not a directory
      * that exists then the constructor will return without starting the monitor thread.
      * @param root The pathname to the root directory to share, called the share directory.
      * @param fileSystemObserver The observer of the file system events, which must implement {@link FileSystemObserver}.
      * @throws IOException Thrown if an initial scan of the share directory fails.
-     * @throws NoSuchAlgorithmException Thrown if the MD5 hash algorithm is not available.
+     * @throws NoSuchAlgorithmException Thrown if the configured hash algorithm is not available.
      */
     public FileSystemManager(String root, FileSystemObserver fileSystemObserver)
             throws IOException, NoSuchAlgorithmException{
         this.fileSystemObserver=fileSystemObserver;
         this.root=root;
-        watchedFiles=new HashMap<String,FileDescriptor>();
-        loadingFiles=new HashMap<String,FileLoader>();
-        watchedDirectories=new HashSet<String>();
-        hashMap=new HashMap<String,HashSet<String>>();
+        watched=new FileTable(root,FileSystems.getDefault().getSeparator());
+        loadingFiles=new ConcurrentHashMap<String,FileLoader>();
+        openFiles=new ChannelCache(Integer.parseInt(Configuration.getConfigurationValue("openFileCacheSize","64")));
+        if(Boolean.parseBoolean(Configuration.getConfigurationValue("chunkIndex","true"))) chunkIndex=new ChunkIndex();
+        journal=new ChangeJournal(Integer.parseInt(Configuration.getConfigurationValue("journalSize","10000")));
+        for(int i=0;i<loaderLocks.length;i++) loaderLocks[i]=new Object();
+        for(int i=0;i<sourceLocks.length;i++) sourceLocks[i]=new Object();
         File file = new File(root);
         if(!file.exists() || !file.isDirectory()) {
             log.severe("incorrect root given: "+root);
             return;
         }
         cannonicalRoot = file.getCanonicalPath();
-        log.info("monitoring "+cannonicalRoot);
-        scanDirectoryTree(root);
+        monitorMode = Configuration.getConfigurationValue("fileSystemMonitor", MONITOR_POLL);
+        moveWindow = Long.parseLong(Configuration.getConfigurationValue("moveWindow", "500"));
+        settleInterval = Long.parseLong(Configuration.getConfigurationValue("settleInterval", "2000"));
+        mapLargeFiles = Boolean.parseBoolean(Configuration.getConfigurationValue("mapLargeFiles", "false"));
+        String algorithmName = Configuration.getConfigurationValue("hashAlgorithm", HashAlgorithm.MD5.wireName);
+        if(HashAlgorithm.fromName(algorithmName)!=null) {
+            hashAlgorithm = HashAlgorithm.fromName(algorithmName);
+        } else {
+            log.warning("unknown hash algorithm "+algorithmName+", using MD5");
+        }
+        hashAlgorithm.newDigester();
+        String strategyName = Configuration.getConfigurationValue("shortcutStrategy", shortcutStrategy.configName);
+        if(ShortcutStrategy.fromName(strategyName)!=null) {
+            shortcutStrategy = ShortcutStrategy.fromName(strategyName);
+        } else {
+            log.warning("unknown shortcut strategy "+strategyName+", using "+shortcutStrategy.configName);
+        }
+        try {
+            ignoreRules = IgnoreRules.load(Configuration.getConfigurationValue("ignore"), root);
+        } catch (IOException e) {
+            log.warning("could not read "+IgnoreRules.IGNORE_FILE+", nothing will be ignored: "+e.getMessage());
+            ignoreRules = new IgnoreRules();
+        }
+        scanner = new DirectoryScanner(Integer.parseInt(Configuration.getConfigurationValue("scanThreads",
+                Integer.toString(Runtime.getRuntime().availableProcessors()))));
+        log.info("monitoring "+cannonicalRoot+" ("+monitorMode+")");
+        try {
+            fileIndex = new FileIndex(new File(root, INDEX_DIRECTORY+loadingSuffix));
+        } catch (IOException e) {
+            log.warning("file index unavailable, all files will be hashed: "+e.getMessage());
+        }
+        try {
+            transferProgress = new TransferProgress(new File(new File(root, INDEX_DIRECTORY+loadingSuffix),
+                    TRANSFER_DIRECTORY));
+        } catch (IOException e) {
+            log.warning("interrupted transfers will not be resumed: "+e.getMessage());
+        }
+        int hashThreads = Integer.parseInt(Configuration.getConfigurationValue("hashThreads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        hashingPipeline = new HashingPipeline(hashThreads, Integer.parseInt(
+                Configuration.getConfigurationValue("hashIoConcurrency", Integer.toString(hashThreads))));
+        ArrayList<HashJob> toHash = new ArrayList<HashJob>();
+        scanDirectoryTree(root,toHash);
+        // the initial contents are not announced, but must be known before we start
+        for(Future<?> hashed : submitHashes(toHash,false)) {
+            try {
+                hashed.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("initial hashing failed: "+e.getMessage());
+            }
+        }
+        if(fileIndex!=null) {
+            // forget about anything deleted while we were not running
+            HashSet<String> present = new HashSet<String>();
+            tableLock.readLock().lock();
+            try {
+                for(String name : watched.files(root)) present.add(relativeName(name));
+            } finally {
+                tableLock.readLock().unlock();
+            }
+            fileIndex.retainAll(present);
+            syncIndex();
+        }
         log.info("starting file system monitor thread");
         this.setDaemon(true);
         start();
@@ -241,6 +454,64 @@ public class FileSystemManager extends Thread {
     //////////////////
 
 
+    /**
+     * The algorithm used to hash the files in the share directory, and so the
+     * algorithm of the file descriptors in the events emitted.
+     * @return The configured hash algorithm.
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /**
+     * Describe the file of a file event using a particular hash algorithm, for peers
+     * that do not understand the one the share directory is hashed with.
+     * Only {@link HashAlgorithm#MD5} descriptors can be produced this way; they are
+     * computed when first asked for and remembered while the file is unchanged.
+     * @param fileSystemEvent A file event.
+     * @param algorithm The algorithm the descriptor should use.
+     * @return A file descriptor for the event's file, using the requested algorithm if possible.
+     * @throws IOException If the file could not be read.
+     * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+     */
+    public FileDescriptor describe(FileSystemEvent fileSystemEvent, HashAlgorithm algorithm)
+            throws IOException, NoSuchAlgorithmException {
+        FileDescriptor fd = fileSystemEvent.fileDescriptor;
+        if(fd.hashAlgorithm==algorithm || algorithm!=HashAlgorithm.MD5) return fd;
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+fileSystemEvent.pathName;
+        boolean current;
+        tableLock.readLock().lock();
+        try {
+            int id = watched.file(fullPathName);
+            current = id!=-1 && watched.lastModified(id)==fd.lastModified;
+        } finally {
+            tableLock.readLock().unlock();
+        }
+        if(current) {
+            FileDescriptor legacy = legacyDescriptor(fullPathName);
+            if(legacy.lastModified==fd.lastModified) return legacy;
+        }
+        // deleted or already changed again, the timestamp will have to do
+        return fd;
+    }
+
+
+    /**
+     * Returns true if the path name is excluded from sharing by the ignore rules, either
+     * itself or because it is inside an ignored directory.
+     * @param pathName The path name to test, relative to the share directory.
+     * @param directory Whether the path name is that of a directory.
+     * @return boolean True if the path name is ignored, false otherwise.
+     */
+    public boolean isIgnored(String pathName, boolean directory) {
+        return ignoreRules.ignoredPath(IgnoreRules.portable(separatorsToSystem(pathName)),directory);
+    }
+
+    private boolean isIgnoredName(String name, boolean directory) {
+        if(name.equals(root)) return false;
+        return isIgnored(relativeName(name),directory);
+    }
+
     /**
      * Returns true if the path name is "safe" to be used.
      * Unsafe names should not be used as they may access
@@ -262,6 +533,10 @@ public class FileSystemManager extends Thread {
             return false;
         }
         //log.info(cannonicalName + " " + cannonicalRoot);
+        // loader files and the file index are never part of the shared namespace
+        for(String component : pathName.split(Pattern.quote(FileSystems.getDefault().getSeparator()))) {
+            if(component.endsWith(loadingSuffix)) return false;
+        }
         return cannonicalName.startsWith(cannonicalRoot+FileSystems.getDefault().getSeparator()) &&
                 cannonicalName.length()>cannonicalRoot.length()+1;
     }
@@ -276,8 +551,11 @@ public class FileSystemManager extends Thread {
      */
     public boolean dirNameExists(String pathName) {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            return watchedDirectories.contains(root+FileSystems.getDefault().getSeparator()+pathName);
+        tableLock.readLock().lock();
+        try {
+            return watched.containsDirectory(root+FileSystems.getDefault().getSeparator()+pathName);
+        } finally {
+            tableLock.readLock().unlock();
         }
     }
 
@@ -291,10 +569,8 @@ public class FileSystemManager extends Thread {
      */
     public boolean makeDirectory(String pathName) {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
-            return file.mkdir();
-        }
+        File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
+        return file.mkdir();
     }
 
     /**
@@ -306,12 +582,61 @@ public class FileSystemManager extends Thread {
      */
     public boolean deleteDirectory(String pathName) {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
-            if(file.isDirectory()) {
-                return file.delete();
-            } else return false;
+        File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
+        if(file.isDirectory()) {
+            return file.delete();
+        } else return false;
+    }
+
+    /**
+     * Attempt to rename a directory together with everything in it, as a peer did. The directory
+     * must exist, nothing may exist at the new name, the new name's parent directory must exist,
+     * and nothing in the directory may be loading or waiting to be hashed. The directory is renamed
+     * atomically, and its contents stay watched under their new names without being hashed again.
+     * Its {@link EVENT#DIRECTORY_MOVE} event is published tagged with the given origin.
+     * @param fromPathName The current name of the directory, relative to the share directory.
+     * @param pathName The new name of the directory, relative to the share directory.
+     * @param origin Where the change came from, see {@link FileSystemEvent#origin}.
+     * @return boolean True if the directory was renamed.
+     * @throws IOException If the directory could not be renamed.
+     */
+    public boolean moveDirectory(String fromPathName, String pathName, Object origin) throws IOException {
+        fromPathName=separatorsToSystem(fromPathName);
+        pathName=separatorsToSystem(pathName);
+        String separator=FileSystems.getDefault().getSeparator();
+        String fullFromPathName=root+separator+fromPathName;
+        String fullPathName=root+separator+pathName;
+        if(fullPathName.startsWith(fullFromPathName+separator)) return false;
+        File dest = new File(fullPathName);
+        FileSystemEvent event = new FileSystemEvent(dest.getParent(),dest.getName(),EVENT.DIRECTORY_MOVE);
+        event.fromPathName=fromPathName;
+        tableLock.writeLock().lock();
+        try {
+            if(!watched.containsDirectory(fullFromPathName) || !canMoveTo(dest)) return false;
+            // loaders are only created under the read lock, so none can start in here while we move it
+            for(String loading : loadingFiles.keySet()) {
+                if(loading.startsWith(fullFromPathName+separator)) return false;
+            }
+            for(String pending : pendingHashes.keySet()) {
+                if(pending.startsWith(fullFromPathName+separator)) return false;
+            }
+            log.info("moving "+fullFromPathName+" to "+fullPathName);
+            Files.move(Paths.get(fullFromPathName),dest.toPath(),StandardCopyOption.ATOMIC_MOVE);
+            ArrayList<String> dirs = watched.directories(fullFromPathName);
+            for(String dir : dirs) addDir(fullPathName+dir.substring(fullFromPathName.length()));
+            for(String file : watched.files(fullFromPathName)) {
+                // a rename keeps the file key as well as the content
+                FileDescriptor fd = descriptor(file);
+                dropFile(file);
+                addFile(fullPathName+file.substring(fullFromPathName.length()),fd);
+            }
+            for(int i=dirs.size()-1;i>=0;i--) dropDir(dirs.get(i));
+            syncIndex();
+        } finally {
+            tableLock.writeLock().unlock();
         }
+        publish(Collections.singletonList(event),origin);
+        return true;
     }
 
     // files
@@ -327,8 +652,11 @@ public class FileSystemManager extends Thread {
      */
     public boolean fileNameExists(String pathName) {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            return watchedFiles.containsKey(root+FileSystems.getDefault().getSeparator()+pathName);
+        tableLock.readLock().lock();
+        try {
+            return watched.containsFile(root+FileSystems.getDefault().getSeparator()+pathName);
+        } finally {
+            tableLock.readLock().unlock();
         }
     }
 
@@ -344,10 +672,13 @@ public class FileSystemManager extends Thread {
      */
     public boolean fileNameExists(String pathName, String md5) {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-            return watchedFiles.containsKey(fullPathName) &&
-                    watchedFiles.get(fullPathName).md5.equals(md5);
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        tableLock.readLock().lock();
+        try {
+            int id = watched.file(fullPathName);
+            return id!=-1 && watched.digest(id).equals(md5);
+        } finally {
+            tableLock.readLock().unlock();
         }
     }
 
@@ -362,17 +693,66 @@ public class FileSystemManager extends Thread {
      */
     public boolean deleteFile(String pathName, long lastModified, String md5) {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-            if(watchedFiles.containsKey(fullPathName) && (watchedFiles.get(fullPathName).lastModified<=lastModified||
-                    watchedFiles.get(fullPathName).md5.equals(md5))) {
-                log.info("deleting "+fullPathName);
-                File file = new File(fullPathName);
-                if(file.isFile()) {
-                    return file.delete();
-                } else return false;
-            } else return false;
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        tableLock.readLock().lock();
+        try {
+            int id = watched.file(fullPathName);
+            if(id==-1 || (watched.lastModified(id)>lastModified && !watched.digest(id).equals(md5))) return false;
+        } finally {
+            tableLock.readLock().unlock();
+        }
+        log.info("deleting "+fullPathName);
+        File file = new File(fullPathName);
+        if(file.isFile()) {
+            return file.delete();
+        } else return false;
+    }
+
+    /**
+     * Attempt to rename a file, keeping its content, as a peer did. The file must exist and
+     * have the given content, nothing may exist at the new name, and the new name's parent
+     * directory must exist. The file is renamed atomically and stays watched under its new name
+     * without being hashed again. Its {@link EVENT#FILE_MOVE} event is published tagged with the
+     * given origin.
+     * @param fromPathName The current name of the file, relative to the share directory.
+     * @param pathName The new name of the file, relative to the share directory.
+     * @param hashAlgorithm The algorithm that produced md5.
+     * @param md5 The hash of the content the file must have.
+     * @param origin Where the change came from, see {@link FileSystemEvent#origin}.
+     * @return boolean True if the file was renamed.
+     * @throws NoSuchAlgorithmException If the hash algorithm is not available.
+     * @throws IOException If the file could not be renamed.
+     */
+    public boolean moveFile(String fromPathName, String pathName, HashAlgorithm hashAlgorithm, String md5,
+                            Object origin) throws NoSuchAlgorithmException, IOException {
+        fromPathName=separatorsToSystem(fromPathName);
+        pathName=separatorsToSystem(pathName);
+        String fullFromPathName=root+FileSystems.getDefault().getSeparator()+fromPathName;
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        // checking the content may mean hashing it, which is not done under any lock
+        if(!fileNameExists(fromPathName) || !currentDigest(fullFromPathName,hashAlgorithm).equals(md5)) return false;
+        File dest = new File(fullPathName);
+        FileSystemEvent event;
+        synchronized(loaderLock(fullPathName)) {
+            if(loadingFiles.containsKey(fullPathName) || loadingFiles.containsKey(fullFromPathName)) return false;
+            tableLock.writeLock().lock();
+            try {
+                FileDescriptor fd = descriptor(fullFromPathName);
+                if(fd==null || pendingHashes.containsKey(fullFromPathName) ||
+                        new File(fullFromPathName).lastModified()!=fd.lastModified || !canMoveTo(dest)) return false;
+                log.info("moving "+fullFromPathName+" to "+fullPathName);
+                Files.move(Paths.get(fullFromPathName),dest.toPath(),StandardCopyOption.ATOMIC_MOVE);
+                dropFile(fullFromPathName);
+                addFile(fullPathName,fd);
+                syncIndex();
+                event = new FileSystemEvent(dest.getParent(),dest.getName(),EVENT.FILE_MOVE,fd);
+                event.fromPathName=fromPathName;
+            } finally {
+                tableLock.writeLock().unlock();
+            }
         }
+        publish(Collections.singletonList(event),origin);
+        return true;
     }
 
     /**
@@ -382,6 +762,9 @@ public class FileSystemManager extends Thread {
      * on its filename, called a <i>loader file</i>. Such files never generate file system events. The file loader
      * can be subsequently accessed via the given name using {@link #writeFile(String, ByteBuffer, long)},
      * {@link #checkWriteComplete(String)} and {@link #checkShortcut(String)}.
+     * If the same content is already being loaded into the file name, or an earlier transfer of it
+     * was interrupted (see {@link #suspendFileLoader(String)}), loading carries on from where it
+     * got to; see {@link #nextMissingRange(String)}.
      * @param pathName The name of the file to create, when loading is complete, relative to
      * the share directory.
      * @param md5 The MD5 hash of the content that the file contents <i>must</i> match
@@ -394,12 +777,30 @@ public class FileSystemManager extends Thread {
      */
     public boolean createFileLoader(String pathName, String md5, long length, long lastModified)
             throws NoSuchAlgorithmException, IOException {
+        return createFileLoader(pathName,HashAlgorithm.MD5,md5,length,lastModified);
+    }
+
+    /**
+     * Create a file loader for content hashed with any algorithm. See
+     * {@link #createFileLoader(String, String, long, long)}.
+     * @param hashAlgorithm The algorithm that produced md5.
+     */
+    public boolean createFileLoader(String pathName, HashAlgorithm hashAlgorithm, String md5, long length,
+                                    long lastModified)
+            throws NoSuchAlgorithmException, IOException {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-            if(watchedFiles.containsKey(fullPathName)) return false;
-            if(loadingFiles.containsKey(fullPathName)) return false;
-            loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,length,lastModified));
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        synchronized(loaderLock(fullPathName)) {
+            // excludes moveDirectory, which must not move a directory with a loader starting in it
+            tableLock.readLock().lock();
+            try {
+                if(watched.containsFile(fullPathName)) return false;
+                // e.g. the same file announced again by another peer, carry on with the same loader
+                if(loadingFiles.containsKey(fullPathName)) return loadingFiles.get(fullPathName).share(hashAlgorithm,md5,length);
+                loadingFiles.put(fullPathName, new FileLoader(fullPathName,hashAlgorithm,md5,length,lastModified));
+            } finally {
+                tableLock.readLock().unlock();
+            }
         }
         return true;
     }
@@ -416,8 +817,8 @@ public class FileSystemManager extends Thread {
      */
     public boolean writeFile(String pathName, ByteBuffer src, long position) throws IOException {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        synchronized(loaderLock(fullPathName)) {
             if(!loadingFiles.containsKey(fullPathName)) return false;
             loadingFiles.get(fullPathName).writeFile(src, position);
         }
@@ -436,36 +837,188 @@ public class FileSystemManager extends Thread {
      */
     public ByteBuffer readFile(String md5, long position, long length)
             throws IOException, NoSuchAlgorithmException {
-        synchronized(this) {
-            if(hashMap.containsKey(md5)) {
-                for(String attempt: hashMap.get(md5)) {
-                    try {
-                        File file = new File(attempt);
-                        log.info("reading file "+file);
-                        RandomAccessFile raf = new RandomAccessFile(file, "rw");
-                        FileChannel channel = raf.getChannel();
-                        FileLock lock = channel.lock();
-                        String currentMd5 = hashFile(file,attempt,watchedFiles.get(attempt).lastModified);
-                        if(currentMd5.equals(md5)) {
-                            ByteBuffer bb = ByteBuffer.allocate((int) length);
-                            channel.position(position);
-                            int read = channel.read(bb);
-                            lock.release();
-                            channel.close();
-                            raf.close();
-                            if(read<length) throw new IOException("did not read everything expected");
-                            return bb;
-                        }
-                        lock.release();
-                        channel.close();
-                        raf.close();
-                    } catch (IOException e) {
-                        // try another one
-                    }
+        return readFile(HashAlgorithm.MD5,md5,position,length);
+    }
+
+    /**
+     * Read bytes from any file whose content has the given hash. See {@link #readFile(String, long, long)}.
+     * Files are read through a cache of open channels without being locked, so any number of
+     * peers may read from the same file at once. A file whose size, timestamp or identity has changed
+     * since it was last hashed is not read from.
+     * @param hashAlgorithm The algorithm that produced md5.
+     */
+    public ByteBuffer readFile(HashAlgorithm hashAlgorithm, String md5, long position, long length)
+            throws IOException, NoSuchAlgorithmException {
+        ChannelCache.Handle handle = openSource(hashAlgorithm,md5,position+length);
+        if(handle==null) return null;
+        try {
+            ByteBuffer bb = ByteBuffer.allocate((int) length);
+            while(bb.hasRemaining()) {
+                if(handle.channel.read(bb,position+bb.position())<0) break;
+            }
+            if(bb.hasRemaining()) throw new IOException("did not read everything expected");
+            return bb;
+        } finally {
+            openFiles.release(handle);
+        }
+    }
+
+    /**
+     * Compute the rsync-style signatures of the current content of a file that is being modified,
+     * for the peer sending the new content to compute a {@link Delta} against.
+     * See {@link Delta#signatures(FileChannel, int)}.
+     * @param pathName The name of the file being modified, which must have a file loader.
+     * @param blockSize The size of the blocks to compute signatures of.
+     * @return The signatures, or null if there is no file loader or no current content to use.
+     * @throws IOException If there was a problem reading the file.
+     */
+    public byte[] deltaSignatures(String pathName, int blockSize) throws IOException {
+        pathName=separatorsToSystem(pathName);
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        if(!loadingFiles.containsKey(fullPathName) || !fileNameExists(pathName)) return null;
+        try (FileChannel basis = FileChannel.open(Paths.get(fullPathName), StandardOpenOption.READ)) {
+            return Delta.signatures(basis, blockSize);
+        }
+    }
+
+    /**
+     * Compute the instructions for a peer to build the file with the given content from its
+     * own version of it, given the signatures of its version.
+     * See {@link Delta#instructions(FileChannel, int, byte[])}.
+     * @param hashAlgorithm The algorithm that produced md5.
+     * @param md5 The hash of the content the peer wants.
+     * @param blockSize The block size of the signatures.
+     * @param signatures The signatures of the peer's version.
+     * @return The instructions, or null if there is no file with that content.
+     * @throws IOException If there was a problem reading the file, or the signatures are malformed.
+     */
+    public byte[] deltaInstructions(HashAlgorithm hashAlgorithm, String md5, int blockSize, byte[] signatures)
+            throws IOException {
+        ChannelCache.Handle handle = openSource(hashAlgorithm,md5,0);
+        if(handle==null) return null;
+        try {
+            return Delta.instructions(handle.channel, blockSize, signatures);
+        } finally {
+            openFiles.release(handle);
+        }
+    }
+
+    /**
+     * Requests the file loader for the associated file name to build as much of the file as it can
+     * from the current version of the file, following instructions from {@link #deltaInstructions}.
+     * The rest of the file is left for {@link #writeFile(String, ByteBuffer, long)}, see
+     * {@link #nextMissingRange(String)}.
+     * @param pathName The name of the file being modified.
+     * @param instructions The instructions from the peer.
+     * @return True if the instructions were applied, false if there is no file loader.
+     * @throws IOException If the instructions are malformed or the file could not be read; the
+     * loader remains available in this case, see {@link #resetFileLoader(String)}.
+     */
+    public boolean applyDelta(String pathName, byte[] instructions) throws IOException {
+        pathName=separatorsToSystem(pathName);
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        synchronized(loaderLock(fullPathName)) {
+            FileLoader loader = loadingFiles.get(fullPathName);
+            if(loader==null) return false;
+            loader.applyDelta(Delta.decode(instructions,loader.length));
+            return true;
+        }
+    }
+
+    /**
+     * The first range of a file being loaded that has not been written yet.
+     * @param pathName The name of the file being loaded.
+     * @return The start (inclusive) and end (exclusive) of the range, or null if the whole file has
+     * been written or there is no file loader.
+     */
+    public long[] nextMissingRange(String pathName) {
+        pathName=separatorsToSystem(pathName);
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        synchronized(loaderLock(fullPathName)) {
+            FileLoader loader = loadingFiles.get(fullPathName);
+            return loader==null ? null : loader.nextMissingRange();
+        }
+    }
+
+    /**
+     * Start a file loader again from nothing, e.g. because a delta was built against content that
+     * changed underneath it. A loader is only reset once; after that, loading has failed.
+     * @param pathName The name of the file being loaded.
+     * @return True if the loader was reset and the whole file should be requested again.
+     */
+    public boolean resetFileLoader(String pathName) {
+        pathName=separatorsToSystem(pathName);
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        synchronized(loaderLock(fullPathName)) {
+            FileLoader loader = loadingFiles.get(fullPathName);
+            return loader!=null && loader.reset();
+        }
+    }
+
+    /**
+     * The chunks (see {@link Chunker}) of the file with the given content, for a peer to find
+     * which of them it already has.
+     * @param hashAlgorithm The algorithm that produced md5.
+     * @param md5 The hash of the content.
+     * @return The encoded chunk list, or null if there is no file with that content.
+     * @throws IOException If there was a problem reading the file.
+     */
+    public byte[] chunkList(HashAlgorithm hashAlgorithm, String md5) throws IOException {
+        ChannelCache.Handle handle = openSource(hashAlgorithm,md5,0);
+        if(handle==null) return null;
+        try {
+            if(chunkIndex!=null) return Chunker.encode(chunkIndex.chunks(handle.path.toString(),handle.channel));
+            return Chunker.encode(Chunker.chunks(handle.channel));
+        } finally {
+            openFiles.release(handle);
+        }
+    }
+
+    /**
+     * Requests the file loader for the associated file name to copy every chunk in the given
+     * chunk list that can be found in the watched files. The rest of the file is left for
+     * {@link #writeFile(String, ByteBuffer, long)}, see {@link #nextMissingRange(String)}.
+     * @param pathName The name of the file being loaded.
+     * @param chunkList The file's chunks, from {@link #chunkList(HashAlgorithm, String)}.
+     * @return The number of bytes copied, or -1 if there is no file loader.
+     * @throws IOException If the chunk list is malformed or a file could not be written; the
+     * loader remains available in this case.
+     */
+    public long applyChunks(String pathName, byte[] chunkList) throws IOException {
+        pathName=separatorsToSystem(pathName);
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        synchronized(loaderLock(fullPathName)) {
+            FileLoader loader = loadingFiles.get(fullPathName);
+            if(loader==null) return -1;
+            if(chunkIndex==null) return 0;
+            return loader.applyChunks(Chunker.decode(chunkList,loader.length));
+        }
+    }
+
+    /**
+     * Open a watched file with the given content for reading, if it has not changed since it was hashed.
+     * @param end The least size the file must have.
+     * @return An open channel to be released to {@link #openFiles}, or null if there is no such file.
+     */
+    private ChannelCache.Handle openSource(HashAlgorithm hashAlgorithm, String md5, long end) {
+        for(String attempt: filesWithDigest(hashAlgorithm,md5)) {
+            FileDescriptor hashed = hashedDescriptor(attempt,hashAlgorithm);
+            if(hashed==null || !hashed.md5.equals(md5) || end>hashed.fileSize) continue;
+            Path path = Paths.get(attempt);
+            try {
+                // the content is only known to be right while the file is the one that was hashed
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                String fileKey = attrs.fileKey()==null ? null : attrs.fileKey().toString();
+                if(attrs.size()!=hashed.fileSize || attrs.lastModifiedTime().toMillis()!=hashed.lastModified ||
+                        (hashed.fileKey!=null && fileKey!=null && !hashed.fileKey.equals(fileKey))) {
+                    continue;
                 }
+                return openFiles.acquire(path,attrs.fileKey());
+            } catch (IOException e) {
+                // try another one
             }
-            return null;
         }
+        return null;
     }
 
     /**
@@ -482,24 +1035,40 @@ public class FileSystemManager extends Thread {
      * @throws IOException If there was a problem accessing the file system, the loader is no longer available in this case.
      */
     public boolean checkWriteComplete(String pathName) throws NoSuchAlgorithmException, IOException {
+        return checkWriteComplete(pathName,null);
+    }
+
+    /**
+     * As {@link #checkWriteComplete(String)}, but a completed file is added to the watched files
+     * straight away rather than being found and hashed again by the next scan, and its event
+     * (along with events for any directories it is in that are not watched yet) is published
+     * tagged with the given origin.
+     * @param pathName The name of the file to check if loading has completed.
+     * @param origin Where the file came from, see {@link FileSystemEvent#origin}.
+     * @return True if the file was completed, false if not and the loader is still waiting for more data.
+     * @throws NoSuchAlgorithmException If the hash algorithm is not available, the loader is no longer available in this case.
+     * @throws IOException If there was a problem accessing the file system, the loader is no longer available in this case.
+     */
+    public boolean checkWriteComplete(String pathName, Object origin) throws NoSuchAlgorithmException, IOException {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-            if(!loadingFiles.containsKey(fullPathName)) return false;
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        FileLoader loader;
+        synchronized(loaderLock(fullPathName)) {
+            loader = loadingFiles.get(fullPathName);
+            if(loader==null) return false;
             boolean check=false;
             try {
-                check = loadingFiles.get(fullPathName).checkWriteComplete();
+                check = loader.checkWriteComplete();
             } catch (IOException | NoSuchAlgorithmException e) {
-                FileLoader fl = loadingFiles.get(fullPathName);
                 loadingFiles.remove(fullPathName);
-                fl.cancel();
+                loader.cancel();
                 throw e;
             }
-            if(check) {
-                loadingFiles.remove(fullPathName);
-            }
-            return check;
+            if(!check) return false;
+            loadingFiles.remove(fullPathName);
         }
+        publish(loader.completion,origin);
+        return true;
     }
 
     /**
@@ -515,23 +1084,58 @@ public class FileSystemManager extends Thread {
      * @throws IOException If there were any errors accessing the file system, the loader is no longer available in this case.
      */
     public boolean checkShortcut(String pathName) throws NoSuchAlgorithmException, IOException {
+        return checkShortcut(pathName,null);
+    }
+
+    /**
+     * As {@link #checkShortcut(String)}, but a completed file is added to the watched files
+     * straight away, see {@link #checkWriteComplete(String, Object)}.
+     * @param pathName The name of the file for the associated file loader.
+     * @param origin Where the file came from, see {@link FileSystemEvent#origin}.
+     * @return True if a shortcut was used, false otherwise.
+     * @throws NoSuchAlgorithmException If the hash algorithm is not available, the loader is no longer available in this case.
+     * @throws IOException If there were any errors accessing the file system, the loader is no longer available in this case.
+     */
+    public boolean checkShortcut(String pathName, Object origin) throws NoSuchAlgorithmException, IOException {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-            if(!loadingFiles.containsKey(fullPathName)) return false;
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        FileLoader loader;
+        synchronized(loaderLock(fullPathName)) {
+            loader = loadingFiles.get(fullPathName);
+            if(loader==null) return false;
             boolean check=false;
             try {
-                check = loadingFiles.get(fullPathName).checkShortcut();
+                check = loader.checkShortcut();
             } catch (IOException | NoSuchAlgorithmException e) {
-                FileLoader fl = loadingFiles.get(fullPathName);
                 loadingFiles.remove(fullPathName);
-                fl.cancel();
+                loader.cancel();
                 throw e;
             }
-            if(check) {
-                loadingFiles.remove(fullPathName);
-            }
-            return check;
+            if(!check) return false;
+            loadingFiles.remove(fullPathName);
+        }
+        publish(loader.completion,origin);
+        return true;
+    }
+
+    /**
+     * Announce events for changes made on behalf of a peer, outside of any locks.
+     */
+    private void publish(List<FileSystemEvent> events, Object origin) {
+        for(FileSystemEvent pe : events) {
+            pe.origin=origin;
+            announce(pe);
+        }
+    }
+
+    /**
+     * Add an event to the change journal and pass it to the observer.
+     */
+    private void announce(FileSystemEvent pe) {
+        synchronized(announceLock) {
+            journal.append(pe);
+            log.info(pe.toString());
+            fileSystemObserver.processFileSystemEvent(pe);
         }
     }
 
@@ -549,18 +1153,73 @@ public class FileSystemManager extends Thread {
      */
     public boolean modifyFileLoader(String pathName, String md5, long lastModified) throws IOException {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-            if(loadingFiles.containsKey(fullPathName)) return false;
-            if(watchedFiles.containsKey(fullPathName) && watchedFiles.get(fullPathName).lastModified<=lastModified) {
-                loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,
-                        watchedFiles.get(fullPathName).fileSize,
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        long length;
+        tableLock.readLock().lock();
+        try {
+            int id = watched.file(fullPathName);
+            if(id==-1) return false;
+            length = watched.fileSize(id);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+        return modifyFileLoader(pathName,HashAlgorithm.MD5,md5,length,lastModified);
+    }
+
+    /**
+     * Create a file loader for modified content hashed with any algorithm. See
+     * {@link #modifyFileLoader(String, String, long)}.
+     * @param hashAlgorithm The algorithm that produced md5.
+     * @param length The length of the modified file.
+     */
+    public boolean modifyFileLoader(String pathName, HashAlgorithm hashAlgorithm, String md5, long length,
+                                    long lastModified) throws IOException {
+        pathName=separatorsToSystem(pathName);
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        synchronized(loaderLock(fullPathName)) {
+            if(loadingFiles.containsKey(fullPathName)) return loadingFiles.get(fullPathName).share(hashAlgorithm,md5,length);
+            // held until the loader is in place, see createFileLoader
+            tableLock.readLock().lock();
+            try {
+                int id = watched.file(fullPathName);
+                if(id==-1 || watched.lastModified(id)>lastModified) return false;
+                loadingFiles.put(fullPathName, new FileLoader(fullPathName,hashAlgorithm,md5,length,
                         lastModified));
-            } else return false;
+            } finally {
+                tableLock.readLock().unlock();
+            }
         }
         return true;
     }
 
+    /**
+     * Stop a file loader without losing what it has loaded, e.g. because the peer sending the file
+     * has gone. Its progress is saved, and a later request to load the same content into the same
+     * file name carries on from there, even after a restart. A loader that was created or
+     * modified again for the same content is only suspended once every one of its users has
+     * suspended it.
+     * @param pathName The name of the file loader, i.e. the associated file it was trying to load.
+     * @return True if the file loader existed, false otherwise.
+     * @throws IOException if there was a problem saving its progress, the loader file is deleted in this case.
+     */
+    public boolean suspendFileLoader(String pathName) throws IOException {
+        pathName=separatorsToSystem(pathName);
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        synchronized(loaderLock(fullPathName)) {
+            FileLoader loader = loadingFiles.get(fullPathName);
+            if(loader==null) return false;
+            if(--loader.users>0) return true;
+            loadingFiles.remove(fullPathName);
+            try {
+                loader.suspend();
+            } catch (IOException e) {
+                loader.cancel();
+                throw e;
+            }
+            return true;
+        }
+    }
+
     /**
      * Cancel a file loader. Removes the file loader if present, including the loader file.
      * No other actions are taken.
@@ -570,8 +1229,8 @@ public class FileSystemManager extends Thread {
      */
     public boolean cancelFileLoader(String pathName) throws IOException {
         pathName=separatorsToSystem(pathName);
-        synchronized(this) {
-            String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+        synchronized(loaderLock(fullPathName)) {
             if(loadingFiles.containsKey(fullPathName)) {
                 boolean success = false;
                 try {
@@ -598,93 +1257,319 @@ public class FileSystemManager extends Thread {
      * share directory.
      */
     public ArrayList<FileSystemEvent> generateSyncEvents() {
-        synchronized(this) {
+        return generateSyncEvents("");
+    }
+
+    /**
+     * The events that create a file, or a directory and everything in it, for a peer that does
+     * not have it at all.
+     * @param pathName The file/directory, relative to the share directory, or the empty string for
+     * the share directory itself.
+     * @return A list of file system events, parents before children, empty if nothing is watched there.
+     */
+    public ArrayList<FileSystemEvent> generateSyncEvents(String pathName) {
+        String fullPathName=treeName(pathName);
+        tableLock.readLock().lock();
+        try {
             ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
-            ArrayList<String> keys = new ArrayList<String>(watchedDirectories);
-            for(String pathname : keys) {
+            // parents are always listed before their children
+            for(String pathname : watched.directories(fullPathName)) {
                 File file = new File(pathname);
                 pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
             }
-            Collections.sort(pathevents,(arg0,arg1) ->
-                    {
-                        return arg0.path.length()-arg1.path.length();
-                    }
-            );
-            keys = new ArrayList<String>(watchedFiles.keySet());
-            for(String pathname : keys) {
+            for(String pathname : watched.files(fullPathName)) {
                 File file = new File(pathname);
-                pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, watchedFiles.get(pathname)));
+                pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, descriptor(pathname)));
             }
             return pathevents;
+        } finally {
+            tableLock.readLock().unlock();
         }
     }
 
-    ////////////////////
-    // Internals
-    ////////////////////
+    /**
+     * A filter of every file and directory in the share directory, for a peer to leave out of its
+     * first sync with us whatever we already have.
+     * @param maxBytes The most the filter may take up; the more entries beyond that, the more often the
+     * filter wrongly claims we have something.
+     * @return The filter, see {@link SyncFilter}, or null if there are too many entries for a filter of that
+     * size to be of use.
+     */
+    public SyncFilter syncFilter(int maxBytes) {
+        tableLock.readLock().lock();
+        try {
+            ArrayList<String> directories = watched.directories(root);
+            ArrayList<String> files = watched.files(root);
+            if(!SyncFilter.useful(directories.size()+files.size(),maxBytes)) return null;
+            SyncFilter filter = new SyncFilter(hashAlgorithm,directories.size()+files.size(),maxBytes);
+            for(String pathname : directories) {
+                filter.add(SyncFilter.directoryKey(IgnoreRules.portable(relativeName(pathname))));
+            }
+            for(String pathname : files) {
+                FileDescriptor fd = descriptor(pathname);
+                // digests of other algorithms cannot be looked up by the peer
+                if(fd.hashAlgorithm!=hashAlgorithm) continue;
+                filter.add(SyncFilter.fileKey(IgnoreRules.portable(relativeName(pathname)),fd.md5));
+            }
+            return filter;
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
 
-    private class FileLoader {
-        private String md5;
-        private long length;
-        private long lastModified;
-        private String pathName;
-        private FileChannel channel;
-        private FileLock lock;
+    /**
+     * The events that create everything in the share directory that a peer does not have, going by a
+     * filter of what it has. Things the filter wrongly claims the peer has are left out, and left to
+     * the next periodic sync.
+     * @param peerHas The peer's filter, see {@link #syncFilter(int)}.
+     * @return A list of file system events, parents before children.
+     */
+    public ArrayList<FileSystemEvent> generateSyncEventsExcept(SyncFilter peerHas) {
+        ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+        for(FileSystemEvent pe : generateSyncEvents()) {
+            String pathName=IgnoreRules.portable(pe.pathName);
+            if(pe.fileDescriptor==null) {
+                if(peerHas.mightContain(SyncFilter.directoryKey(pathName))) continue;
+            } else if(pe.fileDescriptor.hashAlgorithm==peerHas.hashAlgorithm &&
+                    peerHas.mightContain(SyncFilter.fileKey(pathName,pe.fileDescriptor.md5))) {
+                continue;
+            }
+            pathevents.add(pe);
+        }
+        return pathevents;
+    }
+
+    /**
+     * The epoch of the change journal, which identifies the sequence numbers of this run's events.
+     */
+    public long journalEpoch() {
+        return journal.epoch();
+    }
+
+    /**
+     * The events announced since those a peer last heard about, for bringing it up to date after it
+     * reconnects. Files are described as they are now rather than as they were when announced, and the
+     * creation or modification of a file or directory that has gone since is left out, since a later
+     * event accounts for it.
+     * @param epoch The journal epoch of the events the peer heard about, see {@link #journalEpoch()}.
+     * @param sequence The sequence number of the last event the peer heard about.
+     * @return The events in the order they were announced, or null if the peer must be synced in full
+     * because the epoch is not ours or some of the events are no longer in the journal.
+     */
+    public ArrayList<FileSystemEvent> changesSince(long epoch, long sequence) {
+        if(epoch!=journal.epoch()) return null;
+        List<FileSystemEvent> changes = journal.since(sequence);
+        if(changes==null) return null;
+        ArrayList<FileSystemEvent> events=new ArrayList<FileSystemEvent>();
+        tableLock.readLock().lock();
+        try {
+            for(FileSystemEvent change : changes) {
+                FileSystemEvent event = change;
+                if(change.event==EVENT.FILE_CREATE || change.event==EVENT.FILE_MODIFY) {
+                    FileDescriptor fd = descriptor(treeName(change.pathName));
+                    if(fd==null) continue;
+                    event = new FileSystemEvent(change.path,change.name,change.event,fd);
+                    event.sequence=change.sequence;
+                } else if(change.event==EVENT.DIRECTORY_CREATE && !watched.containsDirectory(treeName(change.pathName))) {
+                    continue;
+                }
+                events.add(event);
+            }
+        } finally {
+            tableLock.readLock().unlock();
+        }
+        return events;
+    }
+
+    /**
+     * A hash of everything in a watched directory, which is the same in two share directories
+     * only if the directory has the same files with the same content in both, all the way down.
+     * It is kept up to date as files change, and only recomputed for the directories that did.
+     * @param pathName The directory, relative to the share directory, or the empty string for the
+     * share directory itself.
+     * @return The hash as a hex string, or null if the directory is not watched.
+     */
+    public String treeHash(String pathName) {
+        String fullPathName=treeName(pathName);
+        tableLock.readLock().lock();
+        try {
+            return watched.treeHash(fullPathName);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The files and directories directly inside a watched directory, with their hashes (see
+     * {@link #treeHash(String)}), to find which of them differ from a peer's.
+     * @param pathName The directory, relative to the share directory, or the empty string for the
+     * share directory itself.
+     * @return The entries sorted by name, or null if the directory is not watched.
+     */
+    public ArrayList<TreeEntry> treeEntries(String pathName) {
+        String fullPathName=treeName(pathName);
+        tableLock.readLock().lock();
+        try {
+            return watched.treeEntries(fullPathName);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    private String treeName(String pathName) {
+        if(pathName.isEmpty()) return root;
+        return root+FileSystems.getDefault().getSeparator()+separatorsToSystem(pathName);
+    }
+
+    /**
+     * The events that a move is equivalent to, for peers that do not understand moves: the creation
+     * of everything now at the new name, parents first, then the deletion of the same things at the
+     * old name, deepest first. The creations come first so that such a peer can still copy the
+     * content from under the old name rather than fetching it.
+     * @param fromPathName The name the file/directory was moved from, relative to the share directory.
+     * @param pathName The name the file/directory was moved to, relative to the share directory.
+     * @return The equivalent events, empty if nothing is watched at the new name any more.
+     */
+    public ArrayList<FileSystemEvent> expandMove(String fromPathName, String pathName) {
+        String fullFromPathName=root+FileSystems.getDefault().getSeparator()+separatorsToSystem(fromPathName);
+        String fullPathName=root+FileSystems.getDefault().getSeparator()+separatorsToSystem(pathName);
+        ArrayList<FileSystemEvent> creates=new ArrayList<FileSystemEvent>();
+        ArrayList<FileSystemEvent> deletes=new ArrayList<FileSystemEvent>();
+        tableLock.readLock().lock();
+        try {
+            for(String pathname : watched.files(fullPathName)) {
+                File file = new File(pathname);
+                File old = new File(fullFromPathName+pathname.substring(fullPathName.length()));
+                FileDescriptor fd = descriptor(pathname);
+                creates.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,fd));
+                deletes.add(new FileSystemEvent(old.getParent(),old.getName(),EVENT.FILE_DELETE,fd));
+            }
+            ArrayList<String> dirs = watched.directories(fullPathName);
+            for(int i=0;i<dirs.size();i++) {
+                File file = new File(dirs.get(i));
+                File old = new File(fullFromPathName+dirs.get(dirs.size()-1-i).substring(fullPathName.length()));
+                creates.add(i,new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+                deletes.add(new FileSystemEvent(old.getParent(),old.getName(),EVENT.DIRECTORY_DELETE));
+            }
+        } finally {
+            tableLock.readLock().unlock();
+        }
+        creates.addAll(deletes);
+        return creates;
+    }
+
+    ////////////////////
+    // Internals
+    ////////////////////
+
+    private class FileLoader {
+        private HashAlgorithm hashAlgorithm;
+        private String md5;
+        private long length;
+        private long lastModified;
+        private String pathName;
+        private FileChannel channel;
+        private FileLock lock;
         private File file;
         private RandomAccessFile raf;
-        public FileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
+        // start -> end of every range not written yet
+        private TreeMap<Long,Long> missing = new TreeMap<Long,Long>();
+        private boolean reset;
+        // digest of the first digested bytes of the file, null if it can no longer be trusted
+        private HashAlgorithm.Digester running;
+        private long digested;
+        // bytes written since progress was last saved
+        private long unsaved;
+        // number of transfers filling this loader
+        private int users = 1;
+        // events for the file once it is in place
+        private List<FileSystemEvent> completion = Collections.emptyList();
+        public FileLoader(String pathName, HashAlgorithm hashAlgorithm, String md5, long length, long lastModified)
+                throws IOException {
             this.pathName=pathName;
+            this.hashAlgorithm=hashAlgorithm;
             this.md5=md5;
             this.length=length;
             this.lastModified=lastModified;
             file = new File(pathName+loadingSuffix);
-            if(file.exists()) throw new IOException("file loader already in progress");
-            log.info("creating file "+file.getPath());
-            file.createNewFile();
+            TransferProgress.Record record = null;
+            if(file.exists() && transferProgress!=null) record = transferProgress.load(relativeName(pathName));
+            if(record!=null && record.matches(hashAlgorithm,md5,length)) {
+                log.info("resuming file "+file.getPath());
+                missing = record.missing;
+            } else {
+                // left over from a transfer of something else, or whose progress was lost
+                if(file.exists() && !file.delete()) throw new IOException("could not delete old "+file.getPath());
+                log.info("creating file "+file.getPath());
+                file.createNewFile();
+                if(length>0) missing.put(0L,length);
+            }
             raf = new RandomAccessFile(file, "rw");
             channel = raf.getChannel();
             lock = channel.lock();
+            startDigest();
+        }
+
+        /**
+         * Take on another user of this loader, if it is loading the given content.
+         */
+        public boolean share(HashAlgorithm hashAlgorithm, String md5, long length) {
+            if(this.hashAlgorithm!=hashAlgorithm || !this.md5.equals(md5) || this.length!=length) return false;
+            users++;
+            return true;
         }
 
         public boolean cancel() throws IOException {
             lock.release();
             channel.close();
             raf.close();
+            forgetProgress();
             return file.delete();
         }
 
+        public void suspend() throws IOException {
+            saveProgress();
+            lock.release();
+            channel.close();
+            raf.close();
+            log.info("suspended loading "+file.getPath());
+        }
+
+        /**
+         * Record which ranges have been loaded, once they are safely on disk.
+         */
+        private void saveProgress() throws IOException {
+            unsaved=0;
+            if(transferProgress==null) return;
+            channel.force(false);
+            transferProgress.save(relativeName(pathName),hashAlgorithm,md5,length,missing);
+        }
+
+        private void forgetProgress() {
+            if(transferProgress!=null) transferProgress.remove(relativeName(pathName));
+        }
+
         public boolean checkShortcut() throws NoSuchAlgorithmException, IOException {
             // check for a shortcut
             boolean success=false;
-            if(hashMap.containsKey(md5)) {
-                for(String attempt: hashMap.get(md5)) {
-                    RandomAccessFile raf2 = null;
-                    FileChannel channel2 = null;
-                    FileLock lock2 = null;
+            for(String attempt: filesWithDigest(hashAlgorithm,md5)) {
+                FileChannel channel2 = null;
+                FileLock lock2 = null;
+                synchronized(sourceLock(attempt)) {
                     try {
-                        File file = new File(attempt);
-                        raf2 = new RandomAccessFile(file, "rw");
-                        channel2 = raf2.getChannel();
-                        lock2 = channel2.lock();
-                        String currentMd5 = hashFile(file,attempt,watchedFiles.get(attempt).lastModified);
-                        if(currentMd5.equals(md5)) {
-                            Path dest = Paths.get(pathName);
-                            CopyOption[] options = new CopyOption[]{
-                                    StandardCopyOption.REPLACE_EXISTING
-                            };
-                            InputStream is = Channels.newInputStream(channel2);
-                            Files.copy(is, dest, options);
-                            dest.toFile().setLastModified(lastModified);
+                        channel2 = FileChannel.open(Paths.get(attempt), StandardOpenOption.READ);
+                        lock2 = channel2.lock(0L,Long.MAX_VALUE,true);
+                        String currentMd5 = currentDigest(attempt,hashAlgorithm);
+                        if(currentMd5.equals(md5) && shortcutFrom(Paths.get(attempt))) {
                             success=true;
                             break;
                         }
                     } catch (IOException e) {
-                        e.printStackTrace(); // try another one
+                        log.warning("could not use "+attempt+" for "+pathName+": "+e.getMessage()); // try another one
                     }
                     finally {
                         if (lock2 != null) lock2.release();
                         if (channel2 != null) channel2.close();
-                        if (raf2 != null) raf2.close();
                     }
                 }
             }
@@ -696,240 +1581,1192 @@ public class FileSystemManager extends Thread {
             }
             return success;
         }
+        /**
+         * Make the file from a local file with the same content, using the first configured
+         * shortcut strategy that works, and put it in place. A strategy that fails (e.g. hard
+         * links across devices, or on a file system without them) falls back to the next one.
+         */
+        private boolean shortcutFrom(Path source) throws IOException {
+            Path temp = Paths.get(pathName+".shortcut"+loadingSuffix);
+            Files.deleteIfExists(temp);
+            IOException failure = null;
+            for(ShortcutStrategy strategy : shortcutStrategy.chain()) {
+                try {
+                    if(!strategy.copy(source,temp)) continue;
+                } catch (IOException e) {
+                    log.info("could not "+strategy.configName+" "+source+" to "+pathName+": "+e.getMessage());
+                    failure = e;
+                    Files.deleteIfExists(temp);
+                    continue;
+                }
+                try {
+                    // a hard link is the same file as its source, whose modification time must not change
+                    install(temp,strategy!=ShortcutStrategy.HARDLINK);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+                log.info("made "+pathName+" from "+source+" ("+strategy.configName+")");
+                return true;
+            }
+            if(failure!=null) throw failure;
+            return false;
+        }
         public void writeFile(ByteBuffer src, long position) throws IOException {
             if(position>length) throw new IOException("trying to write bytes beyond what is expected");
-            channel.write(src, position);
+            ByteBuffer content = src.duplicate();
+            if(running!=null && position<digested && !sameAsWritten(content,position)) running=null;
+            int written = channel.write(src, position);
+            received(position,position+written);
+            if(running!=null && position==digested) {
+                // the usual case, blocks arriving in order
+                content.limit(content.position()+written);
+                running.update(content);
+                digested+=written;
+            }
+            foldWritten();
+            unsaved+=written;
+            if(unsaved>=PROGRESS_INTERVAL) saveProgress();
+        }
+        public void applyDelta(List<Delta.Instruction> instructions) throws IOException {
+            try (FileChannel basis = FileChannel.open(Paths.get(pathName), StandardOpenOption.READ)) {
+                for(Delta.Instruction instruction : instructions) {
+                    if(!instruction.copy || isReceived(instruction.position,instruction.length)) continue;
+                    if(instruction.basisPosition+instruction.length>basis.size()) {
+                        throw new IOException("delta copies beyond the end of "+pathName);
+                    }
+                    long done=0;
+                    while(done<instruction.length) {
+                        long copied = basis.transferTo(instruction.basisPosition+done,instruction.length-done,
+                                channel.position(instruction.position+done));
+                        if(copied<=0) throw new IOException("could not copy from "+pathName);
+                        done+=copied;
+                    }
+                    copied(instruction.position,instruction.length);
+                }
+            }
+            foldWritten();
+            saveProgress();
+        }
+        public long applyChunks(List<Chunker.Chunk> chunks) throws IOException {
+            long copied=0;
+            HashMap<String,FileChannel> sources = new HashMap<String,FileChannel>();
+            try {
+                for(Chunker.Chunk chunk : chunks) {
+                    ChunkIndex.Location location = chunkIndex.find(chunk.hashHigh,chunk.hashLow);
+                    if(location==null || location.length!=chunk.length || isReceived(chunk.offset,chunk.length)) continue;
+                    FileChannel source = sources.get(location.name);
+                    if(source==null) {
+                        try {
+                            source = FileChannel.open(Paths.get(location.name), StandardOpenOption.READ);
+                        } catch (IOException e) {
+                            continue;
+                        }
+                        sources.put(location.name,source);
+                    }
+                    ByteBuffer content = ByteBuffer.allocate(chunk.length);
+                    while(content.hasRemaining()) {
+                        if(source.read(content,location.offset+content.position())<0) break;
+                    }
+                    content.flip();
+                    // the file may have changed since it was chunked
+                    if(!chunk.matches(content)) continue;
+                    while(content.hasRemaining()) {
+                        channel.write(content,chunk.offset+content.position());
+                    }
+                    copied(chunk.offset,chunk.length);
+                    copied+=chunk.length;
+                }
+            } finally {
+                for(FileChannel source : sources.values()) source.close();
+            }
+            foldWritten();
+            if(copied>0) saveProgress();
+            return copied;
+        }
+        private boolean isReceived(long position, long length) {
+            Map.Entry<Long,Long> range = missing.lowerEntry(position+length);
+            return range==null || range.getValue()<=position;
+        }
+        public long[] nextMissingRange() {
+            if(missing.isEmpty()) return null;
+            Map.Entry<Long,Long> first = missing.firstEntry();
+            return new long[]{first.getKey(),first.getValue()};
+        }
+        public boolean reset() {
+            if(reset) return false;
+            reset=true;
+            missing.clear();
+            if(length>0) missing.put(0L,length);
+            startDigest();
+            return true;
+        }
+        private void startDigest() {
+            digested=0;
+            try {
+                running=hashAlgorithm.newDigester();
+            } catch (NoSuchAlgorithmException e) {
+                running=null;
+            }
+        }
+        /**
+         * Fold everything written since the digested bytes that is now contiguous with them into
+         * the running digest, reading it back from the file.
+         */
+        private void foldWritten() throws IOException {
+            if(running==null) return;
+            long end = missing.isEmpty() ? length : missing.firstKey();
+            if(digested>=end) return;
+            ByteBuffer bb = ByteBuffer.allocate((int) Math.min(1<<20,end-digested));
+            while(digested<end) {
+                bb.clear();
+                if(end-digested<bb.capacity()) bb.limit((int) (end-digested));
+                int read = channel.read(bb,digested);
+                if(read<=0) throw new IOException("could not read back "+file);
+                bb.flip();
+                running.update(bb);
+                digested+=read;
+            }
+        }
+        /**
+         * True if content is already what the file holds at position, e.g. a block sent twice.
+         */
+        private boolean sameAsWritten(ByteBuffer content, long position) throws IOException {
+            ByteBuffer existing = ByteBuffer.allocate(content.remaining());
+            while(existing.hasRemaining()) {
+                if(channel.read(existing,position+existing.position())<0) return false;
+            }
+            existing.flip();
+            return existing.equals(content);
+        }
+        private void copied(long position, long length) {
+            // copies over bytes already digested would make the running digest wrong
+            if(position<digested) running=null;
+            received(position,position+length);
+        }
+        private void received(long start, long end) {
+            Long from = missing.floorKey(start);
+            if(from==null) from = start;
+            // a copy, as removing from a TreeMap can change the contents of its entries
+            for(Map.Entry<Long,Long> range : new TreeMap<Long,Long>(missing.subMap(from,true,end,false)).entrySet()) {
+                if(range.getValue()<=start) continue;
+                missing.remove(range.getKey());
+                if(range.getKey()<start) missing.put(range.getKey(),start);
+                if(range.getValue()>end) missing.put(end,range.getValue());
+            }
         }
         public boolean checkWriteComplete() throws NoSuchAlgorithmException, IOException {
-            String currentMd5 = hashFile(file,pathName,0,raf);
+            String currentMd5;
+            if(running!=null && digested==length && channel.size()==length) {
+                currentMd5 = FileChecksum.toHex(running.digest());
+                running=null;
+            } else {
+                currentMd5 = getFileChecksum(hashAlgorithm.newDigester(), raf);
+            }
             if(currentMd5.equals(md5)) {
                 lock.release();
                 channel.close();
                 raf.close();
-                File dest = new File(pathName);
-                if(dest.exists()) dest.delete();
-                file.renameTo(dest);
-                dest.setLastModified(lastModified);
+                install(file.toPath(),true);
                 return true;
             }
             return false;
         }
+        /**
+         * Put the finished file in its place and add it to the watched files, together, so that
+         * no scan sees the file before it is watched.
+         */
+        private void install(Path finished, boolean setLastModified) throws IOException {
+            tableLock.writeLock().lock();
+            try {
+                Path dest = Paths.get(pathName);
+                Files.move(finished,dest,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+                if(setLastModified) dest.toFile().setLastModified(lastModified);
+                forgetProgress();
+                completion = register();
+            } finally {
+                tableLock.writeLock().unlock();
+            }
+        }
+        private ArrayList<FileSystemEvent> register() {
+            ArrayList<FileSystemEvent> events = new ArrayList<FileSystemEvent>();
+            // a digest in another algorithm cannot be watched, the next scan hashes the file instead
+            if(hashAlgorithm!=FileSystemManager.this.hashAlgorithm) return events;
+            File dest = new File(pathName);
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(dest.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                return events;
+            }
+            ArrayList<File> parents = new ArrayList<File>();
+            for(File dir=dest.getParentFile();dir!=null && dir.getPath().length()>root.length() &&
+                    !watched.containsDirectory(dir.getPath());dir=dir.getParentFile()) {
+                parents.add(0,dir);
+            }
+            for(File dir : parents) {
+                addDir(dir.getPath());
+                events.add(new FileSystemEvent(dir.getParent(),dir.getName(),EVENT.DIRECTORY_CREATE));
+            }
+            // anything hashed before now is out of date
+            pendingHashes.remove(pathName);
+            String fileKey = attrs.fileKey()==null ? null : attrs.fileKey().toString();
+            long lastModified = attrs.lastModifiedTime().toMillis();
+            if(watched.containsFile(pathName)) {
+                modifyFile(pathName,md5,lastModified,attrs.size(),fileKey);
+                events.add(new FileSystemEvent(dest.getParent(),dest.getName(),EVENT.FILE_MODIFY,descriptor(pathName)));
+            } else {
+                FileDescriptor fd = new FileDescriptor(lastModified,md5,attrs.size());
+                fd.fileKey=fileKey;
+                addFile(pathName,fd);
+                events.add(new FileSystemEvent(dest.getParent(),dest.getName(),EVENT.FILE_CREATE,fd));
+            }
+            syncIndex();
+            return events;
+        }
     }
 
-    private HashSet<String> watchedDirectories;
-    private HashMap<String,HashSet<String>> hashMap;
+    private FileTable watched;
+    private HashAlgorithm hashAlgorithm = HashAlgorithm.MD5;
+    // MD5 descriptors for peers that only understand MD5, when the share uses something else
+    private HashMap<String,FileDescriptor> legacyDescriptors = new HashMap<String,FileDescriptor>();
+    private HashMap<String,HashSet<String>> legacyHashMap = new HashMap<String,HashSet<String>>();
     private FileSystemObserver fileSystemObserver;
-    private HashMap<String,FileDescriptor> watchedFiles;
     private String root;
     private String cannonicalRoot;
-    private HashMap<String,FileLoader> loadingFiles;
-
+    private ConcurrentHashMap<String,FileLoader> loadingFiles;
+    private ChannelCache openFiles;
+    private ChunkIndex chunkIndex;
+    private TransferProgress transferProgress;
+    private ShortcutStrategy shortcutStrategy = ShortcutStrategy.REFLINK;
+    // guards the watched files and directories
+    private final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock();
+    // guards the file loaders, one lock for many path names
+    private final Object[] loaderLocks = new Object[64];
+    // guards taking file locks on watched files, which would otherwise fail between our own threads
+    private final Object[] sourceLocks = new Object[64];
+    private String monitorMode;
+    // how long (ms) a deletion waits to be paired with a creation when watching
+    private long moveWindow;
+    // how long (ms) a file must stay the same before it is hashed
+    private long settleInterval;
+    // whether large files are memory mapped to hash them, see FileChecksum
+    private boolean mapLargeFiles;
+    // files that changed too recently to be hashed yet
+    private ConcurrentHashMap<String,Settling> settling = new ConcurrentHashMap<String,Settling>();
+    private IgnoreRules ignoreRules = new IgnoreRules();
+    private ChangeJournal journal;
+    // held while an event is numbered and delivered, so that peers receive events in journal order
+    private final Object announceLock = new Object();
+    private DirectoryScanner scanner;
+    private FileIndex fileIndex;
+    private HashingPipeline hashingPipeline;
+    private ConcurrentHashMap<String,HashJob> pendingHashes = new ConcurrentHashMap<String,HashJob>();
+    private WatchService watchService;
+    private HashMap<WatchKey,Path> watchKeys;
 
 
 
     public void run() {
-        ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+        if(monitorMode.equals(MONITOR_WATCH)) {
+            try {
+                watchLoop();
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                log.warning("file system notifications unavailable, falling back to polling: "+e.getMessage());
+                closeWatchService();
+            }
+        }
+        pollLoop();
+    }
+
+    private void pollLoop() {
         while (!isInterrupted()) {
 
-            pathevents.clear();
-            // check for new/modified files
+            // check for deleted, new and modified files
             try {
-                synchronized(this) {
-                    pathevents.addAll(scanDirectoryTree(root));
-                }
+                rescan(Collections.singletonMap(root,true));
             } catch (NoSuchAlgorithmException e1) {
                 log.severe(e1.getMessage());
                 interrupt();
                 continue;
-            } catch (IOException e1) {
-                log.severe(e1.getMessage());
             }
-            for(FileSystemEvent pathevent : pathevents) {
-                log.info(pathevent.toString());
-                fileSystemObserver.processFileSystemEvent(pathevent);
-            }
-
-            // check for deleted files
-            pathevents.clear();
-            synchronized(this) {
-                ArrayList<String> keys = new ArrayList<String>(watchedFiles.keySet());
-                for(String pathname : keys) {
-                    File file = new File(pathname);
-                    if(!file.exists()) {
-                        FileDescriptor fdes = watchedFiles.get(pathname);
-                        dropFile(pathname);
-                        pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_DELETE,fdes));
+
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                log.warning(e.getMessage());
+            }
+
+        }
+
+    }
+
+    /**
+     * Waits on the watch service and rescans only what it reports. Each batch of keys that are
+     * ready together is handled as one pass, so that deletions and creations of the same
+     * entries are published in a sensible order.
+     */
+    private void watchLoop() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        watchKeys = new HashMap<WatchKey,Path>();
+        registerTree(Paths.get(root));
+        log.info("watching "+watchKeys.size()+" directories for changes");
+        // catch anything that changed between the initial scan and the registration
+        LinkedHashMap<String,Boolean> dirty = new LinkedHashMap<String,Boolean>();
+        dirty.put(root,true);
+        while (!isInterrupted()) {
+            Map<String,Boolean> failed;
+            try {
+                failed = rescan(dirty);
+            } catch (NoSuchAlgorithmException e) {
+                log.severe(e.getMessage());
+                interrupt();
+                continue;
+            }
+            WatchKey key;
+            try {
+                // nothing is reported once a file stops changing, so wake up when it may have settled
+                long wait = untilSettled();
+                key = wait<0 ? watchService.take() : watchService.poll(wait,TimeUnit.MILLISECONDS);
+                // let a burst of notifications (e.g. truncate then write) arrive as one batch
+                if(key!=null) Thread.sleep(WATCH_COALESCE_MS);
+            } catch (InterruptedException e) {
+                log.warning(e.getMessage());
+                break;
+            }
+            // path name -> whether the whole subtree needs to be rescanned
+            dirty = new LinkedHashMap<String,Boolean>(failed);
+            long now = System.currentTimeMillis();
+            for(Map.Entry<String,Settling> entry : settling.entrySet()) {
+                if(entry.getValue().settlesAt(settleInterval)<=now) dirty.put(entry.getKey(),false);
+            }
+            // deletions wait a while for the other half of a move, so both are in one rescan
+            long moveDeadline = 0;
+            while(key!=null) {
+                if(collectEvents(key,dirty) && moveDeadline==0) {
+                    moveDeadline = System.currentTimeMillis()+moveWindow;
+                }
+                key = watchService.poll();
+                if(key==null && moveDeadline>System.currentTimeMillis()) {
+                    try {
+                        key = watchService.poll(moveDeadline-System.currentTimeMillis(),TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        interrupt();
                     }
                 }
+            }
+        }
+        closeWatchService();
+    }
 
-                // check for deleted directories
-                keys = new ArrayList<String>(watchedDirectories);
-                for(String pathname : keys) {
-                    File file = new File(pathname);
-                    if(!file.exists()) {
-                        dropDir(pathname);
-                        pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_DELETE));
+    /**
+     * Take the notifications of a watch key and mark the entries they name as dirty.
+     * @return True if any entry was deleted (or moved away).
+     */
+    private boolean collectEvents(WatchKey key, Map<String,Boolean> dirty) {
+        boolean deleted = false;
+        Path dir = watchKeys.get(key);
+        if(dir!=null) {
+            for(WatchEvent<?> event : key.pollEvents()) {
+                if(event.kind()==StandardWatchEventKinds.OVERFLOW) {
+                    log.warning("change notifications overflowed, rescanning "+dir);
+                    dirty.put(dir.toString(),true);
+                    continue;
+                }
+                String name = dir.resolve((Path) event.context()).toString();
+                if(name.endsWith(loadingSuffix)) continue;
+                if(event.kind()==StandardWatchEventKinds.ENTRY_MODIFY) {
+                    if(!dirty.containsKey(name)) dirty.put(name,false);
+                } else {
+                    // created or deleted entries may be whole directory trees
+                    dirty.put(name,true);
+                    if(event.kind()==StandardWatchEventKinds.ENTRY_DELETE) deleted = true;
+                }
+            }
+        }
+        if(!key.reset()) {
+            // the directory is gone, its parent will report the deletion
+            watchKeys.remove(key);
+        }
+        return deleted;
+    }
+
+    /**
+     * Rescan a set of path names that may have changed, emitting deletion events
+     * before creation/modification events, and move events for anything that was deleted
+     * and created again elsewhere (see {@link #pairMoves(List, List, List)}).
+     * @param dirty Path names mapped to whether the entire subtree under them should be
+     * checked, rather than just the entry itself.
+     * @return The entries that could not be scanned, to be tried again on the next pass. Anything
+     * found, and every deletion, is still published.
+     */
+    private Map<String,Boolean> rescan(Map<String,Boolean> dirty) throws NoSuchAlgorithmException {
+        LinkedHashMap<String,Boolean> failed = new LinkedHashMap<String,Boolean>();
+        ArrayList<FileSystemEvent> deleteEvents = new ArrayList<FileSystemEvent>();
+        ArrayList<FileSystemEvent> pathevents = new ArrayList<FileSystemEvent>();
+        ArrayList<HashJob> toHash = new ArrayList<HashJob>();
+        tableLock.writeLock().lock();
+        try {
+            for(Map.Entry<String,Boolean> entry : dirty.entrySet()) {
+                String name = entry.getKey();
+                if(entry.getValue()) {
+                    deleteEvents.addAll(checkDeleted(watched.files(name),watched.directories(name)));
+                } else if(watched.containsFile(name) && !new File(name).exists()) {
+                    deleteEvents.addAll(checkDeleted(Collections.singleton(name),Collections.<String>emptySet()));
+                }
+            }
+            for(FileSystemEvent deleteEvent : deleteEvents) {
+                if(deleteEvent.event==EVENT.DIRECTORY_DELETE && watchService!=null) {
+                    // a directory that was moved away keeps its key, which would report the wrong path
+                    cancelStaleKeys();
+                    break;
+                }
+            }
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+        for(Map.Entry<String,Boolean> entry : dirty.entrySet()) {
+            String name = entry.getKey();
+            // a modified directory only means its entries changed, and those are reported separately
+            if(!entry.getValue() && isWatchedDirectory(name)) continue;
+            try {
+                if(entry.getValue() && watchService!=null && new File(name).isDirectory()) {
+                    registerTree(Paths.get(name));
+                }
+                pathevents.addAll(scanDirectoryTree(name,toHash));
+            } catch (NoSuchFileException e) {
+                // gone again already (e.g. created and removed within one batch), its parent reports that
+            } catch (IOException e) {
+                log.warning("could not scan "+name+", trying again later: "+e.getMessage());
+                failed.put(name,entry.getValue());
+            }
+        }
+        ArrayList<FileSystemEvent> events = pairMoves(deleteEvents,pathevents,toHash);
+        syncIndex();
+        for(FileSystemEvent pathevent : events) {
+            announce(pathevent);
+        }
+        submitHashes(toHash,true);
+        // forget files that were deleted before they settled
+        settling.keySet().removeIf(name -> !new File(name).isFile());
+        return failed;
+    }
+
+    /**
+     * Find the files and directories among the deletions and creations of one rescan that were
+     * really moved, and replace their events with {@link EVENT#FILE_MOVE} and {@link EVENT#DIRECTORY_MOVE}
+     * events, so that peers rename their copies rather than deleting them and fetching them again.
+     * <br/>
+     * A new file was moved from a deleted one if it has the same file key, size and modification time,
+     * which a rename keeps, or, where the file system has no file keys, the same size and digest. A moved
+     * file is watched under its new name straight away with the digest of the deleted one. A new directory
+     * was moved from a deleted one if everything deleted from under the old directory was moved to the
+     * same place under the new one.
+     * @param deleteEvents Deletions, deepest first, already dropped from the watched files.
+     * @param createEvents Creations, parents first, already added to the watched files.
+     * @param toHash Files waiting to be hashed, which moved files are taken out of.
+     * @return The moves and the remaining deletions and creations, in an order they can be applied in.
+     */
+    private ArrayList<FileSystemEvent> pairMoves(List<FileSystemEvent> deleteEvents,
+                                                 List<FileSystemEvent> createEvents, List<HashJob> toHash)
+            throws NoSuchAlgorithmException {
+        ArrayList<FileSystemEvent> events = new ArrayList<FileSystemEvent>();
+        // hard links share a file key, but also their content, so it does not matter which one is paired
+        HashMap<String,FileSystemEvent> byKey = new HashMap<String,FileSystemEvent>();
+        ArrayList<FileSystemEvent> keyless = new ArrayList<FileSystemEvent>();
+        for(FileSystemEvent pe : deleteEvents) {
+            if(pe.event!=EVENT.FILE_DELETE || pe.fileDescriptor==null) continue;
+            if(pe.fileDescriptor.fileKey==null) keyless.add(pe);
+            else byKey.put(pe.fileDescriptor.fileKey,pe);
+        }
+        if(byKey.isEmpty() && keyless.isEmpty()) {
+            events.addAll(deleteEvents);
+            events.addAll(createEvents);
+            return events;
+        }
+
+        // old full path name -> move event, for files
+        LinkedHashMap<String,FileSystemEvent> fileMoves = new LinkedHashMap<String,FileSystemEvent>();
+        for(FileSystemEvent pe : createEvents) {
+            // already added with a digest from the file index
+            if(pe.event!=EVENT.FILE_CREATE || pe.fileDescriptor.fileKey==null) continue;
+            FileSystemEvent from = byKey.get(pe.fileDescriptor.fileKey);
+            if(from==null || !from.fileDescriptor.md5.equals(pe.fileDescriptor.md5)) continue;
+            byKey.remove(pe.fileDescriptor.fileKey);
+            pe.event=EVENT.FILE_MOVE;
+            pe.fromPathName=from.pathName;
+            fileMoves.put(fullName(from),pe);
+        }
+        ArrayList<FileSystemEvent> movedJobs = new ArrayList<FileSystemEvent>();
+        ArrayList<FileSystemEvent> hashed = new ArrayList<FileSystemEvent>();
+        Iterator<HashJob> it = toHash.iterator();
+        while(it.hasNext()) {
+            HashJob job = it.next();
+            if(job.event!=EVENT.FILE_CREATE) continue;
+            FileSystemEvent from = null;
+            String md5 = null;
+            if(job.fileKey!=null) {
+                from = byKey.get(job.fileKey);
+                if(from!=null && (from.fileDescriptor.fileSize!=job.fileSize ||
+                        from.fileDescriptor.lastModified!=job.lastModified)) from = null;
+            } else {
+                for(FileSystemEvent pe : keyless) {
+                    if(pe.fileDescriptor.fileSize!=job.fileSize) continue;
+                    if(md5==null) {
+                        try {
+                            md5 = hashFile(new File(job.name),job.name);
+                        } catch (IOException e) {
+                            break;
+                        }
+                    }
+                    if(pe.fileDescriptor.md5.equals(md5)) {
+                        from = pe;
+                        break;
                     }
                 }
             }
-            // sort all of the events so they make sense
-            Collections.sort(pathevents,(arg0,arg1) ->
-                    {
-                        return arg1.path.length()-arg0.path.length();
+            if(from==null) {
+                if(md5!=null) {
+                    // no need to hash it again
+                    it.remove();
+                    FileSystemEvent pe = completeHash(job,md5);
+                    if(pe!=null) hashed.add(pe);
+                }
+                continue;
+            }
+            it.remove();
+            byKey.remove(job.fileKey);
+            keyless.remove(from);
+            FileSystemEvent pe = completeHash(job,from.fileDescriptor.md5);
+            // changed again since the scan, the next one will find it
+            if(pe==null) continue;
+            pe.event=EVENT.FILE_MOVE;
+            pe.fromPathName=from.pathName;
+            fileMoves.put(fullName(from),pe);
+            movedJobs.add(pe);
+        }
+
+        // old full path name -> new full path name, for directories
+        LinkedHashMap<String,String> dirMoves = new LinkedHashMap<String,String>();
+        // new full path names of everything that moved along with a directory
+        HashSet<String> absorbed = new HashSet<String>();
+        String separator = FileSystems.getDefault().getSeparator();
+        if(!fileMoves.isEmpty()) {
+            HashSet<String> createdDirs = new HashSet<String>();
+            for(FileSystemEvent pe : createEvents) {
+                if(pe.event==EVENT.DIRECTORY_CREATE) createdDirs.add(fullName(pe));
+            }
+            // shallowest first, so that a whole tree moves as one
+            for(int i=deleteEvents.size()-1;i>=0;i--) {
+                if(deleteEvents.get(i).event!=EVENT.DIRECTORY_DELETE) continue;
+                String from = fullName(deleteEvents.get(i));
+                if(isUnder(from,dirMoves.keySet())) continue;
+                // where one of the files in it went says where it went
+                String to = null;
+                for(Map.Entry<String,FileSystemEvent> moved : fileMoves.entrySet()) {
+                    if(!moved.getKey().startsWith(from+separator)) continue;
+                    String rest = moved.getKey().substring(from.length());
+                    String dest = fullName(moved.getValue());
+                    if(dest.endsWith(rest)) to = dest.substring(0,dest.length()-rest.length());
+                    break;
+                }
+                if(to==null || !createdDirs.contains(to) || isUnder(to,dirMoves.values())) continue;
+                HashSet<String> moved = new HashSet<String>();
+                moved.add(to);
+                for(FileSystemEvent pe : deleteEvents) {
+                    String name = fullName(pe);
+                    if(!name.startsWith(from+separator)) continue;
+                    String dest = to+name.substring(from.length());
+                    if(pe.event==EVENT.FILE_DELETE ? !fileMoves.containsKey(name) ||
+                            !fullName(fileMoves.get(name)).equals(dest) : !createdDirs.contains(dest)) {
+                        moved = null;
+                        break;
                     }
-            );
+                    moved.add(dest);
+                }
+                if(moved==null) continue;
+                dirMoves.put(from,to);
+                absorbed.addAll(moved);
+            }
+        }
 
-            for(FileSystemEvent pathevent : pathevents) {
-                log.info(pathevent.toString());
-                fileSystemObserver.processFileSystemEvent(pathevent);
+        // directories that things were moved out of must stay until they have been
+        HashSet<String> holding = new HashSet<String>();
+        ArrayList<String> sources = new ArrayList<String>(fileMoves.keySet());
+        sources.addAll(dirMoves.keySet());
+        for(String source : sources) {
+            File dir = new File(source).getParentFile();
+            while(dir!=null && dir.getPath().length()>root.length() && holding.add(dir.getPath())) {
+                dir = dir.getParentFile();
             }
+        }
+        ArrayList<FileSystemEvent> held = new ArrayList<FileSystemEvent>();
+        for(FileSystemEvent pe : deleteEvents) {
+            String name = fullName(pe);
+            if(fileMoves.containsKey(name) || isUnder(name,dirMoves.keySet())) continue;
+            if(pe.event==EVENT.DIRECTORY_DELETE && holding.contains(name)) held.add(pe);
+            else events.add(pe);
+        }
+        for(Map.Entry<String,String> dirMove : dirMoves.entrySet()) {
+            for(FileSystemEvent pe : createEvents) {
+                if(fullName(pe).equals(dirMove.getValue())) {
+                    pe.event=EVENT.DIRECTORY_MOVE;
+                    pe.fromPathName=relativeName(dirMove.getKey());
+                }
+            }
+        }
+        for(FileSystemEvent pe : createEvents) {
+            if(pe.event==EVENT.DIRECTORY_MOVE || !absorbed.contains(fullName(pe))) events.add(pe);
+        }
+        for(FileSystemEvent pe : movedJobs) {
+            if(!absorbed.contains(fullName(pe))) events.add(pe);
+        }
+        events.addAll(held);
+        events.addAll(hashed);
+        return events;
+    }
 
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                log.warning(e.getMessage());
+    private String fullName(FileSystemEvent pe) {
+        return pe.path+FileSystems.getDefault().getSeparator()+pe.name;
+    }
+
+    /**
+     * True if the name is one of the given directories or is somewhere below one of them.
+     */
+    private static boolean isUnder(String name, Collection<String> dirs) {
+        for(String dir : dirs) {
+            if(name.equals(dir) || name.startsWith(dir+FileSystems.getDefault().getSeparator())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Register a directory and all directories below it with the watch service.
+     */
+    private void registerTree(Path start) throws IOException {
+        if(start.toString().endsWith(loadingSuffix) || isIgnoredName(start.toString(),true)) return;
+        WatchKey key = start.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchKeys.put(key,start);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(start)) {
+            for(Path subpath : stream) {
+                try {
+                    if(Files.isDirectory(subpath)) registerTree(subpath);
+                } catch (NoSuchFileException e) {
+                    // removed while we were registering, the rest of the tree still needs watching
+                }
             }
+        }
+    }
 
+    private void cancelStaleKeys() {
+        Iterator<Map.Entry<WatchKey,Path>> it = watchKeys.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<WatchKey,Path> entry = it.next();
+            String name = entry.getValue().toString();
+            if(!name.equals(root) && !watched.containsDirectory(name)) {
+                entry.getKey().cancel();
+                it.remove();
+            }
         }
+    }
 
+    private void closeWatchService() {
+        if(watchService==null) return;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warning(e.getMessage());
+        }
+        watchService=null;
     }
 
-    private String hashFile(File file,String name,long lastModified) throws NoSuchAlgorithmException, IOException {
-        log.info("hashing file "+name);
-        if(lastModified!=0 && lastModified==file.lastModified()) {
-            return watchedFiles.get(name).md5;
+    /**
+     * Drop any of the given files and directories that no longer exist.
+     * @return Deletion events, deepest first.
+     */
+    private ArrayList<FileSystemEvent> checkDeleted(Collection<String> files,
+                                                    Collection<String> dirs) {
+        ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+        ArrayList<String> keys = new ArrayList<String>(files);
+        for(String pathname : keys) {
+            File file = new File(pathname);
+            if(!file.exists()) {
+                FileDescriptor fdes = descriptor(pathname);
+                dropFile(pathname);
+                pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_DELETE,fdes));
+            }
         }
-        MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-        String checksum = getFileChecksum(md5Digest, file);
-        return checksum;
+
+        // check for deleted directories
+        keys = new ArrayList<String>(dirs);
+        for(String pathname : keys) {
+            File file = new File(pathname);
+            if(!file.exists()) {
+                dropDir(pathname);
+                pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_DELETE));
+            }
+        }
+        // sort all of the events so they make sense
+        Collections.sort(pathevents,(arg0,arg1) ->
+                {
+                    return arg1.path.length()-arg0.path.length();
+                }
+        );
+        return pathevents;
     }
 
-    private String hashFile(File file,String name,long lastModified, RandomAccessFile raf) throws NoSuchAlgorithmException, IOException {
+    private String hashFile(File file,String name) throws NoSuchAlgorithmException, IOException {
         log.info("hashing file "+name);
-        if(lastModified!=0 && lastModified==file.lastModified()) {
-            return watchedFiles.get(name).md5;
+        return getFileChecksum(hashAlgorithm.newDigester(), file);
+    }
+
+    /**
+     * The hash of a watched file's current content with the given algorithm, only
+     * hashing it again if it has been modified since it was last hashed.
+     */
+    private String currentDigest(String name, HashAlgorithm algorithm) throws NoSuchAlgorithmException, IOException {
+        if(algorithm!=hashAlgorithm) return legacyDescriptor(name).md5;
+        long lastModified;
+        String md5;
+        tableLock.readLock().lock();
+        try {
+            int id = watched.file(name);
+            if(id==-1) throw new IOException(name+" is no longer being watched");
+            lastModified = watched.lastModified(id);
+            md5 = watched.digest(id);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+        File file = new File(name);
+        if(lastModified==file.lastModified()) return md5;
+        return hashFile(file,name);
+    }
+
+    /**
+     * The watched files last known to have the given hash, empty if we do not keep track
+     * of hashes using that algorithm.
+     */
+    private List<String> filesWithDigest(HashAlgorithm algorithm, String md5) {
+        if(algorithm==hashAlgorithm) {
+            tableLock.readLock().lock();
+            try {
+                return watched.filesWithDigest(md5);
+            } finally {
+                tableLock.readLock().unlock();
+            }
+        }
+        if(algorithm==HashAlgorithm.MD5) {
+            synchronized(legacyDescriptors) {
+                if(legacyHashMap.containsKey(md5)) return new ArrayList<String>(legacyHashMap.get(md5));
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * What the file was like when it was last hashed with the given algorithm, or null if it has not been.
+     */
+    private FileDescriptor hashedDescriptor(String name, HashAlgorithm algorithm) {
+        if(algorithm==hashAlgorithm) {
+            tableLock.readLock().lock();
+            try {
+                return descriptor(name);
+            } finally {
+                tableLock.readLock().unlock();
+            }
+        }
+        synchronized(legacyDescriptors) {
+            return legacyDescriptors.get(name);
         }
-        MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-        String checksum = getFileChecksum(md5Digest, raf);
-        return checksum;
     }
 
-    private ArrayList<FileSystemEvent> scanDirectoryTree(String name) throws IOException, NoSuchAlgorithmException {
+    private boolean isWatchedDirectory(String name) {
+        tableLock.readLock().lock();
+        try {
+            return watched.containsDirectory(name);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * True if a file or directory can be moved to the given name: nothing is there, and its parent is
+     * the share directory or a watched directory. Called with the lock on the watched files held.
+     */
+    private boolean canMoveTo(File dest) {
+        String parent = dest.getParent();
+        return !dest.exists() && !watched.containsFile(dest.getPath()) && !watched.containsDirectory(dest.getPath()) &&
+                (parent.equals(root) || watched.containsDirectory(parent));
+    }
+
+    private Object loaderLock(String fullPathName) {
+        return stripe(loaderLocks,fullPathName);
+    }
+
+    /**
+     * Held while locking a watched file to read from it. No other lock may be taken while holding it,
+     * except briefly the lock on the watched files.
+     */
+    private Object sourceLock(String fullPathName) {
+        return stripe(sourceLocks,fullPathName);
+    }
+
+    private static Object stripe(Object[] locks, String fullPathName) {
+        int h = fullPathName.hashCode();
+        return locks[(h ^ (h >>> 16)) & (locks.length-1)];
+    }
+
+    /**
+     * A snapshot of what we know about a watched file, or null if it is not watched.
+     */
+    private FileDescriptor descriptor(String name) {
+        int id = watched.file(name);
+        if(id==-1) return null;
+        FileDescriptor fd = new FileDescriptor(watched.lastModified(id),watched.digest(id),watched.fileSize(id),
+                watched.hashAlgorithm(id));
+        fd.fileKey=watched.fileKey(id);
+        return fd;
+    }
+
+    /**
+     * An MD5 descriptor for a watched file, hashing it if we have not done so since it last changed.
+     */
+    private FileDescriptor legacyDescriptor(String name) throws NoSuchAlgorithmException, IOException {
+        File file = new File(name);
+        long lastModified = file.lastModified();
+        synchronized(legacyDescriptors) {
+            FileDescriptor legacy = legacyDescriptors.get(name);
+            if(legacy!=null && legacy.lastModified==lastModified) return legacy;
+        }
+        log.info("hashing file "+name+" with MD5");
+        FileDescriptor legacy = new FileDescriptor(lastModified,
+                getFileChecksum(HashAlgorithm.MD5.newDigester(),file),file.length(),HashAlgorithm.MD5);
+        if(file.lastModified()!=lastModified) throw new IOException(name+" changed while being hashed");
+        synchronized(legacyDescriptors) {
+            dropLegacyDescriptor(name);
+            legacyDescriptors.put(name,legacy);
+            if(!legacyHashMap.containsKey(legacy.md5)) {
+                legacyHashMap.put(legacy.md5,new HashSet<String>());
+            }
+            legacyHashMap.get(legacy.md5).add(name);
+        }
+        return legacy;
+    }
+
+    private void dropLegacyDescriptor(String name) {
+        synchronized(legacyDescriptors) {
+            FileDescriptor legacy = legacyDescriptors.remove(name);
+            if(legacy==null) return;
+            HashSet<String> hs = legacyHashMap.get(legacy.md5);
+            hs.remove(name);
+            if(hs.isEmpty()) legacyHashMap.remove(legacy.md5);
+        }
+    }
+
+    /**
+     * A file whose contents need hashing before it can be added to (or updated in) the
+     * watched files.
+     */
+    private class HashJob {
+        final String name;
+        final EVENT event;
+        final long lastModified;
+        final long fileSize;
+        final String fileKey;
+
+        HashJob(String name, EVENT event, long lastModified, long fileSize, String fileKey) {
+            this.name=name;
+            this.event=event;
+            this.lastModified=lastModified;
+            this.fileSize=fileSize;
+            this.fileKey=fileKey;
+        }
+    }
+
+    /**
+     * A file that changed too recently to be hashed, as it was when it was last scanned.
+     */
+    private static class Settling {
+        final long lastModified;
+        final long fileSize;
+        // when it was first seen with this size and modification time
+        final long since;
+
+        Settling(long lastModified, long fileSize, long since) {
+            this.lastModified=lastModified;
+            this.fileSize=fileSize;
+            this.since=since;
+        }
+
+        long settlesAt(long settleInterval) {
+            return Math.min(lastModified,since)+settleInterval;
+        }
+    }
+
+    /**
+     * Whether a new or modified file has stopped changing, i.e. it has not been written to for
+     * {@link #settleInterval} milliseconds, going by either its modification time or how long
+     * scans have seen it unchanged (in case its modification time is in the future). A file that
+     * has not settled is remembered so that it is checked again once it may have.
+     */
+    private boolean settled(String pathName, long lastModified, long fileSize) {
+        if(settleInterval<=0) return true;
+        long now = System.currentTimeMillis();
+        Settling known = settling.get(pathName);
+        if(known==null || known.lastModified!=lastModified || known.fileSize!=fileSize) {
+            if(now-lastModified>=settleInterval) {
+                if(known!=null) settling.remove(pathName);
+                return true;
+            }
+            if(known==null) log.info("waiting for "+pathName+" to settle");
+            settling.put(pathName,new Settling(lastModified,fileSize,now));
+            return false;
+        }
+        if(known.settlesAt(settleInterval)>now) return false;
+        settling.remove(pathName);
+        return true;
+    }
+
+    /**
+     * How long (ms) until the next file waiting to settle may have settled, or -1 if none are waiting.
+     */
+    private long untilSettled() {
+        long next = Long.MAX_VALUE;
+        for(Settling waiting : settling.values()) next = Math.min(next,waiting.settlesAt(settleInterval));
+        if(next==Long.MAX_VALUE) return -1;
+        return Math.max(1,next-System.currentTimeMillis());
+    }
+
+    /**
+     * Scan a file or directory tree for new and modified entries, in parallel. The tree is only
+     * read while it is being walked; the collected events are then applied to the watched state
+     * in the order they were found, which puts every directory creation before the events for
+     * its contents. Files that need hashing are not hashed here, but added to toHash to be
+     * given to {@link #submitHashes(List, boolean)} once the returned events have been published.
+     */
+    private ArrayList<FileSystemEvent> scanDirectoryTree(String name, List<HashJob> toHash)
+            throws IOException, NoSuchAlgorithmException {
         ArrayList<FileSystemEvent> pathEvents = new ArrayList<FileSystemEvent>();
         if(name.endsWith(loadingSuffix)) return pathEvents;
-        File file = new File(name);
-        if(file.isFile()) {
-            long lastModified = file.lastModified();
-            long fileSize = file.length();
-            if(watchedFiles.containsKey(name)) {
-                if(lastModified!=watchedFiles.get(name).lastModified) {
-                    String newHash = hashFile(file,name,0);
-                    modifyFile(name,newHash,lastModified,fileSize);
-                    FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_MODIFY,watchedFiles.get(name));
-                    pathEvents.add(pe);
+        if(!ignoreRules.isEmpty() && isIgnoredName(name,new File(name).isDirectory())) return pathEvents;
+        ConcurrentLinkedQueue<FileSystemEvent> found = new ConcurrentLinkedQueue<FileSystemEvent>();
+        ConcurrentLinkedQueue<HashJob> jobs = new ConcurrentLinkedQueue<HashJob>();
+        // readers of the watched files carry on while we walk the tree
+        tableLock.readLock().lock();
+        try {
+            scanner.scan(Paths.get(name), (path, attrs) -> {
+                String pathName = path.toString();
+                if(pathName.endsWith(loadingSuffix)) return false;
+                // the parents were checked before the scan or on the way down
+                if(!pathName.equals(name) && !ignoreRules.isEmpty() &&
+                        ignoreRules.ignored(IgnoreRules.portable(relativeName(pathName)),attrs.isDirectory())) {
+                    return false;
+                }
+                File file = path.toFile();
+                if(attrs.isRegularFile()) {
+                    long lastModified = attrs.lastModifiedTime().toMillis();
+                    long fileSize = attrs.size();
+                    String fileKey = attrs.fileKey()==null ? null : attrs.fileKey().toString();
+                    HashJob pending = pendingHashes.get(pathName);
+                    if(pending!=null && pending.lastModified==lastModified && pending.fileSize==fileSize) {
+                        // already waiting to be hashed
+                        return false;
+                    }
+                    int existing = watched.file(pathName);
+                    if(existing==-1) {
+                        FileIndex.Entry indexed = fileIndex==null ? null : fileIndex.get(relativeName(pathName));
+                        if(indexed!=null && indexed.hashAlgorithm==hashAlgorithm &&
+                                indexed.matches(fileSize,lastModified,fileKey)) {
+                            FileDescriptor fd = new FileDescriptor(lastModified,indexed.md5,fileSize);
+                            fd.fileKey=fileKey;
+                            found.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,fd));
+                        } else if(settled(pathName,lastModified,fileSize)) {
+                            jobs.add(new HashJob(pathName,EVENT.FILE_CREATE,lastModified,fileSize,fileKey));
+                        }
+                    } else if(lastModified!=watched.lastModified(existing) && settled(pathName,lastModified,fileSize)) {
+                        jobs.add(new HashJob(pathName,EVENT.FILE_MODIFY,lastModified,fileSize,fileKey));
+                    }
+                } else if(attrs.isDirectory()) {
+                    if(!watched.containsDirectory(pathName) && !pathName.equals(root)) {
+                        found.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+                    }
+                    return true;
+                }
+                return false;
+            });
+        } finally {
+            tableLock.readLock().unlock();
+        }
+        tableLock.writeLock().lock();
+        try {
+            for(FileSystemEvent pe : found) {
+                String pathName = pe.path+FileSystems.getDefault().getSeparator()+pe.name;
+                // a loader or a peer may have added it since the walk, and announced it already
+                if(pe.event==EVENT.FILE_CREATE) {
+                    if(watched.file(pathName)!=-1) continue;
+                    addFile(pathName,pe.fileDescriptor);
                 } else {
-                    // do nothing
+                    if(watched.containsDirectory(pathName)) continue;
+                    addDir(pathName);
                 }
-            } else {
-                String newHash = hashFile(file,name,0);
-                addFile(name,new FileDescriptor(lastModified,newHash,fileSize));
-                FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,watchedFiles.get(name));
                 pathEvents.add(pe);
             }
-        } else if(file.isDirectory()) {
-            Path path = Paths.get(name);
-            if(watchedDirectories.contains(name) || name.equals(root)) {
-                // do nothing
-            } else {
-                addDir(name);
-                pathEvents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
-            }
-            DirectoryStream<Path> stream = Files.newDirectoryStream(path);
-            for (Path subpath: stream) {
-                pathEvents.addAll(scanDirectoryTree(subpath.toString()));
-            }
-            stream.close();
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+        for(HashJob job : jobs) {
+            pendingHashes.put(job.name,job);
+            toHash.add(job);
         }
         return pathEvents;
     }
 
-    private void removeHash(String name) {
-        HashSet<String> hs = hashMap.get(watchedFiles.get(name).md5);
-        hs.remove(name);
-        if(hs.size()==0) hs.remove(watchedFiles.get(name).md5);
+    /**
+     * Hand files found by a scan to the hashing pipeline. Each file is added to the watched
+     * files, and its event published if requested, only once its digest is known.
+     * @return The outstanding jobs.
+     */
+    private ArrayList<Future<?>> submitHashes(List<HashJob> jobs, boolean publish) {
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        for(HashJob job : jobs) {
+            futures.add(hashingPipeline.submit(() -> {
+                String md5;
+                try {
+                    md5 = hashFile(new File(job.name),job.name);
+                } catch (IOException e) {
+                    // most likely deleted or replaced already, a later scan will sort it out
+                    log.warning("could not hash "+job.name+": "+e.getMessage());
+                    pendingHashes.remove(job.name,job);
+                    return null;
+                }
+                FileSystemEvent pe = completeHash(job,md5);
+                if(pe!=null && publish) {
+                    announce(pe);
+                }
+                return null;
+            }));
+        }
+        return futures;
     }
 
-    private void addHash(String md5, String name) {
-        if(!hashMap.containsKey(md5)) {
-            hashMap.put(md5, new HashSet<String>());
+    /**
+     * Apply a finished hash to the watched files, unless the file changed while it was being hashed.
+     * @return The event to publish, or null if there is none.
+     */
+    private FileSystemEvent completeHash(HashJob job, String md5) {
+        tableLock.writeLock().lock();
+        try {
+            return applyHash(job,md5);
+        } finally {
+            tableLock.writeLock().unlock();
         }
-        hashMap.get(md5).add(name);
     }
 
-    private void modifyFile(String name, String md5, long lastModified, long fileSize) {
+    private FileSystemEvent applyHash(HashJob job, String md5) {
+        if(!pendingHashes.remove(job.name,job)) {
+            // superseded by a newer job for the same file
+            return null;
+        }
+        FileSystemEvent pe = null;
+        File file = new File(job.name);
+        if(file.lastModified()==job.lastModified && file.length()==job.fileSize) {
+            if(!watched.containsFile(job.name)) {
+                FileDescriptor fd = new FileDescriptor(job.lastModified,md5,job.fileSize);
+                fd.fileKey=job.fileKey;
+                addFile(job.name,fd);
+                pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,fd);
+            } else {
+                modifyFile(job.name,md5,job.lastModified,job.fileSize,job.fileKey);
+                pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_MODIFY,descriptor(job.name));
+            }
+        }
+        if(pendingHashes.isEmpty()) syncIndex();
+        return pe;
+    }
+
+    private void modifyFile(String name, String md5, long lastModified, long fileSize, String fileKey) {
         log.info("modified file "+name);
-        removeHash(name);
-        watchedFiles.get(name).md5=md5;
-        watchedFiles.get(name).lastModified=lastModified;
-        watchedFiles.get(name).fileSize=fileSize;
-        addHash(md5,name);
+        openFiles.invalidate(Paths.get(name));
+        watched.putFile(name,lastModified,fileSize,md5,hashAlgorithm,fileKey);
+        indexFile(name);
+        if(chunkIndex!=null) chunkIndex.schedule(name,lastModified,fileSize);
     }
 
     private void dropFile(String name) {
         log.info("dropping file "+name);
-        removeHash(name);
-        watchedFiles.remove(name);
+        dropLegacyDescriptor(name);
+        openFiles.invalidate(Paths.get(name));
+        if(chunkIndex!=null) chunkIndex.remove(name);
+        watched.removeFile(name);
+        if(fileIndex!=null) {
+            try {
+                fileIndex.remove(relativeName(name));
+            } catch (IOException e) {
+                log.warning("could not update file index: "+e.getMessage());
+            }
+        }
     }
 
     private void addFile(String name, FileDescriptor fileDescriptor) {
         log.info("adding file "+name);
-        addHash(fileDescriptor.md5,name);
-        watchedFiles.put(name,fileDescriptor);
+        watched.putFile(name,fileDescriptor.lastModified,fileDescriptor.fileSize,fileDescriptor.md5,
+                fileDescriptor.hashAlgorithm,fileDescriptor.fileKey);
+        indexFile(name);
+        if(chunkIndex!=null) chunkIndex.schedule(name,fileDescriptor.lastModified,fileDescriptor.fileSize);
+    }
+
+    /**
+     * Record the current state of a watched file in the persistent index.
+     */
+    private void indexFile(String name) {
+        if(fileIndex==null) return;
+        FileDescriptor fd = descriptor(name);
+        try {
+            fileIndex.put(relativeName(name),new FileIndex.Entry(fd.fileSize,fd.lastModified,fd.fileKey,
+                    fd.hashAlgorithm,fd.md5));
+        } catch (IOException e) {
+            log.warning("could not update file index: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Make the changes recorded in the persistent index durable, once per scan pass.
+     */
+    private void syncIndex() {
+        if(fileIndex==null) return;
+        try {
+            fileIndex.sync();
+        } catch (IOException e) {
+            log.warning("could not write file index: "+e.getMessage());
+        }
+    }
+
+    private String relativeName(String name) {
+        return name.substring(root.length()+1);
     }
 
     private void dropDir(String name) {
         log.info("dropping directory "+name);
-        watchedDirectories.remove(name);
+        watched.removeDirectory(name);
     }
 
     private void addDir(String name) {
         log.info("adding new directory "+name);
-        watchedDirectories.add(name);
+        watched.addDirectory(name);
     }
 
-    private static String getFileChecksum(MessageDigest digest, RandomAccessFile fis) throws IOException
+    private String getFileChecksum(HashAlgorithm.Digester digest, RandomAccessFile fis) throws IOException
     {
-        byte[] byteArray = new byte[1024];
-        int bytesCount = 0;
-        fis.seek(0);
-        while ((bytesCount = fis.read(byteArray)) != -1) {
-            digest.update(byteArray, 0, bytesCount);
-        };
-        byte[] bytes = digest.digest();
-        StringBuilder sb = new StringBuilder();
-        for(int i=0; i< bytes.length ;i++)
-        {
-            sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-        }
-        return sb.toString();
-    }
-
-    private static String getFileChecksum(MessageDigest digest, File file) throws IOException
+        FileChannel channel = fis.getChannel();
+        return FileChecksum.checksum(digest, channel, FileChecksum.Strategy.forSize(channel.size(),mapLargeFiles));
+    }
+
+    private String getFileChecksum(HashAlgorithm.Digester digest, File file) throws IOException
     {
-        FileInputStream fis = new FileInputStream(file);
-        byte[] byteArray = new byte[1024];
-        int bytesCount = 0;
-        while ((bytesCount = fis.read(byteArray)) != -1) {
-            digest.update(byteArray, 0, bytesCount);
-        };
-        fis.close();
-        byte[] bytes = digest.digest();
-        StringBuilder sb = new StringBuilder();
-        for(int i=0; i< bytes.length ;i++)
-        {
-            sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-        }
-        return sb.toString();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return FileChecksum.checksum(digest, channel, FileChecksum.Strategy.forSize(channel.size(),mapLargeFiles));
+        }
     }
 
     private static String separatorsToSystem(String res) {
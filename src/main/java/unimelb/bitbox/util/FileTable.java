@@ -0,0 +1,608 @@
+package unimelb.bitbox.util;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Compact in-memory table of the files and directories in the share directory.
+ * <p>
+ * Path names are stored as a tree of path components, so that a directory's name is stored
+ * once however many entries it holds, rather than as a prefix of every full path name. Every
+ * node of the tree has an integer id that indexes a set of parallel primitive arrays holding
+ * its parent, name, attributes and digest, and nodes are found by (parent, name) in an open
+ * addressing hash table of ids. Digests are held as two longs rather than as hex strings, and a
+ * second open addressing table maps each digest to a chain of the files that have it.
+ * <p>
+ * Every directory also has a tree hash summarising everything below it, so that two tables can be
+ * compared one directory at a time, only descending where they differ. The tree hash of a directory
+ * is the sum of the hashes of its entries, each of which covers the entry's name and kind and
+ * either the file's digest or the directory's own tree hash; the sum does not depend on the order
+ * the entries were added in. Tree hashes are computed when asked for and kept until something
+ * below the directory changes.
+ * <p>
+ * All path names given to and returned by the table are full path names, starting with the
+ * root it was created with. Digests are given and returned as lower case hex strings, and must
+ * be 128 bits long. The table is not thread safe: callers must not modify it while any other
+ * thread is using it, but any number of threads may read it at once (computing tree hashes
+ * is synchronized).
+ *
+ * @author TransfictionRailways
+ */
+class FileTable {
+    private static final byte NONE = 0;
+    private static final byte FILE = 1;
+    private static final byte DIRECTORY = 2;
+    private static final int ROOT = 0;
+    private static final int NIL = -1;
+    private static final HashAlgorithm[] ALGORITHMS = HashAlgorithm.values();
+    private static final HashFunction TREE_HASH = Hashing.murmur3_128();
+
+    private final String root;
+    private final String separator;
+
+    // per node
+    private int[] parent;
+    private String[] name;
+    private byte[] kind;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] prevSibling;
+    private long[] lastModified;
+    private long[] fileSize;
+    private long[] digestHigh;
+    private long[] digestLow;
+    private byte[] algorithm;
+    private String[] fileKey;
+    // other files with the same digest
+    private int[] nextSame;
+    private int[] prevSame;
+    // tree hash of the entries below, for all but files; only valid if every node below is valid too
+    private long[] treeHigh;
+    private long[] treeLow;
+    private boolean[] treeValid;
+    private int nodes;
+    private int freeNodes = NIL;
+    private int files;
+
+    // (parent, name) -> node id + 1, 0 for an empty slot
+    private int[] childSlots;
+    private int children;
+
+    // digest -> id + 1 of the first file in its chain, 0 for an empty slot
+    private long[] digestSlotHigh;
+    private long[] digestSlotLow;
+    private int[] digestSlots;
+    private int digests;
+
+    /**
+     * @param root      The full path name of the share directory
+     * @param separator The file system's name separator
+     */
+    FileTable(String root, String separator) {
+        this.root = root;
+        this.separator = separator;
+        allocateNodes(1024);
+        childSlots = new int[2048];
+        digestSlots = new int[2048];
+        digestSlotHigh = new long[2048];
+        digestSlotLow = new long[2048];
+        parent[ROOT] = NIL;
+        name[ROOT] = root;
+        firstChild[ROOT] = NIL;
+        nodes = 1;
+    }
+
+    int fileCount() {
+        return files;
+    }
+
+    boolean containsFile(String pathName) {
+        return file(pathName) != NIL;
+    }
+
+    boolean containsDirectory(String pathName) {
+        int id = lookup(pathName);
+        return id != NIL && kind[id] == DIRECTORY;
+    }
+
+    /**
+     * @return The id of the file with this name, or -1 if there is none.
+     */
+    int file(String pathName) {
+        int id = lookup(pathName);
+        return id != NIL && kind[id] == FILE ? id : NIL;
+    }
+
+    long lastModified(int id) {
+        return lastModified[id];
+    }
+
+    long fileSize(int id) {
+        return fileSize[id];
+    }
+
+    String digest(int id) {
+        return toHex(digestHigh[id], digestLow[id]);
+    }
+
+    HashAlgorithm hashAlgorithm(int id) {
+        return ALGORITHMS[algorithm[id]];
+    }
+
+    String fileKey(int id) {
+        return fileKey[id];
+    }
+
+    /**
+     * The full path name of a node.
+     */
+    String path(int id) {
+        if (id == ROOT) return root;
+        ArrayList<String> components = new ArrayList<String>();
+        for (int n = id; n != ROOT; n = parent[n]) {
+            components.add(name[n]);
+        }
+        StringBuilder sb = new StringBuilder(root);
+        for (int i = components.size() - 1; i >= 0; i--) {
+            sb.append(separator).append(components.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Add a file, or replace everything known about it.
+     */
+    void putFile(String pathName, long lastModified, long fileSize, String digest,
+                 HashAlgorithm hashAlgorithm, String fileKey) {
+        int id = intern(pathName);
+        invalidate(parent[id]);
+        if (kind[id] == FILE) {
+            unlinkDigest(id);
+        } else {
+            kind[id] = FILE;
+            files++;
+        }
+        this.lastModified[id] = lastModified;
+        this.fileSize[id] = fileSize;
+        this.algorithm[id] = (byte) hashAlgorithm.ordinal();
+        this.fileKey[id] = fileKey;
+        digestHigh[id] = parseHex(digest, 0);
+        digestLow[id] = parseHex(digest, 16);
+        linkDigest(id);
+    }
+
+    void removeFile(String pathName) {
+        int id = file(pathName);
+        if (id == NIL) return;
+        invalidate(parent[id]);
+        unlinkDigest(id);
+        kind[id] = NONE;
+        fileKey[id] = null;
+        files--;
+        release(id);
+    }
+
+    void addDirectory(String pathName) {
+        int id = intern(pathName);
+        if (id == ROOT || kind[id] == DIRECTORY) return;
+        invalidate(parent[id]);
+        kind[id] = DIRECTORY;
+    }
+
+    void removeDirectory(String pathName) {
+        int id = lookup(pathName);
+        if (id == NIL || kind[id] != DIRECTORY) return;
+        invalidate(parent[id]);
+        kind[id] = NONE;
+        release(id);
+    }
+
+    /**
+     * The full path names of every file with the given digest, none if it is not a digest as we write
+     * them: the digest comes from a peer, and is only ever compared with ours.
+     */
+    ArrayList<String> filesWithDigest(String digest) {
+        ArrayList<String> result = new ArrayList<String>();
+        if (!isDigest(digest)) return result;
+        int slot = findDigestSlot(parseHex(digest, 0), parseHex(digest, 16));
+        if (digestSlots[slot] == 0) return result;
+        for (int id = digestSlots[slot] - 1; id != NIL; id = nextSame[id]) {
+            result.add(path(id));
+        }
+        return result;
+    }
+
+    /**
+     * The given name, if it is a file, and every file below it.
+     */
+    ArrayList<String> files(String pathName) {
+        return collect(pathName, FILE);
+    }
+
+    /**
+     * The given name, if it is a directory, and every directory below it, parents before children.
+     */
+    ArrayList<String> directories(String pathName) {
+        return collect(pathName, DIRECTORY);
+    }
+
+    private ArrayList<String> collect(String pathName, byte wanted) {
+        ArrayList<String> result = new ArrayList<String>();
+        int start = lookup(pathName);
+        if (start == NIL) return result;
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = start;
+        while (top > 0) {
+            int id = stack[--top];
+            if (kind[id] == wanted) result.add(path(id));
+            for (int c = firstChild[id]; c != NIL; c = nextSibling[c]) {
+                if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = c;
+            }
+        }
+        return result;
+    }
+
+    // tree hashes
+
+    /**
+     * The tree hash of a directory, or null if it is not a directory.
+     */
+    synchronized String treeHash(String pathName) {
+        int id = lookup(pathName);
+        if (id == NIL || (id != ROOT && kind[id] != DIRECTORY)) return null;
+        computeTree(id);
+        return toHex(treeHigh[id], treeLow[id]);
+    }
+
+    /**
+     * The files and directories directly in a directory with their entry hashes, sorted by name,
+     * or null if it is not a directory.
+     */
+    synchronized ArrayList<FileSystemManager.TreeEntry> treeEntries(String pathName) {
+        int id = lookup(pathName);
+        if (id == NIL || (id != ROOT && kind[id] != DIRECTORY)) return null;
+        ArrayList<FileSystemManager.TreeEntry> entries = new ArrayList<FileSystemManager.TreeEntry>();
+        for (int c = firstChild[id]; c != NIL; c = nextSibling[c]) {
+            if (kind[c] == NONE) continue;
+            entries.add(new FileSystemManager.TreeEntry(name[c], kind[c] == DIRECTORY, entryHash(c).toString()));
+        }
+        Collections.sort(entries, (a, b) -> a.name.compareTo(b.name));
+        return entries;
+    }
+
+    /**
+     * Mark the tree hashes of a node and its ancestors as out of date.
+     */
+    private void invalidate(int id) {
+        // a node that is already invalid has invalid ancestors
+        for (int n = id; n != NIL && treeValid[n]; n = parent[n]) {
+            treeValid[n] = false;
+        }
+    }
+
+    private void computeTree(int id) {
+        if (treeValid[id]) return;
+        long high = 0;
+        long low = 0;
+        for (int c = firstChild[id]; c != NIL; c = nextSibling[c]) {
+            if (kind[c] == NONE) continue;
+            byte[] entry = entryHash(c).asBytes();
+            long entryHigh = 0;
+            long entryLow = 0;
+            for (int i = 0; i < 8; i++) {
+                entryHigh = (entryHigh << 8) | (entry[i] & 0xff);
+                entryLow = (entryLow << 8) | (entry[8 + i] & 0xff);
+            }
+            // 128 bit addition
+            long sum = low + entryLow;
+            high += entryHigh + (Long.compareUnsigned(sum, low) < 0 ? 1 : 0);
+            low = sum;
+        }
+        treeHigh[id] = high;
+        treeLow[id] = low;
+        treeValid[id] = true;
+    }
+
+    private HashCode entryHash(int id) {
+        Hasher hasher = TREE_HASH.newHasher();
+        hasher.putByte(kind[id]);
+        hasher.putString(name[id], StandardCharsets.UTF_8);
+        if (kind[id] == FILE) {
+            hasher.putString(ALGORITHMS[algorithm[id]].wireName, StandardCharsets.UTF_8);
+            hasher.putLong(digestHigh[id]);
+            hasher.putLong(digestLow[id]);
+        } else {
+            computeTree(id);
+            hasher.putLong(treeHigh[id]);
+            hasher.putLong(treeLow[id]);
+        }
+        return hasher.hash();
+    }
+
+    // tree
+
+    /**
+     * The node for a full path name, or -1 if there is none.
+     */
+    private int lookup(String pathName) {
+        if (pathName.equals(root)) return ROOT;
+        if (!pathName.startsWith(root) || !pathName.startsWith(separator, root.length())) return NIL;
+        int id = ROOT;
+        int from = root.length() + separator.length();
+        while (id != NIL) {
+            int end = pathName.indexOf(separator, from);
+            if (end < 0) end = pathName.length();
+            id = child(id, pathName.substring(from, end));
+            if (end == pathName.length()) return id;
+            from = end + separator.length();
+        }
+        return NIL;
+    }
+
+    /**
+     * The node for a full path name, creating it and any missing ancestors.
+     */
+    private int intern(String pathName) {
+        if (pathName.equals(root)) return ROOT;
+        if (!pathName.startsWith(root) || !pathName.startsWith(separator, root.length())) {
+            throw new IllegalArgumentException(pathName + " is not inside " + root);
+        }
+        int id = ROOT;
+        int from = root.length() + separator.length();
+        while (true) {
+            int end = pathName.indexOf(separator, from);
+            if (end < 0) end = pathName.length();
+            String component = pathName.substring(from, end);
+            int c = child(id, component);
+            id = c == NIL ? newNode(id, component) : c;
+            if (end == pathName.length()) return id;
+            from = end + separator.length();
+        }
+    }
+
+    private int newNode(int parentId, String component) {
+        int id;
+        if (freeNodes != NIL) {
+            id = freeNodes;
+            freeNodes = nextSibling[id];
+        } else {
+            if (nodes == parent.length) allocateNodes(nodes * 2);
+            id = nodes++;
+        }
+        parent[id] = parentId;
+        name[id] = component;
+        kind[id] = NONE;
+        treeValid[id] = false;
+        invalidate(parentId);
+        firstChild[id] = NIL;
+        prevSibling[id] = NIL;
+        nextSibling[id] = firstChild[parentId];
+        if (firstChild[parentId] != NIL) prevSibling[firstChild[parentId]] = id;
+        firstChild[parentId] = id;
+        if ((children + 1) * 3 > childSlots.length * 2) resizeChildSlots();
+        childSlots[findChildSlot(parentId, component)] = id + 1;
+        children++;
+        return id;
+    }
+
+    /**
+     * Free a node that no longer holds anything, and any ancestors left empty by it.
+     */
+    private void release(int id) {
+        while (id != ROOT && kind[id] == NONE && firstChild[id] == NIL) {
+            int p = parent[id];
+            invalidate(p);
+            removeChildSlot(id);
+            children--;
+            if (prevSibling[id] != NIL) {
+                nextSibling[prevSibling[id]] = nextSibling[id];
+            } else {
+                firstChild[p] = nextSibling[id];
+            }
+            if (nextSibling[id] != NIL) prevSibling[nextSibling[id]] = prevSibling[id];
+            name[id] = null;
+            parent[id] = NIL;
+            nextSibling[id] = freeNodes;
+            freeNodes = id;
+            id = p;
+        }
+    }
+
+    private void allocateNodes(int capacity) {
+        parent = grow(parent, capacity);
+        name = name == null ? new String[capacity] : Arrays.copyOf(name, capacity);
+        kind = kind == null ? new byte[capacity] : Arrays.copyOf(kind, capacity);
+        firstChild = grow(firstChild, capacity);
+        nextSibling = grow(nextSibling, capacity);
+        prevSibling = grow(prevSibling, capacity);
+        lastModified = lastModified == null ? new long[capacity] : Arrays.copyOf(lastModified, capacity);
+        fileSize = fileSize == null ? new long[capacity] : Arrays.copyOf(fileSize, capacity);
+        digestHigh = digestHigh == null ? new long[capacity] : Arrays.copyOf(digestHigh, capacity);
+        digestLow = digestLow == null ? new long[capacity] : Arrays.copyOf(digestLow, capacity);
+        algorithm = algorithm == null ? new byte[capacity] : Arrays.copyOf(algorithm, capacity);
+        fileKey = fileKey == null ? new String[capacity] : Arrays.copyOf(fileKey, capacity);
+        nextSame = grow(nextSame, capacity);
+        prevSame = grow(prevSame, capacity);
+        treeHigh = treeHigh == null ? new long[capacity] : Arrays.copyOf(treeHigh, capacity);
+        treeLow = treeLow == null ? new long[capacity] : Arrays.copyOf(treeLow, capacity);
+        treeValid = treeValid == null ? new boolean[capacity] : Arrays.copyOf(treeValid, capacity);
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        return array == null ? new int[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    // (parent, name) -> node
+
+    private static int childHash(int parentId, String component) {
+        int h = parentId * 0x9e3779b9 + component.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int child(int parentId, String component) {
+        int id = childSlots[findChildSlot(parentId, component)] - 1;
+        return id < 0 ? NIL : id;
+    }
+
+    /**
+     * The slot holding the child, or the empty slot it would go in.
+     */
+    private int findChildSlot(int parentId, String component) {
+        int mask = childSlots.length - 1;
+        int i = childHash(parentId, component) & mask;
+        while (true) {
+            int v = childSlots[i];
+            if (v == 0 || (parent[v - 1] == parentId && name[v - 1].equals(component))) return i;
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void removeChildSlot(int id) {
+        int mask = childSlots.length - 1;
+        int i = findChildSlot(parent[id], name[id]);
+        // shift back any entries that probed past the slot being emptied
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int v = childSlots[j];
+            if (v == 0) break;
+            int k = childHash(parent[v - 1], name[v - 1]) & mask;
+            if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) continue;
+            childSlots[i] = v;
+            i = j;
+        }
+        childSlots[i] = 0;
+    }
+
+    private void resizeChildSlots() {
+        int[] old = childSlots;
+        childSlots = new int[old.length * 2];
+        for (int v : old) {
+            if (v != 0) childSlots[findChildSlot(parent[v - 1], name[v - 1])] = v;
+        }
+    }
+
+    // digest -> files
+
+    private static int digestHash(long high, long low) {
+        long h = (high ^ low) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int findDigestSlot(long high, long low) {
+        int mask = digestSlots.length - 1;
+        int i = digestHash(high, low) & mask;
+        while (digestSlots[i] != 0 && (digestSlotHigh[i] != high || digestSlotLow[i] != low)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void linkDigest(int id) {
+        if ((digests + 1) * 3 > digestSlots.length * 2) resizeDigestSlots();
+        int slot = findDigestSlot(digestHigh[id], digestLow[id]);
+        prevSame[id] = NIL;
+        if (digestSlots[slot] == 0) {
+            digestSlotHigh[slot] = digestHigh[id];
+            digestSlotLow[slot] = digestLow[id];
+            nextSame[id] = NIL;
+            digests++;
+        } else {
+            int head = digestSlots[slot] - 1;
+            nextSame[id] = head;
+            prevSame[head] = id;
+        }
+        digestSlots[slot] = id + 1;
+    }
+
+    private void unlinkDigest(int id) {
+        if (prevSame[id] != NIL) {
+            nextSame[prevSame[id]] = nextSame[id];
+            if (nextSame[id] != NIL) prevSame[nextSame[id]] = prevSame[id];
+            return;
+        }
+        int slot = findDigestSlot(digestHigh[id], digestLow[id]);
+        if (nextSame[id] != NIL) {
+            prevSame[nextSame[id]] = NIL;
+            digestSlots[slot] = nextSame[id] + 1;
+            return;
+        }
+        // last file with this digest
+        int mask = digestSlots.length - 1;
+        int i = slot;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (digestSlots[j] == 0) break;
+            int k = digestHash(digestSlotHigh[j], digestSlotLow[j]) & mask;
+            if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) continue;
+            digestSlots[i] = digestSlots[j];
+            digestSlotHigh[i] = digestSlotHigh[j];
+            digestSlotLow[i] = digestSlotLow[j];
+            i = j;
+        }
+        digestSlots[i] = 0;
+        digests--;
+    }
+
+    private void resizeDigestSlots() {
+        int[] oldSlots = digestSlots;
+        long[] oldHigh = digestSlotHigh;
+        long[] oldLow = digestSlotLow;
+        digestSlots = new int[oldSlots.length * 2];
+        digestSlotHigh = new long[oldSlots.length * 2];
+        digestSlotLow = new long[oldSlots.length * 2];
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == 0) continue;
+            int slot = findDigestSlot(oldHigh[i], oldLow[i]);
+            digestSlots[slot] = oldSlots[i];
+            digestSlotHigh[slot] = oldHigh[i];
+            digestSlotLow[slot] = oldLow[i];
+        }
+    }
+
+    // digests
+
+    /**
+     * @return true if the string is 32 lower case hex digits, as {@link FileChecksum#toHex(byte[])} writes
+     */
+    private static boolean isDigest(String digest) {
+        if (digest == null || digest.length() != 32) return false;
+        for (int i = 0; i < digest.length(); i++) {
+            char c = digest.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    private static long parseHex(String digest, int from) {
+        if (digest.length() != 32) {
+            throw new IllegalArgumentException("not a 128 bit digest: " + digest);
+        }
+        long value = 0;
+        for (int i = from; i < from + 16; i++) {
+            int d = Character.digit(digest.charAt(i), 16);
+            if (d < 0) throw new IllegalArgumentException("not a hex digest: " + digest);
+            value = (value << 4) | d;
+        }
+        return value;
+    }
+
+    private static String toHex(long high, long low) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (high >>> (56 - 8 * i));
+            bytes[8 + i] = (byte) (low >>> (56 - 8 * i));
+        }
+        return FileChecksum.toHex(bytes);
+    }
+}
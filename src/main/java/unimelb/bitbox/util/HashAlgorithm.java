@@ -0,0 +1,106 @@
+package unimelb.bitbox.util;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashes that can be used to identify file contents.
+ * <p>
+ * MD5 is what the BitBox protocol specifies and every peer understands. Faster algorithms
+ * are only used with peers that advertise support for them during the handshake; their digests
+ * still travel in the <code>md5</code> field of a file descriptor, tagged with a
+ * <code>hashAlgorithm</code> field naming the algorithm.
+ *
+ * @author TransfictionRailways
+ */
+public enum HashAlgorithm {
+    /**
+     * The protocol's original hash, used with any peer that does not say otherwise.
+     */
+    MD5("MD5") {
+        @Override
+        public Digester newDigester() throws NoSuchAlgorithmException {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            return new Digester() {
+                @Override
+                public void update(ByteBuffer bytes) {
+                    digest.update(bytes);
+                }
+
+                @Override
+                public byte[] digest() {
+                    return digest.digest();
+                }
+            };
+        }
+    },
+    /**
+     * 128-bit MurmurHash3, a non-cryptographic hash that runs several times faster than MD5
+     * and produces digests of the same size.
+     */
+    MURMUR3_128("murmur3_128") {
+        @Override
+        public Digester newDigester() {
+            final Hasher hasher = Hashing.murmur3_128().newHasher();
+            return new Digester() {
+                @Override
+                public void update(ByteBuffer bytes) {
+                    hasher.putBytes(bytes);
+                }
+
+                @Override
+                public byte[] digest() {
+                    return hasher.hash().asBytes();
+                }
+            };
+        }
+    };
+
+    /**
+     * Incrementally computes a digest.
+     */
+    public interface Digester {
+        /**
+         * Add all remaining bytes of the buffer to the digest.
+         */
+        void update(ByteBuffer bytes);
+
+        /**
+         * Finish the digest. The digester may not be used afterwards.
+         */
+        byte[] digest();
+    }
+
+    /**
+     * The name used for this algorithm in protocol messages and configuration.
+     */
+    public final String wireName;
+
+    HashAlgorithm(String wireName) {
+        this.wireName = wireName;
+    }
+
+    /**
+     * Start a new digest.
+     *
+     * @throws NoSuchAlgorithmException If the runtime does not provide the algorithm
+     */
+    public abstract Digester newDigester() throws NoSuchAlgorithmException;
+
+    /**
+     * Look up an algorithm by its wire name.
+     *
+     * @param wireName The name to look up
+     * @return The algorithm, or null if it is not one we know
+     */
+    public static HashAlgorithm fromName(String wireName) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.wireName.equals(wireName)) return algorithm;
+        }
+        return null;
+    }
+}
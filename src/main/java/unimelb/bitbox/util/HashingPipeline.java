@@ -0,0 +1,60 @@
+package unimelb.bitbox.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of worker threads that hash file contents away from the scanner and from any thread
+ * holding the file system manager's lock.
+ * <p>
+ * Independently of the number of workers, at most a fixed number of jobs read from disk at
+ * the same time, so that spinning disks are not made to seek between many large files.
+ *
+ * @author TransfictionRailways
+ */
+class HashingPipeline {
+    private final ExecutorService workers;
+    private final Semaphore ioPermits;
+
+    /**
+     * @param threads       Number of worker threads
+     * @param ioConcurrency Maximum number of jobs reading from disk at once
+     */
+    HashingPipeline(int threads, int ioConcurrency) {
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hasher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ioPermits = new Semaphore(ioConcurrency, true);
+    }
+
+    /**
+     * Queue a job that reads (and hashes) file contents.
+     *
+     * @param job The work to do once a worker and an I/O permit are free
+     * @return The job's eventual result
+     */
+    <T> Future<T> submit(final Callable<T> job) {
+        return workers.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                ioPermits.acquire();
+                try {
+                    return job.call();
+                } finally {
+                    ioPermits.release();
+                }
+            }
+        });
+    }
+}
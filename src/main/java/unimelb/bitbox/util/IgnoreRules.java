@@ -0,0 +1,217 @@
+package unimelb.bitbox.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Gitignore-style rules for entries of the share directory that are not to be shared, taken from
+ * the <code>ignore</code> configuration value (comma separated) followed by the lines of a
+ * <code>.bitboxignore</code> file in the share directory.
+ * <p>
+ * Each rule is a glob matched against path names relative to the share directory, with
+ * <code>/</code> separators:
+ * <li>blank lines and lines starting with <code>#</code> are skipped;</li>
+ * <li>a leading <code>!</code> makes the rule re-include what an earlier rule excluded;</li>
+ * <li>a trailing <code>/</code> makes the rule match directories only;</li>
+ * <li>a rule with no other <code>/</code> matches the name of an entry at any depth, otherwise it
+ * matches the whole path name (a leading <code>/</code> is dropped);</li>
+ * <li><code>*</code> and <code>?</code> match within one name, <code>**</code> matches across names,
+ * and <code>[...]</code> is a character class.</li>
+ * The last rule that matches an entry decides. Everything under an ignored directory is ignored,
+ * since the directory is never descended into; {@link #ignored(String, boolean)} checks the entry
+ * alone, {@link #ignoredPath(String, boolean)} checks its parent directories as well.
+ * <p>
+ * Rules that are a plain name are looked up in a hash map rather than matched one by one, so the
+ * common case (<code>.git/</code>, <code>node_modules/</code>, <code>target/</code>) costs the same
+ * however many of them there are.
+ *
+ * @author TransfictionRailways
+ */
+class IgnoreRules {
+    static final String IGNORE_FILE = ".bitboxignore";
+
+    private static class Rule {
+        final int order;
+        final boolean negate;
+        final boolean directoryOnly;
+
+        Rule(int order, boolean negate, boolean directoryOnly) {
+            this.order = order;
+            this.negate = negate;
+            this.directoryOnly = directoryOnly;
+        }
+    }
+
+    private static class GlobRule extends Rule {
+        final boolean wholePath;
+        final Pattern pattern;
+
+        GlobRule(int order, boolean negate, boolean directoryOnly, boolean wholePath, Pattern pattern) {
+            super(order, negate, directoryOnly);
+            this.wholePath = wholePath;
+            this.pattern = pattern;
+        }
+    }
+
+    // plain names -> the last rules for them that match any entry, and directories only
+    private final HashMap<String, Rule> names = new HashMap<String, Rule>();
+    private final HashMap<String, Rule> directoryNames = new HashMap<String, Rule>();
+    // all other rules, last first
+    private final ArrayList<GlobRule> globs = new ArrayList<GlobRule>();
+    private int rules;
+
+    /**
+     * The rules from the configuration and the ignore file of a share directory.
+     *
+     * @param configured The <code>ignore</code> configuration value, or null
+     * @param root       The share directory
+     * @throws IOException If the ignore file exists but cannot be read
+     */
+    static IgnoreRules load(String configured, String root) throws IOException {
+        IgnoreRules ignoreRules = new IgnoreRules();
+        if (configured != null) {
+            for (String rule : configured.split(",")) ignoreRules.add(rule);
+        }
+        File file = new File(root, IGNORE_FILE);
+        if (file.isFile()) {
+            for (String rule : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) ignoreRules.add(rule);
+        }
+        return ignoreRules;
+    }
+
+    boolean isEmpty() {
+        return rules == 0;
+    }
+
+    /**
+     * Add a rule, which takes precedence over every rule added before it.
+     */
+    void add(String rule) {
+        rule = rule.trim();
+        if (rule.isEmpty() || rule.startsWith("#")) return;
+        boolean negate = rule.startsWith("!");
+        if (negate) rule = rule.substring(1);
+        boolean directoryOnly = rule.endsWith("/");
+        if (directoryOnly) rule = rule.substring(0, rule.length() - 1);
+        boolean wholePath = rule.contains("/");
+        if (rule.startsWith("/")) rule = rule.substring(1);
+        if (rule.isEmpty()) return;
+        int order = rules++;
+        if (!wholePath && !hasWildcard(rule)) {
+            Rule plain = new Rule(order, negate, directoryOnly);
+            (directoryOnly ? directoryNames : names).put(unescape(rule), plain);
+        } else {
+            globs.add(0, new GlobRule(order, negate, directoryOnly, wholePath, Pattern.compile(toRegex(rule))));
+        }
+    }
+
+    /**
+     * Whether an entry is ignored by the rules, not counting its parent directories.
+     *
+     * @param pathName  Path name relative to the share directory, with <code>/</code> separators
+     * @param directory Whether the entry is a directory
+     */
+    boolean ignored(String pathName, boolean directory) {
+        if (rules == 0) return false;
+        String name = pathName.substring(pathName.lastIndexOf('/') + 1);
+        Rule last = names.get(name);
+        if (directory) last = later(last, directoryNames.get(name));
+        for (GlobRule glob : globs) {
+            if (last != null && glob.order < last.order) break;
+            if (glob.directoryOnly && !directory) continue;
+            if (glob.pattern.matcher(glob.wholePath ? pathName : name).matches()) {
+                last = glob;
+                break;
+            }
+        }
+        return last != null && !last.negate;
+    }
+
+    /**
+     * Whether an entry or any of the directories it is in is ignored by the rules.
+     *
+     * @param pathName  Path name relative to the share directory, with <code>/</code> separators
+     * @param directory Whether the entry is a directory
+     */
+    boolean ignoredPath(String pathName, boolean directory) {
+        if (rules == 0) return false;
+        for (int slash = pathName.indexOf('/'); slash >= 0; slash = pathName.indexOf('/', slash + 1)) {
+            if (ignored(pathName.substring(0, slash), true)) return true;
+        }
+        return ignored(pathName, directory);
+    }
+
+    private static Rule later(Rule a, Rule b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.order > b.order ? a : b;
+    }
+
+    private static boolean hasWildcard(String rule) {
+        for (int i = 0; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '*' || c == '?' || c == '[') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String unescape(String rule) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (c == '\\' && i + 1 < rule.length()) c = rule.charAt(++i);
+            name.append(c);
+        }
+        return name.toString();
+    }
+
+    private static String toRegex(String rule) {
+        StringBuilder regex = new StringBuilder();
+        int i = 0;
+        while (i < rule.length()) {
+            char c = rule.charAt(i);
+            if (rule.startsWith("**/", i)) {
+                // any number of leading directories, including none
+                regex.append("(?:.*/)?");
+                i += 3;
+            } else if (rule.startsWith("**", i)) {
+                regex.append(".*");
+                i += 2;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+                i++;
+            } else if (c == '?') {
+                regex.append("[^/]");
+                i++;
+            } else if (c == '[' && rule.indexOf(']', i + 2) > 0) {
+                int end = rule.indexOf(']', i + 2);
+                String set = rule.substring(i + 1, end);
+                if (set.startsWith("!")) set = "^" + set.substring(1);
+                regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                i = end + 1;
+            } else {
+                if (c == '\\' && i + 1 < rule.length()) c = rule.charAt(++i);
+                regex.append(Pattern.quote(String.valueOf(c)));
+                i++;
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Path name relative to the share directory with the system separators replaced by <code>/</code>.
+     */
+    static String portable(String relativeName) {
+        return File.separatorChar == '/' ? relativeName : relativeName.replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,132 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Ways of making a new file with the same content as a local file, for when a peer sends us
+ * content we already have. Each strategy falls back to the ones after it, ending with a plain
+ * copy:
+ * <li><code>hardlink</code> makes the new file another name for the existing one. Nothing is
+ * copied, but a change to either file is a change to both, and the new file keeps the existing
+ * file's modification time; only suitable for shares whose files are not modified in place.</li>
+ * <li><code>reflink</code> clones the existing file's blocks, which are only copied when either
+ * file is modified. Only some file systems (e.g. btrfs, XFS, APFS) support this.</li>
+ * <li><code>copy</code> copies the content inside the kernel with {@link FileChannel#transferTo}.</li>
+ *
+ * @author TransfictionRailways
+ */
+enum ShortcutStrategy {
+    HARDLINK("hardlink") {
+        @Override
+        boolean copy(Path source, Path target) throws IOException {
+            try {
+                Files.createLink(target, source);
+                return true;
+            } catch (UnsupportedOperationException e) {
+                return false;
+            }
+        }
+    },
+    REFLINK("reflink") {
+        @Override
+        boolean copy(Path source, Path target) throws IOException {
+            // spawning a process costs more than copying a small file
+            if (unsupported || Files.size(source) < REFLINK_THRESHOLD) return false;
+            String os = System.getProperty("os.name").toLowerCase();
+            ProcessBuilder builder;
+            if (os.contains("linux")) {
+                builder = new ProcessBuilder("cp", "--reflink=always", source.toString(), target.toString());
+            } else if (os.contains("mac")) {
+                builder = new ProcessBuilder("cp", "-c", source.toString(), target.toString());
+            } else {
+                unsupported = true;
+                return false;
+            }
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+            Process process = builder.start();
+            try {
+                process.getInputStream().close();
+                if (!process.waitFor(1, TimeUnit.MINUTES)) {
+                    process.destroy();
+                    throw new IOException("timed out cloning " + source);
+                }
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted cloning " + source);
+            }
+            if (process.exitValue() == 0) return true;
+            Files.deleteIfExists(target);
+            log.info("reflinks are not supported here, copying files instead");
+            unsupported = true;
+            return false;
+        }
+    },
+    COPY("copy") {
+        @Override
+        boolean copy(Path source, Path target) throws IOException {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long copied = in.transferTo(position, size - position, out);
+                    if (copied <= 0) throw new IOException(source + " shrank while copying");
+                    position += copied;
+                }
+            }
+            return true;
+        }
+    };
+
+    private static Logger log = Logger.getLogger(ShortcutStrategy.class.getName());
+    private static final long REFLINK_THRESHOLD = 1 << 20;
+
+    /**
+     * Name of the strategy in the configuration.
+     */
+    final String configName;
+    // set once the strategy has failed in a way that will not change
+    volatile boolean unsupported;
+
+    ShortcutStrategy(String configName) {
+        this.configName = configName;
+    }
+
+    /**
+     * Make a new file with the same content as the source file.
+     *
+     * @param source The existing file
+     * @param target The file to create, which must not exist
+     * @return True if the file was made, false if this strategy cannot be used for it
+     * @throws IOException If making the file failed
+     */
+    abstract boolean copy(Path source, Path target) throws IOException;
+
+    /**
+     * This strategy followed by the ones to fall back to, in order.
+     */
+    List<ShortcutStrategy> chain() {
+        ShortcutStrategy[] all = values();
+        return Arrays.asList(all).subList(ordinal(), all.length);
+    }
+
+    /**
+     * The strategy with the given configuration name, or null if there is none.
+     */
+    static ShortcutStrategy fromName(String name) {
+        for (ShortcutStrategy strategy : values()) {
+            if (strategy.configName.equals(name)) return strategy;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,138 @@
+package unimelb.bitbox.util;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import unimelb.bitbox.BadMessageException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A Bloom filter of the files and directories in a share directory, sent to a peer so that its
+ * first sync with us can leave out whatever we already have. The filter never says we lack
+ * something we have, but may say we have something we lack; the periodic sync puts that right.
+ * <p>
+ * Each entry is keyed by its path name relative to the share directory with <code>/</code>
+ * separators, followed by a zero character and, for a file, the hex digest of its content. The
+ * key's UTF-8 bytes are hashed with 128-bit MurmurHash3 (x64, seed 0); with <i>h1</i> and
+ * <i>h2</i> the first and second 8 bytes of the hash read as little endian longs, the entry sets
+ * bits (<i>h1</i> + <i>i</i>&middot;<i>h2</i>) mod <i>m</i> (unsigned) for <i>i</i> from 0 to
+ * <i>k</i>-1. Bit <i>j</i> is bit <i>j</i> mod 8 of byte <i>j</i>/8. On the wire the filter is a
+ * document with the <code>hashAlgorithm</code> of the digests, the number of <code>hashes</code>
+ * <i>k</i>, and the <code>bits</code> as base64; <i>m</i> is eight times the number of bytes.
+ *
+ * @author TransfictionRailways
+ */
+public class SyncFilter {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    // about 1% false positives
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+    // below this, about 15% false positives, the filter would hold back too much
+    private static final int MIN_BITS_PER_ENTRY = 4;
+
+    /**
+     * The algorithm of the digests in the filter; files can only be looked up by digests of the same algorithm.
+     */
+    public final HashAlgorithm hashAlgorithm;
+    private final int hashes;
+    private final byte[] bits;
+
+    /**
+     * An empty filter sized for a number of entries.
+     *
+     * @param hashAlgorithm The algorithm of the digests that will be added
+     * @param entries       The number of entries that will be added
+     * @param maxBytes      The most the filter may take up; beyond that it has more false positives
+     */
+    SyncFilter(HashAlgorithm hashAlgorithm, int entries, int maxBytes) {
+        this.hashAlgorithm = hashAlgorithm;
+        long bytes = ((long) entries * BITS_PER_ENTRY + 7) / 8;
+        this.bits = new byte[(int) Math.max(8, Math.min(bytes, maxBytes))];
+        // the number of hashes that gives the fewest false positives for the space we have
+        long optimal = entries == 0 ? HASHES : Math.round(bits.length * 8.0 / entries * Math.log(2));
+        this.hashes = (int) Math.max(1, Math.min(HASHES, optimal));
+    }
+
+    /**
+     * Whether a filter of a number of entries that fits in the given size is accurate enough to be worth sending.
+     */
+    static boolean useful(int entries, int maxBytes) {
+        return (long) entries * MIN_BITS_PER_ENTRY <= maxBytes * 8L;
+    }
+
+    private SyncFilter(HashAlgorithm hashAlgorithm, int hashes, byte[] bits) {
+        this.hashAlgorithm = hashAlgorithm;
+        this.hashes = hashes;
+        this.bits = bits;
+    }
+
+    /**
+     * Read a filter sent by a peer.
+     *
+     * @throws BadMessageException If the filter is malformed, or uses a hash algorithm we do not know
+     */
+    public static SyncFilter fromDoc(Document doc) throws BadMessageException {
+        HashAlgorithm hashAlgorithm = HashAlgorithm.fromName(doc.getString("hashAlgorithm"));
+        if (hashAlgorithm == null) throw new BadMessageException("unknown hash algorithm in sync filter");
+        long hashes = doc.getLong("hashes");
+        byte[] bits;
+        try {
+            bits = Base64.getDecoder().decode(doc.getString("bits"));
+        } catch (IllegalArgumentException e) {
+            throw new BadMessageException("sync filter bits are not base64");
+        }
+        if (hashes < 1 || hashes > 32 || bits.length == 0) throw new BadMessageException("bad sync filter");
+        return new SyncFilter(hashAlgorithm, (int) hashes, bits);
+    }
+
+    public Document toDoc() {
+        Document doc = new Document();
+        doc.append("hashAlgorithm", hashAlgorithm.wireName);
+        doc.append("hashes", hashes);
+        doc.append("bits", Base64.getEncoder().encodeToString(bits));
+        return doc;
+    }
+
+    /**
+     * @param pathName Path name relative to the share directory, with <code>/</code> separators
+     */
+    static String directoryKey(String pathName) {
+        return pathName + '\0';
+    }
+
+    /**
+     * @param pathName Path name relative to the share directory, with <code>/</code> separators
+     * @param digest   Hex digest of the file's content
+     */
+    static String fileKey(String pathName, String digest) {
+        return pathName + '\0' + digest;
+    }
+
+    void add(String key) {
+        long m = bits.length * 8L;
+        ByteBuffer hash = hash(key);
+        long h1 = hash.getLong(0), h2 = hash.getLong(8);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, m);
+            bits[(int) (bit >>> 3)] |= 1 << (bit & 7);
+        }
+    }
+
+    boolean mightContain(String key) {
+        long m = bits.length * 8L;
+        ByteBuffer hash = hash(key);
+        long h1 = hash.getLong(0), h2 = hash.getLong(8);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, m);
+            if ((bits[(int) (bit >>> 3)] & (1 << (bit & 7))) == 0) return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer hash(String key) {
+        return ByteBuffer.wrap(HASH.hashString(key, StandardCharsets.UTF_8).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
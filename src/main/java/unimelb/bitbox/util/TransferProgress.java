@@ -0,0 +1,154 @@
+package unimelb.bitbox.util;
+
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Records of how far each unfinished file transfer got, so that a transfer interrupted by a
+ * restart or a dropped connection carries on from where it stopped rather than starting again.
+ * <p>
+ * There is one small file per transfer in the given directory, named after a hash of the path
+ * name of the file being loaded. It holds the content being loaded and the ranges of the loader
+ * file that are still missing, and is replaced atomically whenever it is saved. The loader file
+ * must be forced to disk before a record claiming its content is saved.
+ *
+ * @author TransfictionRailways
+ */
+class TransferProgress {
+    private static Logger log = Logger.getLogger(TransferProgress.class.getName());
+    private static final int MAGIC = 0x42425450; // "BBTP"
+    private static final int VERSION = 1;
+
+    /**
+     * A saved transfer.
+     */
+    static class Record {
+        final HashAlgorithm hashAlgorithm;
+        final String md5;
+        final long length;
+        // start -> end of every range not written yet
+        final TreeMap<Long, Long> missing;
+
+        private Record(HashAlgorithm hashAlgorithm, String md5, long length, TreeMap<Long, Long> missing) {
+            this.hashAlgorithm = hashAlgorithm;
+            this.md5 = md5;
+            this.length = length;
+            this.missing = missing;
+        }
+
+        /**
+         * True if the transfer was loading the given content.
+         */
+        boolean matches(HashAlgorithm hashAlgorithm, String md5, long length) {
+            return this.hashAlgorithm == hashAlgorithm && this.md5.equals(md5) && this.length == length;
+        }
+    }
+
+    private final File directory;
+
+    /**
+     * @param directory Directory to keep the records in
+     * @throws IOException If the directory cannot be created
+     */
+    TransferProgress(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create transfer directory " + directory);
+        }
+    }
+
+    /**
+     * The saved progress of the transfer of a file, or null if there is none that can be used.
+     */
+    Record load(String pathName) {
+        File file = recordFile(pathName);
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("unrecognised format");
+            int length = in.readInt();
+            if (length <= 0 || length > 1 << 24) throw new IOException("bad record length");
+            byte[] record = new byte[length];
+            in.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, record.length);
+            if (in.readInt() != (int) crc.getValue()) throw new IOException("corrupt record");
+            DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+            // another path name with the same hash
+            if (!recordIn.readUTF().equals(pathName)) return null;
+            HashAlgorithm hashAlgorithm = HashAlgorithm.fromName(recordIn.readUTF());
+            String md5 = recordIn.readUTF();
+            long fileLength = recordIn.readLong();
+            int ranges = recordIn.readInt();
+            TreeMap<Long, Long> missing = new TreeMap<Long, Long>();
+            for (int i = 0; i < ranges; i++) {
+                long start = recordIn.readLong();
+                long end = recordIn.readLong();
+                if (start < 0 || end <= start || end > fileLength) throw new IOException("bad range");
+                missing.put(start, end);
+            }
+            if (hashAlgorithm == null) return null;
+            return new Record(hashAlgorithm, md5, fileLength, missing);
+        } catch (IOException e) {
+            log.warning("discarding unreadable transfer record for " + pathName + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void save(String pathName, HashAlgorithm hashAlgorithm, String md5, long length, SortedMap<Long, Long> missing)
+            throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeUTF(pathName);
+        out.writeUTF(hashAlgorithm.wireName);
+        out.writeUTF(md5);
+        out.writeLong(length);
+        out.writeInt(missing.size());
+        for (Map.Entry<Long, Long> range : missing.entrySet()) {
+            out.writeLong(range.getKey());
+            out.writeLong(range.getValue());
+        }
+        byte[] bytes = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        File tmp = new File(directory, recordFile(pathName).getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream fileOut = new DataOutputStream(fos);
+            fileOut.writeInt(MAGIC);
+            fileOut.writeInt(VERSION);
+            fileOut.writeInt(bytes.length);
+            fileOut.write(bytes);
+            fileOut.writeInt((int) crc.getValue());
+            fileOut.flush();
+            fos.getChannel().force(false);
+        }
+        Files.move(tmp.toPath(), recordFile(pathName).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void remove(String pathName) {
+        File file = recordFile(pathName);
+        if (file.exists() && !file.delete()) log.warning("could not delete transfer record " + file);
+    }
+
+    private File recordFile(String pathName) {
+        return new File(directory, Hashing.murmur3_128().hashString(pathName, StandardCharsets.UTF_8).toString());
+    }
+}
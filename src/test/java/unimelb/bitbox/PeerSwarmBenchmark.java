@@ -0,0 +1,96 @@
+package unimelb.bitbox;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Simulates a swarm of peers connecting to one peer, to see how it copes with many connections
+ * (e.g. with <code>threadMode=virtual</code>, or the selector transport). Each simulated peer
+ * handshakes, then reads and discards whatever it is sent, such as the sync events the peer sends
+ * every <code>syncInterval</code>. Everything runs on one thread, so the swarm itself stays cheap.
+ * Reports how long the handshakes took and, every few seconds, how much the swarm has been sent.
+ * <pre>
+ * {@code
+ * $ java -cp target/test-classes:target/classes unimelb.bitbox.PeerSwarmBenchmark host:port peers seconds
+ * }
+ * </pre>
+ * The peer needs a <code>maximumIncommingConnections</code> of at least the size of the swarm.
+ *
+ * @author TransfictionRailways
+ */
+public class PeerSwarmBenchmark {
+    private static final int REPORT_INTERVAL = 5000; // ms
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String[] hostPort = args[0].split(":");
+        InetSocketAddress address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        int peers = Integer.parseInt(args[1]);
+        long seconds = Long.parseLong(args[2]);
+
+        Selector selector = Selector.open();
+        long start = System.nanoTime();
+        for (int i = 0; i < peers; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            String handshake = "{\"command\":\"HANDSHAKE_REQUEST\",\"hostPort\":{\"host\":\"swarm" + i +
+                    "\",\"port\":" + (20000 + i) + "}}\n";
+            ByteBuffer request = ByteBuffer.wrap(handshake.getBytes(StandardCharsets.UTF_8));
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new boolean[1]);
+        }
+        long connected = System.nanoTime();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        int handshaken = 0;
+        int closed = 0;
+        long received = 0;
+        long lastReport = System.currentTimeMillis();
+        long end = lastReport + seconds * 1000;
+        while (System.currentTimeMillis() < end) {
+            selector.select(REPORT_INTERVAL);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                SocketChannel channel = (SocketChannel) key.channel();
+                buffer.clear();
+                int count;
+                try {
+                    count = channel.read(buffer);
+                } catch (IOException e) {
+                    count = -1;
+                }
+                if (count < 0) {
+                    key.cancel();
+                    channel.close();
+                    closed++;
+                    continue;
+                }
+                received += count;
+                // the handshake response is the first thing sent
+                boolean[] answered = (boolean[]) key.attachment();
+                if (!answered[0]) {
+                    answered[0] = true;
+                    if (++handshaken == peers) {
+                        System.out.printf("%d peers connected in %.2f s, handshaken in %.2f s%n", peers,
+                                (connected - start) / 1e9, (System.nanoTime() - start) / 1e9);
+                    }
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= REPORT_INTERVAL) {
+                System.out.printf("%d handshaken, %d closed, %d bytes received%n", handshaken, closed, received);
+                lastReport = now;
+            }
+        }
+        selector.close();
+    }
+}
@@ -0,0 +1,82 @@
+package unimelb.bitbox.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link FileChecksum} for each way of reading a file, over files that are in the
+ * page cache, which is the case right after a peer has written them. Run with
+ * <pre>
+ * {@code
+ * $ mvn test-compile
+ * $ java -cp target/test-classes:target/classes:<dependencies> org.openjdk.jmh.Main FileChecksumBenchmark
+ * }
+ * </pre>
+ *
+ * @author TransfictionRailways
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileChecksumBenchmark {
+    @Param({"65536", "16777216", "268435456"})
+    public long size;
+
+    @Param({"HEAP", "DIRECT", "MAPPED"})
+    public FileChecksum.Strategy strategy;
+
+    @Param({"MD5", "MURMUR3_128"})
+    public HashAlgorithm algorithm;
+
+    private Path file;
+    private FileChannel channel;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = Files.createTempFile("checksum", ".bin");
+        Random random = new Random(size);
+        byte[] block = new byte[1 << 20];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        channel.close();
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public String checksum() throws IOException, NoSuchAlgorithmException {
+        return FileChecksum.checksum(algorithm.newDigester(), channel, strategy);
+    }
+}
@@ -0,0 +1,142 @@
+package unimelb.bitbox.util;
+
+import org.apache.commons.io.FileUtils;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Contention on the file system manager: many threads answer peers' questions about the share
+ * (existence checks, sync events and reads of file content) while another keeps modifying files,
+ * so that the monitor thread rescans and rehashes them. Prints the throughput of each kind of
+ * question. Run from a directory with a configuration.properties, with
+ * <pre>
+ * {@code
+ * $ java -cp target/test-classes:target/classes:<dependencies> unimelb.bitbox.util.FileSystemManagerBenchmark [threads] [seconds] [files]
+ * }
+ * </pre>
+ *
+ * @author TransfictionRailways
+ */
+public class FileSystemManagerBenchmark {
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int fileCount = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        Path share = Files.createTempDirectory("share");
+        List<Path> files = createShare(share, fileCount);
+        FileSystemManager manager = new FileSystemManager(share.toString(), event -> { });
+        ArrayList<FileSystemEvent> events = manager.generateSyncEvents();
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> md5s = new ArrayList<String>();
+        for (FileSystemEvent event : events) {
+            if (event.fileDescriptor == null) continue;
+            names.add(event.pathName);
+            md5s.add(event.fileDescriptor.md5);
+        }
+        System.out.println(threads + " threads, " + names.size() + " files, " + seconds + " s");
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder exists = new LongAdder();
+        LongAdder reads = new LongAdder();
+        LongAdder syncs = new LongAdder();
+        LongAdder modified = new LongAdder();
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (running.get()) {
+                        int i = random.nextInt(names.size());
+                        int op = random.nextInt(1000);
+                        if (op == 0) {
+                            manager.generateSyncEvents();
+                            syncs.increment();
+                        } else if (op < 100) {
+                            manager.readFile(md5s.get(i), random.nextInt(FILE_SIZE / READ_SIZE) * READ_SIZE, READ_SIZE);
+                            reads.increment();
+                        } else {
+                            manager.fileNameExists(names.get(i), md5s.get(i));
+                            manager.dirNameExists(names.get(i));
+                            exists.increment();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "reader " + t));
+        }
+        Thread writer = new Thread(() -> {
+            long time = System.currentTimeMillis() - 3600000;
+            Random random = new Random(1);
+            byte[] content = new byte[FILE_SIZE];
+            while (running.get()) {
+                Path file = files.get(random.nextInt(files.size()));
+                try {
+                    random.nextBytes(content);
+                    Files.write(file, content);
+                    // already settled, so the next scan hashes it straight away
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(time += 1000));
+                    modified.increment();
+                    Thread.sleep(10);
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "writer");
+
+        long start = System.nanoTime();
+        for (Thread worker : workers) worker.start();
+        writer.start();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) worker.join();
+        writer.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("existence checks %.0f/s, reads %.0f/s, sync event lists %.1f/s, files modified %d%n",
+                exists.sum() / elapsed, reads.sum() / elapsed, syncs.sum() / elapsed, modified.sum());
+        manager.interrupt();
+        // the monitor thread may still complain about the share disappearing
+        Logger.getLogger("").setLevel(Level.OFF);
+        FileUtils.deleteDirectory(share.toFile());
+    }
+
+    /**
+     * Fill a share with files spread over a few directories, backdated so that they count as settled.
+     */
+    private static List<Path> createShare(Path share, int fileCount) throws IOException {
+        ArrayList<Path> files = new ArrayList<Path>();
+        Random random = new Random(0);
+        byte[] content = new byte[FILE_SIZE];
+        FileTime settled = FileTime.fromMillis(System.currentTimeMillis() - 7200000);
+        for (int i = 0; i < fileCount; i++) {
+            Path dir = share.resolve("dir" + i % 20);
+            Files.createDirectories(dir);
+            Path file = dir.resolve("file" + i);
+            random.nextBytes(content);
+            try (OutputStream out = Files.newOutputStream(file)) {
+                out.write(content);
+            }
+            Files.setLastModifiedTime(file, settled);
+            files.add(file);
+        }
+        return files;
+    }
+}
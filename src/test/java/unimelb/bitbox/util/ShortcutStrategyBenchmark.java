@@ -0,0 +1,93 @@
+package unimelb.bitbox.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to make a file from a local file with the same content with each {@link ShortcutStrategy},
+ * falling back along {@link ShortcutStrategy#chain()} as the file system manager does, so that a
+ * strategy the file system does not support is measured as whatever it falls back to. Run with
+ * <pre>
+ * {@code
+ * $ mvn test-compile
+ * $ java -cp target/test-classes:target/classes:<dependencies> org.openjdk.jmh.Main ShortcutStrategyBenchmark
+ * }
+ * </pre>
+ * The share directory is the temporary directory, unless <code>-Djava.io.tmpdir</code> says otherwise.
+ *
+ * @author TransfictionRailways
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShortcutStrategyBenchmark {
+    @Param({"65536", "16777216", "268435456"})
+    public long size;
+
+    // by name, as the generated benchmark code cannot see the package private enum
+    @Param({"hardlink", "reflink", "copy"})
+    public String strategy;
+
+    private Path directory;
+    private Path source;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void createSource() throws IOException {
+        directory = Files.createTempDirectory("shortcut");
+        source = directory.resolve("source");
+        target = directory.resolve("target");
+        Random random = new Random(size);
+        byte[] block = new byte[1 << 20];
+        try (OutputStream out = Files.newOutputStream(source)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() throws IOException {
+        Files.deleteIfExists(target);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteSource() throws IOException {
+        Files.delete(source);
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public String shortcut() throws IOException {
+        for (ShortcutStrategy used : ShortcutStrategy.fromName(strategy).chain()) {
+            try {
+                if (used.copy(source, target)) return used.configName;
+            } catch (IOException e) {
+                Files.deleteIfExists(target);
+            }
+        }
+        throw new IOException("no strategy made " + target);
+    }
+}